@@ -0,0 +1,318 @@
+package ubergloss.services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ubergloss.objects.Definition;
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+/**
+ * Handles the bookkeeping shared by every FuzzyTermIndex: loading the terms
+ * from the database, remembering the definitions of each term, applying
+ * changes and locking. Subclasses only need to store the distinct (lower
+ * case) terms and find those within a distance of a query.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public abstract class AbstractFuzzyTermIndex extends GlossaryChangeAdapter
+		implements FuzzyTermIndex {
+
+	// the most characters a term may have around a query it contains
+	private static final int MAX_EXTRA = QueryService.LEVENSHTEIN_DISTANCE;
+
+	private static final String ALL_DEFINITIONS = "SELECT definitions.defID, rank, definition, termdef.term FROM definitions, termdef WHERE termdef.defID = definitions.defID ORDER BY definitions.defID;";
+
+	private ConnectionPool pool;
+	private boolean loaded;
+
+	// definitions of each term, in the order they were added
+	private Map<String, Map<String, Definition>> definitions = new HashMap<String, Map<String, Definition>>();
+	// the term each definition belongs to
+	private Map<String, String> terms = new HashMap<String, String>();
+	// each window of a term, the term less up to MAX_EXTRA characters from
+	// its ends, mapped to the terms it was cut from
+	private Map<String, List<String>> windows = new HashMap<String, List<String>>();
+
+	protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Creates an index which loads every term from the database on first use
+	 */
+	protected AbstractFuzzyTermIndex(ConnectionPool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException(
+					"the connection pool must be non-null.");
+		this.pool = pool;
+	}
+
+	/**
+	 * Creates an empty index, filled only through definitionSaved
+	 */
+	protected AbstractFuzzyTermIndex() {
+		loaded = true;
+	}
+
+	/**
+	 * Adds a term that isn't already in the index. Called while holding the
+	 * write lock.
+	 */
+	protected abstract void addTerm(String term);
+
+	/**
+	 * Removes a term that no longer has any definitions. Called while holding
+	 * the write lock.
+	 */
+	protected abstract void removeTerm(String term);
+
+	/**
+	 * Returns every indexed term within the distance of the query. Called
+	 * while holding the read lock.
+	 */
+	protected abstract List<String> findTerms(String term, int distance);
+
+	public List<Definition> search(String term, int distance) {
+		if (term == null || term.equals(""))
+			throw new IllegalArgumentException(
+					"The supplied term must be non-null and non-empty.");
+		ensureLoaded();
+
+		List<Definition> toReturn = new ArrayList<Definition>();
+
+		lock.readLock().lock();
+		try {
+			for (String match : findTerms(normalise(term), distance)) {
+				toReturn.add(definitions.get(match).values().iterator().next());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return toReturn;
+	}
+
+	public List<Definition> searchContaining(String term, int extra) {
+		String query = checkContaining(term, extra);
+		List<Definition> toReturn = new ArrayList<Definition>();
+
+		lock.readLock().lock();
+		try {
+			for (String match : containing(query, extra)) {
+				toReturn.addAll(definitions.get(match).values());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return toReturn;
+	}
+
+	public int countContaining(String term, int extra) {
+		String query = checkContaining(term, extra);
+		int count = 0;
+
+		lock.readLock().lock();
+		try {
+			for (String match : containing(query, extra)) {
+				count += definitions.get(match).size();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return count;
+	}
+
+	/**
+	 * Checks the arguments of a containing search and loads the index,
+	 * returning the normalised query
+	 */
+	private String checkContaining(String term, int extra) {
+		if (term == null || term.equals(""))
+			throw new IllegalArgumentException(
+					"The supplied term must be non-null and non-empty.");
+		if (extra < 0 || extra > MAX_EXTRA)
+			throw new IllegalArgumentException("the extra characters " + extra
+					+ " must be from 0 to " + MAX_EXTRA);
+		ensureLoaded();
+		return normalise(term);
+	}
+
+	/**
+	 * Returns the terms containing the query with no more than extra
+	 * characters around it. Must be called while holding the read lock.
+	 */
+	private List<String> containing(String query, int extra) {
+		List<String> matches = new ArrayList<String>();
+
+		List<String> owners = windows.get(query);
+		if (owners != null) {
+			for (String owner : owners) {
+				if (owner.length() - query.length() <= extra) {
+					matches.add(owner);
+				}
+			}
+		}
+		return matches;
+	}
+
+	public int size() {
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			return definitions.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void definitionSaved(Definition def) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			add(def);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void definitionDeleted(String defID) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			remove(defID);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void add(Definition def) {
+		String term = normalise(def.getTerm());
+
+		// the definition may have moved to another term
+		if (!term.equals(terms.get(def.getID()))) {
+			remove(def.getID());
+		}
+
+		Map<String, Definition> defs = definitions.get(term);
+		if (defs == null) {
+			defs = new LinkedHashMap<String, Definition>();
+			definitions.put(term, defs);
+			addWindows(term);
+			addTerm(term);
+		}
+		defs.put(def.getID(), def);
+		terms.put(def.getID(), term);
+	}
+
+	private void remove(String defID) {
+		String term = terms.remove(defID);
+		if (term == null) {
+			return;
+		}
+
+		Map<String, Definition> defs = definitions.get(term);
+		defs.remove(defID);
+		if (defs.isEmpty()) {
+			definitions.remove(term);
+			removeWindows(term);
+			removeTerm(term);
+		}
+	}
+
+	private void ensureLoaded() {
+		lock.readLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+			PooledConnection conn = pool.borrow();
+			try {
+				Statement statement = conn.createStatement();
+				try {
+					ResultSet rs = statement.executeQuery(ALL_DEFINITIONS);
+
+					while (rs.next()) {
+						add(new Definition(
+								rs.getString("term"),
+								rs.getString("definition"),
+								rs.getString("rank"),
+								rs.getString("defID")));
+					}
+				} finally {
+					statement.close();
+				}
+			} finally {
+				pool.release(conn);
+			}
+			loaded = true;
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void addWindows(String term) {
+		for (String window : windowsOf(term)) {
+			List<String> owners = windows.get(window);
+			if (owners == null) {
+				owners = new ArrayList<String>(1);
+				windows.put(window, owners);
+			}
+			owners.add(term);
+		}
+	}
+
+	private void removeWindows(String term) {
+		for (String window : windowsOf(term)) {
+			List<String> owners = windows.get(window);
+			if (owners != null) {
+				owners.remove(term);
+				if (owners.isEmpty()) {
+					windows.remove(window);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns every non-empty string made by cutting up to MAX_EXTRA
+	 * characters, in all, from the ends of the term
+	 */
+	private static Set<String> windowsOf(String term) {
+		Set<String> results = new HashSet<String>();
+
+		for (int front = 0; front <= MAX_EXTRA; front++) {
+			for (int back = 0; front + back <= MAX_EXTRA; back++) {
+				if (front + back < term.length()) {
+					results.add(term.substring(front, term.length() - back));
+				}
+			}
+		}
+		return results;
+	}
+
+	private static String normalise(String term) {
+		return term.toLowerCase();
+	}
+}
@@ -0,0 +1,255 @@
+package ubergloss.services;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Limits how much search work runs at once, by each search's estimated
+ * cost, so a handful of expensive searches can't starve the rest.
+ *
+ * A search costing more than the most any one search may is degraded, its
+ * short terms matched at a lower distance, and turned away if that still
+ * costs too much. A search that fits waits until the searches already
+ * running leave room for it in the budget, and is turned away if it waits
+ * longer than the queue timeout. A search is never charged more than the
+ * whole budget, so one that is let through can always run on its own.
+ *
+ * A batch of searches is admitted as one, each search degraded or not on
+ * its own, and the batch charged their total cost. The whole batch is
+ * turned away if any of its searches would be.
+ *
+ * Each decision is counted, and the counts can be watched through JMX.
+ *
+ * @author George Kinsman
+ *
+ */
+public class AdmissionControl implements AdmissionControlMBean {
+
+	/**
+	 * A search's or a batch's share of the budget, to be released once it
+	 * finishes
+	 */
+	public class Ticket {
+		private final long charge;
+		private final boolean[] degraded;
+		private boolean released = false;
+
+		private Ticket(long charge, boolean[] degraded) {
+			this.charge = charge;
+			this.degraded = degraded;
+		}
+
+		/**
+		 * @return whether the search is to match its short terms at the
+		 *         degraded distance
+		 */
+		public boolean isDegraded() {
+			return isDegraded(0);
+		}
+
+		/**
+		 * @param search
+		 *            the search's position in the batch
+		 * @return whether that search is to match its short terms at the
+		 *         degraded distance
+		 */
+		public boolean isDegraded(int search) {
+			return degraded[search];
+		}
+
+		/**
+		 * Gives the search's share of the budget back; only the first call
+		 * does anything
+		 */
+		public void release() {
+			synchronized (AdmissionControl.this) {
+				if (!released) {
+					released = true;
+					inFlight -= charge;
+					AdmissionControl.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	private long budget;
+	private long maxQueryCost;
+	private long queueTimeoutNanos;
+	private long inFlight = 0;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong degraded = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param budget
+	 *            the total cost of the searches that may run at once
+	 * @param maxQueryCost
+	 *            the most a single search may cost before it's degraded
+	 * @param queueTimeoutMillis
+	 *            how long a search may wait for room before it's turned
+	 *            away
+	 */
+	public AdmissionControl(long budget, long maxQueryCost,
+			long queueTimeoutMillis) {
+		setBudget(budget);
+		setMaxQueryCost(maxQueryCost);
+		setQueueTimeoutMillis(queueTimeoutMillis);
+	}
+
+	/**
+	 * Registers this admission control with the platform MBean server
+	 *
+	 * @param objectName
+	 *            eg. ubergloss:type=AdmissionControl
+	 */
+	public void register(String objectName) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName(objectName));
+	}
+
+	/**
+	 * Lets a search through, waiting for room in the budget if needed
+	 *
+	 * @param cost
+	 *            the search's estimated cost
+	 * @param degradedCost
+	 *            its estimated cost if it were degraded
+	 * @return the search's ticket, to be released once it finishes
+	 * @throws SearchRejectedException
+	 *             if the search costs too much or waited too long
+	 */
+	public Ticket admit(long cost, long degradedCost) {
+		return admitAll(new long[] { cost }, new long[] { degradedCost });
+	}
+
+	/**
+	 * Lets a batch of searches through together, waiting for room in the
+	 * budget for all of them if needed
+	 *
+	 * @param costs
+	 *            each search's estimated cost
+	 * @param degradedCosts
+	 *            each search's estimated cost if it were degraded
+	 * @return the batch's ticket, to be released once every search in it
+	 *         finishes
+	 * @throws SearchRejectedException
+	 *             if any search costs too much or the batch waited too long
+	 */
+	public synchronized Ticket admitAll(long[] costs, long[] degradedCosts) {
+		if (costs.length != degradedCosts.length)
+			throw new IllegalArgumentException(
+					"every search must have a cost and a degraded cost.");
+
+		boolean[] degrade = new boolean[costs.length];
+		long cost = 0;
+		int degrading = 0;
+		for (int i = 0; i < costs.length; i++) {
+			if (costs[i] > maxQueryCost) {
+				if (degradedCosts[i] > maxQueryCost) {
+					rejected.addAndGet(costs.length);
+					throw new SearchRejectedException("the search would cost "
+							+ degradedCosts[i] + ", more than the most allowed, "
+							+ maxQueryCost);
+				}
+				degrade[i] = true;
+				degrading++;
+			}
+			cost += degrade[i] ? degradedCosts[i] : costs[i];
+		}
+
+		long charge = Math.min(cost, budget);
+		if (inFlight + charge > budget) {
+			queued.addAndGet(costs.length);
+
+			long deadline = System.nanoTime() + queueTimeoutNanos;
+			while (inFlight + charge > budget) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					rejected.addAndGet(costs.length);
+					throw new SearchRejectedException(
+							"the search waited too long for other searches to finish");
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					rejected.addAndGet(costs.length);
+					throw new SearchRejectedException(
+							"interrupted waiting for other searches to finish");
+				}
+			}
+		}
+
+		inFlight += charge;
+		degraded.addAndGet(degrading);
+		admitted.addAndGet(costs.length);
+		return new Ticket(charge, degrade);
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getQueued() {
+		return queued.get();
+	}
+
+	public long getDegraded() {
+		return degraded.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public synchronized long getInFlightCost() {
+		return inFlight;
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	public synchronized void setBudget(long budget) {
+		if (budget < 1)
+			throw new IllegalArgumentException("the budget must be positive.");
+		this.budget = budget;
+		// a larger budget may make room for searches already waiting
+		notifyAll();
+	}
+
+	public synchronized long getMaxQueryCost() {
+		return maxQueryCost;
+	}
+
+	public synchronized void setMaxQueryCost(long cost) {
+		if (cost < 1)
+			throw new IllegalArgumentException(
+					"the most a search may cost must be positive.");
+		maxQueryCost = cost;
+	}
+
+	public synchronized long getQueueTimeoutMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos);
+	}
+
+	public synchronized void setQueueTimeoutMillis(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException(
+					"the queue timeout must not be negative.");
+		queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	public void reset() {
+		admitted.set(0);
+		queued.set(0);
+		degraded.set(0);
+		rejected.set(0);
+	}
+}
@@ -0,0 +1,53 @@
+package ubergloss.services;
+
+/**
+ * The management interface of AdmissionControl, as seen through JMX
+ *
+ * @author George Kinsman
+ *
+ */
+public interface AdmissionControlMBean {
+
+	/**
+	 * @return how many searches have been let through, degraded or not
+	 */
+	public long getAdmitted();
+
+	/**
+	 * @return how many searches have had to wait for room
+	 */
+	public long getQueued();
+
+	/**
+	 * @return how many searches have had their short terms degraded
+	 */
+	public long getDegraded();
+
+	/**
+	 * @return how many searches have been turned away
+	 */
+	public long getRejected();
+
+	/**
+	 * @return the cost of the searches running now
+	 */
+	public long getInFlightCost();
+
+	public long getBudget();
+
+	public void setBudget(long budget);
+
+	public long getMaxQueryCost();
+
+	public void setMaxQueryCost(long cost);
+
+	public long getQueueTimeoutMillis();
+
+	public void setQueueTimeoutMillis(long millis);
+
+	/**
+	 * Forgets the counts so far
+	 */
+	public void reset();
+
+}
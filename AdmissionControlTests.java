@@ -0,0 +1,119 @@
+package ubergloss.serviceTests;
+
+import ubergloss.services.AdmissionControl;
+import ubergloss.services.SearchRejectedException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AdmissionControlTests {
+
+	@Test
+	public void admit_WithinBudget_AdmittedWhole() {
+		AdmissionControl control = new AdmissionControl(100, 50, 0);
+
+		AdmissionControl.Ticket ticket = control.admit(40, 10);
+
+		assertFalse(ticket.isDegraded());
+		assertEquals(40, control.getInFlightCost());
+		assertEquals(1, control.getAdmitted());
+
+		ticket.release();
+		ticket.release();
+		assertEquals(0, control.getInFlightCost());
+	}
+
+	@Test
+	public void admit_OverMaxQueryCost_Degraded() {
+		AdmissionControl control = new AdmissionControl(100, 50, 0);
+
+		AdmissionControl.Ticket ticket = control.admit(5000, 30);
+
+		assertTrue(ticket.isDegraded());
+		assertEquals(30, control.getInFlightCost());
+		assertEquals(1, control.getDegraded());
+	}
+
+	@Test
+	public void admit_OverMaxQueryCostEvenDegraded_Rejected() {
+		AdmissionControl control = new AdmissionControl(100, 50, 0);
+
+		try {
+			control.admit(5000, 60);
+			fail();
+		} catch(SearchRejectedException e) {
+		}
+		assertEquals(1, control.getRejected());
+		assertEquals(0, control.getAdmitted());
+		assertEquals(0, control.getInFlightCost());
+	}
+
+	@Test
+	public void admit_BudgetFull_QueuedThenRejectedAtTimeout() {
+		AdmissionControl control = new AdmissionControl(100, 100, 20);
+		control.admit(80, 80);
+
+		try {
+			control.admit(30, 30);
+			fail();
+		} catch(SearchRejectedException e) {
+		}
+		assertEquals(1, control.getQueued());
+		assertEquals(1, control.getRejected());
+	}
+
+	@Test
+	public void admit_BudgetFull_AdmittedOnceReleased() throws Exception {
+		AdmissionControl control = new AdmissionControl(100, 100, 10000);
+		final AdmissionControl.Ticket first = control.admit(80, 80);
+
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch(InterruptedException e) {
+				}
+				first.release();
+			}
+		};
+		releaser.start();
+
+		AdmissionControl.Ticket second = control.admit(30, 30);
+		releaser.join();
+
+		assertFalse(second.isDegraded());
+		assertEquals(1, control.getQueued());
+		assertEquals(30, control.getInFlightCost());
+	}
+
+	@Test
+	public void admitAll_OneSearchOverMaxQueryCost_OnlyItDegraded() {
+		AdmissionControl control = new AdmissionControl(100, 50, 0);
+
+		AdmissionControl.Ticket ticket = control.admitAll(new long[] { 40, 5000 },
+				new long[] { 10, 30 });
+
+		assertFalse(ticket.isDegraded(0));
+		assertTrue(ticket.isDegraded(1));
+		assertEquals(70, control.getInFlightCost());
+		assertEquals(2, control.getAdmitted());
+		assertEquals(1, control.getDegraded());
+
+		ticket.release();
+		assertEquals(0, control.getInFlightCost());
+	}
+
+	@Test
+	public void admitAll_OneSearchTooCostlyEvenDegraded_WholeBatchRejected() {
+		AdmissionControl control = new AdmissionControl(100, 50, 0);
+
+		try {
+			control.admitAll(new long[] { 40, 5000 }, new long[] { 10, 60 });
+			fail();
+		} catch(SearchRejectedException e) {
+		}
+		assertEquals(0, control.getAdmitted());
+		assertEquals(0, control.getInFlightCost());
+	}
+
+}
@@ -0,0 +1,132 @@
+package ubergloss.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A FuzzyTermIndex backed by a Burkhard-Keller tree. Each child of a node is
+ * stored under its edit distance from that node, so by the triangle
+ * inequality a search within distance k of a query only needs to visit the
+ * children whose edge lies within k of the query's distance to the node.
+ * 
+ * Removed terms are only marked as deleted, as taking a node out of a
+ * BK-tree means re-inserting its whole subtree. Adding the term again
+ * revives the node.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public class BKTreeTermIndex extends AbstractFuzzyTermIndex {
+
+	private static class Node {
+		final String term;
+		boolean deleted;
+
+		int[] edges = new int[0];
+		Node[] children = new Node[0];
+
+		Node(String term) {
+			this.term = term;
+		}
+
+		Node child(int distance) {
+			for (int i = 0; i < edges.length; i++) {
+				if (edges[i] == distance) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		void addChild(int distance, Node child) {
+			int[] newEdges = new int[edges.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+
+			System.arraycopy(edges, 0, newEdges, 0, edges.length);
+			System.arraycopy(children, 0, newChildren, 0, children.length);
+			newEdges[edges.length] = distance;
+			newChildren[children.length] = child;
+
+			edges = newEdges;
+			children = newChildren;
+		}
+	}
+
+	private Node root;
+	private Map<String, Node> nodes = new HashMap<String, Node>();
+
+	public BKTreeTermIndex(ConnectionPool pool) {
+		super(pool);
+	}
+
+	public BKTreeTermIndex() {
+		super();
+	}
+
+	@Override
+	protected void addTerm(String term) {
+		Node existing = nodes.get(term);
+		if (existing != null) {
+			existing.deleted = false;
+			return;
+		}
+
+		Node node = new Node(term);
+		nodes.put(term, node);
+
+		if (root == null) {
+			root = node;
+			return;
+		}
+
+		Node current = root;
+		while (true) {
+			int distance = EditDistance.distance(current.term, term);
+			Node child = current.child(distance);
+
+			if (child == null) {
+				current.addChild(distance, node);
+				return;
+			}
+			current = child;
+		}
+	}
+
+	@Override
+	protected void removeTerm(String term) {
+		Node node = nodes.get(term);
+		if (node != null) {
+			node.deleted = true;
+		}
+	}
+
+	@Override
+	protected List<String> findTerms(String term, int distance) {
+		List<String> matches = new ArrayList<String>();
+
+		if (root == null) {
+			return matches;
+		}
+
+		List<Node> toVisit = new ArrayList<Node>();
+		toVisit.add(root);
+
+		while (!toVisit.isEmpty()) {
+			Node node = toVisit.remove(toVisit.size() - 1);
+			int d = EditDistance.distance(node.term, term);
+
+			if (d <= distance && !node.deleted) {
+				matches.add(node.term);
+			}
+
+			for (int i = 0; i < node.edges.length; i++) {
+				if (Math.abs(node.edges[i] - d) <= distance) {
+					toVisit.add(node.children[i]);
+				}
+			}
+		}
+		return matches;
+	}
+}
@@ -0,0 +1,97 @@
+package ubergloss.services;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+/**
+ * The connections a FanOut task has borrowed, so the statements running on
+ * them can be cancelled at the deadline. JDBC drivers take no notice of a
+ * thread being interrupted, so without this a task given up on would carry
+ * on with its query, and hold its connection, until the database finished.
+ *
+ * FanOut makes one for each task and sets it as current on the thread
+ * running the task. ConnectionPool registers each connection that thread
+ * borrows, and unregisters it on release, before anyone else can borrow it.
+ * Once cancelled, the task can't borrow another.
+ *
+ * @author George Kinsman
+ *
+ */
+class Cancellation {
+
+	private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<Cancellation>();
+
+	private final List<PooledConnection> borrowed = new ArrayList<PooledConnection>();
+	private volatile boolean cancelled;
+
+	/**
+	 * @return the cancellation of the task running on this thread, or null
+	 *         if it isn't running a FanOut task
+	 */
+	static Cancellation current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Throws if the task running on this thread has been cancelled, for
+	 * work that runs several statements on one connection to check between
+	 * them
+	 */
+	static void check() throws SQLException {
+		Cancellation current = CURRENT.get();
+		if (current != null && current.cancelled)
+			throw new SQLException("the lookup was cancelled at its deadline");
+	}
+
+	/**
+	 * Makes this the current cancellation until end is called
+	 *
+	 * @return the cancellation it replaces, to be given to end
+	 */
+	Cancellation begin() {
+		Cancellation previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+
+	void end(Cancellation previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * @return false, leaving the connection unregistered, if the task has
+	 *         already been cancelled
+	 */
+	synchronized boolean register(PooledConnection pooled) {
+		if (cancelled) {
+			return false;
+		}
+		borrowed.add(pooled);
+		return true;
+	}
+
+	/**
+	 * Waits for a cancel under way to finish, so a statement is never
+	 * cancelled once its connection is back in the pool
+	 */
+	synchronized void unregister(PooledConnection pooled) {
+		borrowed.remove(pooled);
+	}
+
+	/**
+	 * Cancels every statement on the connections the task holds
+	 */
+	synchronized void cancel() {
+		cancelled = true;
+		for (PooledConnection pooled : borrowed) {
+			pooled.cancelStatements();
+		}
+	}
+}
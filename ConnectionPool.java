@@ -0,0 +1,269 @@
+package ubergloss.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ubergloss.connectors.AbstractConnector;
+
+/**
+ * A bounded pool of database connections, each with its own cache of
+ * prepared statements. A search borrows a connection for the length of a
+ * call and gives it back, so no two threads ever share a statement and its
+ * parameters.
+ *
+ * Connections are opened through the connector as they're first needed, up
+ * to the pool's size. Once every connection is out, borrowers wait for one
+ * to be released.
+ *
+ * The connector's getDBConnection() must open a new connection on every
+ * call. The pool lends each connection to one thread at a time, so a
+ * connector that handed the same connection out twice would have threads
+ * sharing it after all; the pool refuses a connection it already holds.
+ *
+ * A connection borrowed by a FanOut task is registered with the task's
+ * Cancellation, so the statements on it can be cancelled at the deadline.
+ * Statements must be made with prepare or createStatement for that.
+ *
+ * @author George Kinsman
+ *
+ */
+public class ConnectionPool {
+
+	private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * A connection on loan from the pool, along with the statements prepared
+	 * on it so far
+	 */
+	public static class PooledConnection {
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+		// the unprepared statements made during the current loan
+		private final List<Statement> created = new ArrayList<Statement>();
+		// the task the connection is on loan to, if any
+		private Cancellation cancellation;
+
+		private PooledConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		/**
+		 * Returns a statement for the query, preparing it only the first time
+		 * it's asked for on this connection
+		 *
+		 * @param query
+		 * @return a prepared statement owned by this connection
+		 */
+		public PreparedStatement prepare(String query) throws SQLException {
+			synchronized (statements) {
+				PreparedStatement statement = statements.get(query);
+
+				if (statement == null) {
+					statement = connection.prepareStatement(query);
+					statements.put(query, statement);
+				}
+				return statement;
+			}
+		}
+
+		/**
+		 * Creates a statement which, unlike one made through getConnection,
+		 * is cancelled if the lookup borrowing the connection is
+		 *
+		 * @return a new statement, to be closed by the caller
+		 */
+		public Statement createStatement() throws SQLException {
+			Statement statement = connection.createStatement();
+			synchronized (created) {
+				created.add(statement);
+			}
+			return statement;
+		}
+
+		public Connection getConnection() {
+			return connection;
+		}
+
+		/**
+		 * Cancels whatever is running on the connection. Called from another
+		 * thread than the borrower's, which Statement.cancel allows.
+		 */
+		void cancelStatements() {
+			List<Statement> toCancel = new ArrayList<Statement>();
+			synchronized (created) {
+				toCancel.addAll(created);
+			}
+			synchronized (statements) {
+				toCancel.addAll(statements.values());
+			}
+
+			for (Statement statement : toCancel) {
+				try {
+					statement.cancel();
+				} catch (SQLException e) {
+					// already closed, or nothing to cancel
+				}
+			}
+		}
+	}
+
+	private final AbstractConnector connector;
+	private final int size;
+
+	private final BlockingQueue<PooledConnection> idle;
+	private final List<PooledConnection> all = new ArrayList<PooledConnection>();
+
+	public ConnectionPool(AbstractConnector conn, int size) {
+		if (conn == null)
+			throw new IllegalArgumentException(
+					"the connection must be non-null.");
+		if (size < 1)
+			throw new IllegalArgumentException(
+					"the pool must hold at least one connection.");
+		connector = conn;
+		this.size = size;
+		idle = new LinkedBlockingQueue<PooledConnection>(size);
+	}
+
+	/**
+	 * Borrows a connection, opening a new one if the pool isn't yet full and
+	 * otherwise waiting for one to be released. Every borrowed connection
+	 * must be given back with release, normally in a finally block.
+	 *
+	 * @return a connection for the caller's sole use
+	 * @throws SQLException
+	 *             if no connection could be had, or the lookup borrowing it
+	 *             has been cancelled
+	 */
+	public PooledConnection borrow() throws SQLException {
+		PooledConnection pooled = take();
+
+		Cancellation cancellation = Cancellation.current();
+		if (cancellation != null) {
+			if (!cancellation.register(pooled)) {
+				release(pooled);
+				throw new SQLException(
+						"the lookup was cancelled at its deadline");
+			}
+			pooled.cancellation = cancellation;
+		}
+		return pooled;
+	}
+
+	private PooledConnection take() throws SQLException {
+		long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(BORROW_TIMEOUT_SECONDS);
+
+		while (true) {
+			PooledConnection pooled = idle.poll();
+			if (pooled != null) {
+				return pooled;
+			}
+
+			synchronized (all) {
+				if (all.size() < size) {
+					pooled = new PooledConnection(open());
+					all.add(pooled);
+					return pooled;
+				}
+			}
+
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new SQLException("timed out waiting for a connection");
+
+			// wake up now and then, in case a closed connection was dropped
+			// and there's room to open another
+			try {
+				pooled = idle.poll(Math.min(remaining, TimeUnit.MILLISECONDS
+						.toNanos(100)), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted waiting for a connection");
+			}
+			if (pooled != null) {
+				return pooled;
+			}
+		}
+	}
+
+	/**
+	 * Opens a new connection through the connector, checking it isn't one
+	 * the pool already holds. Must be called while holding the lock on all.
+	 */
+	private Connection open() throws SQLException {
+		Connection connection = connector.getDBConnection();
+		if (connection == null)
+			throw new SQLException("the connector couldn't open a connection");
+
+		for (PooledConnection pooled : all) {
+			if (pooled.connection == connection)
+				throw new SQLException(
+						"the connector returned a connection the pool already holds; getDBConnection() must open a new connection on each call");
+		}
+		return connection;
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool. A connection that has been
+	 * closed is dropped, making room for a new one.
+	 *
+	 * @param pooled
+	 *            a connection from borrow
+	 */
+	public void release(PooledConnection pooled) {
+		// nothing on the connection may be cancelled once it's lent again
+		if (pooled.cancellation != null) {
+			pooled.cancellation.unregister(pooled);
+			pooled.cancellation = null;
+		}
+		synchronized (pooled.created) {
+			pooled.created.clear();
+		}
+
+		boolean closed;
+		try {
+			closed = pooled.connection.isClosed();
+		} catch (SQLException e) {
+			closed = true;
+		}
+
+		if (closed) {
+			synchronized (all) {
+				all.remove(pooled);
+			}
+		} else {
+			idle.offer(pooled);
+		}
+	}
+
+	/**
+	 * Closes every connection the pool has opened
+	 */
+	public void close() {
+		synchronized (all) {
+			for (PooledConnection pooled : all) {
+				try {
+					pooled.connection.close();
+				} catch (SQLException e) {
+					// nothing more can be done with it
+				}
+			}
+			all.clear();
+			idle.clear();
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,113 @@
+package ubergloss.serviceTests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+import ubergloss.services.ConnectionPool;
+import ubergloss.services.ConnectionPool.PooledConnection;
+import ubergloss.services.DefinitionService;
+import ubergloss.services.QueryService;
+import ubergloss.services.SearchOutcome;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTests {
+
+	private SyntheticGlossary glossary = new SyntheticGlossary(10, 1);
+
+	@Test
+	public void borrow_NewConnectionEachCall_EachBorrowGetsItsOwn() throws SQLException {
+		ConnectionPool pool = new ConnectionPool(new InMemoryConnector(glossary), 2);
+
+		PooledConnection first = pool.borrow();
+		PooledConnection second = pool.borrow();
+
+		assertNotSame(first.getConnection(), second.getConnection());
+	}
+
+	@Test(expected = SQLException.class)
+	public void borrow_ConnectorReturnsSameConnection_Refused() throws SQLException {
+		ConnectionPool pool = new ConnectionPool(new InMemoryConnector(glossary) {
+			private Connection shared = super.getDBConnection();
+
+			@Override
+			public Connection getDBConnection() {
+				return shared;
+			}
+		}, 2);
+
+		pool.borrow();
+		pool.borrow();
+	}
+
+	@Test
+	public void performSearchAsync_LookupPastDeadline_StatementCancelled() throws Exception {
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		InMemoryConnector connector = new InMemoryConnector(glossary) {
+			@Override
+			public Connection getDBConnection() {
+				final Connection connection = super.getDBConnection();
+				return proxy(Connection.class, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object result = forward(connection, method, args);
+						return result instanceof Statement ? hanging((Statement) result, cancelled) : result;
+					}
+				});
+			}
+		};
+		QueryService qs = new QueryService(connector, new DefinitionService(connector));
+
+		Set<Filter> filters = new HashSet<Filter>();
+		filters.add(new Filter(FilterTypes.Term, "term"));
+		SearchOutcome outcome = qs.performSearchAsync(filters, 200).get(5, TimeUnit.SECONDS);
+
+		assertTrue(outcome.isPartial());
+		assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+		qs.shutdown();
+	}
+
+	/**
+	 * Wraps a statement so that loading every definition hangs until the
+	 * statement is cancelled, as a slow query would
+	 */
+	private static Statement hanging(final Statement statement, final CountDownLatch cancelled) {
+		return proxy(Statement.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("cancel")) {
+					cancelled.countDown();
+					return null;
+				} else if(method.getName().equals("executeQuery") && args != null
+						&& ((String) args[0]).contains("FROM definitions, termdef")) {
+					cancelled.await(10, TimeUnit.SECONDS);
+					throw new SQLException("query cancelled");
+				}
+				return forward(statement, method, args);
+			}
+		});
+	}
+
+	private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch(InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+}
@@ -0,0 +1,175 @@
+package ubergloss.services;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import ubergloss.objects.Locale;
+import ubergloss.objects.Tag;
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+/**
+ * Loads the tags and locales for a whole group of definitions at once. Rather
+ * than two queries per definition, the definition ID's are sent in chunks of
+ * CHUNK_SIZE using an IN list, so hydrating n definitions costs 2 * (n /
+ * CHUNK_SIZE) queries.
+ *
+ * The last chunk is padded by repeating its final ID, so only one prepared
+ * statement per query is ever needed. Each distinct tag and locale is
+ * created once and handed out by ordinal, so a definition holds only the
+ * ordinals of its tags and locales. Statements are borrowed from the
+ * connection pool for each call, so the hydrator is safe to share between
+ * threads.
+ *
+ * @author George Kinsman
+ *
+ */
+class DefinitionHydrator {
+
+	static final int CHUNK_SIZE = 500;
+
+	private static final String TAGS_FOR_DEFINITIONS = "SELECT tagdef.defID, tags.tagID, tags.name FROM tags, tagdef WHERE tagdef.tagID = tags.tagID AND tagdef.defID IN (%s);";
+	private static final String LOCALES_FOR_DEFINITIONS = "SELECT localedef.defID, locales.localeID, locales.shortName FROM locales, localedef WHERE localedef.localeID = locales.localeID AND localedef.defID IN (%s);";
+
+	private static final String TAGS_QUERY = withPlaceholders(TAGS_FOR_DEFINITIONS);
+	private static final String LOCALES_QUERY = withPlaceholders(LOCALES_FOR_DEFINITIONS);
+
+	private static final int[] NONE = new int[0];
+
+	private ConnectionPool pool;
+
+	// every tag and locale loaded so far, shared by the definitions
+	private final OrdinalTable<Tag> tags = new OrdinalTable<Tag>();
+	private final OrdinalTable<Locale> locales = new OrdinalTable<Locale>();
+
+	public DefinitionHydrator(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the ordinals of the tags of every given definition, in the
+	 * order of the ID's. A definition without any tags has an empty array.
+	 *
+	 * @param defIDs
+	 *            the ID's of the definitions to load tags for, ascending
+	 * @return the ordinals of each definition's tags, for tagAt
+	 */
+	public int[][] getTagOrdinals(int[] defIDs) throws SQLException {
+		return getOrdinals(TAGS_QUERY, defIDs, true);
+	}
+
+	/**
+	 * Returns the ordinals of the locales of every given definition, in the
+	 * order of the ID's. A definition without any locales has an empty array.
+	 *
+	 * @param defIDs
+	 *            the ID's of the definitions to load locales for, ascending
+	 * @return the ordinals of each definition's locales, for localeAt
+	 */
+	public int[][] getLocaleOrdinals(int[] defIDs) throws SQLException {
+		return getOrdinals(LOCALES_QUERY, defIDs, false);
+	}
+
+	/**
+	 * @return the tag with the ordinal, shared by every definition carrying
+	 *         it
+	 */
+	public Tag tagAt(int ordinal) {
+		return tags.get(ordinal);
+	}
+
+	/**
+	 * @return the locale with the ordinal, shared by every definition in it
+	 */
+	public Locale localeAt(int ordinal) {
+		return locales.get(ordinal);
+	}
+
+	private int[][] getOrdinals(String query, int[] defIDs, boolean ofTags)
+			throws SQLException {
+		int[][] ordinals = new int[defIDs.length][];
+		int[] counts = new int[defIDs.length];
+
+		PooledConnection conn = pool.borrow();
+		try {
+			PreparedStatement statement = conn.prepare(query);
+
+			for (int from = 0; from < defIDs.length; from += CHUNK_SIZE) {
+				// a cancel between chunks finds nothing running to stop
+				Cancellation.check();
+				int to = Math.min(defIDs.length, from + CHUNK_SIZE);
+				bind(statement, defIDs, from, to);
+				ResultSet rs = statement.executeQuery();
+
+				while (rs.next()) {
+					int position = Arrays.binarySearch(defIDs, from, to, rs
+							.getInt("defID"));
+					if (position < 0) {
+						continue;
+					}
+					int ordinal = ofTags ? tagOrdinal(rs) : localeOrdinal(rs);
+
+					int[] held = ordinals[position];
+					if (held == null) {
+						held = ordinals[position] = new int[2];
+					} else if (counts[position] == held.length) {
+						held = ordinals[position] = Arrays.copyOf(held,
+								held.length * 2);
+					}
+					held[counts[position]++] = ordinal;
+				}
+				rs.close();
+			}
+		} finally {
+			pool.release(conn);
+		}
+
+		for (int i = 0; i < ordinals.length; i++) {
+			ordinals[i] = ordinals[i] == null ? NONE : Arrays.copyOf(
+					ordinals[i], counts[i]);
+		}
+		return ordinals;
+	}
+
+	// a tag is keyed by its ID and name, so a renamed tag is a new one
+	private int tagOrdinal(ResultSet rs) throws SQLException {
+		String id = rs.getString("tagID");
+		String name = rs.getString("name");
+		String key = id + '\u0000' + name;
+
+		int ordinal = tags.ordinalOf(key);
+		return ordinal >= 0 ? ordinal : tags.add(key, new Tag(name, id));
+	}
+
+	private int localeOrdinal(ResultSet rs) throws SQLException {
+		String id = rs.getString("localeID");
+		String shortName = rs.getString("shortName");
+		String key = id + '\u0000' + shortName;
+
+		int ordinal = locales.ordinalOf(key);
+		return ordinal >= 0 ? ordinal : locales.add(key, new Locale(
+				shortName, id));
+	}
+
+	private static String withPlaceholders(String query) {
+		StringBuilder placeholders = new StringBuilder();
+
+		for (int i = 0; i < CHUNK_SIZE; i++) {
+			placeholders.append(i == 0 ? "?" : ",?");
+		}
+		return String.format(query, placeholders);
+	}
+
+	/**
+	 * Binds a range of ID's to every placeholder of the statement, repeating
+	 * the last ID when the range is short.
+	 */
+	private void bind(PreparedStatement statement, int[] defIDs, int from,
+			int to) throws SQLException {
+		for (int i = 0; i < CHUNK_SIZE; i++) {
+			statement.setString(i + 1, String.valueOf(defIDs[Math.min(
+					from + i, to - 1)]));
+		}
+	}
+}
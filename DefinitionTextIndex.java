@@ -0,0 +1,310 @@
+package ubergloss.services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ubergloss.objects.Definition;
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+/**
+ * An in-memory trigram index over the text of every definition. It's used to
+ * answer "definition" filters without a LIKE '%query%' table scan.
+ *
+ * Each trigram maps to a bitmap of the ID's of the definitions containing
+ * it. A query is answered by intersecting the bitmaps of its trigrams,
+ * smallest first, then confirming the exact substring on the few
+ * definitions left over. Definition ID's must be numeric.
+ * Queries shorter than a trigram can't use the postings; they're answered by
+ * scanning every definition's text at once, packed into a TextArena. The
+ * arena is packed on the first short query, and from then on each change
+ * is made to it in place rather than packing it again.
+ *
+ * The index is loaded from the database on first use and is kept up to date
+ * through the GlossaryChangeListener callbacks.
+ *
+ * @author George Kinsman
+ *
+ */
+public class DefinitionTextIndex extends GlossaryChangeAdapter {
+
+	private static final int GRAM = 3;
+
+	private static final String ALL_DEFINITIONS = "SELECT definitions.defID, rank, definition, termdef.term FROM definitions, termdef WHERE termdef.defID = definitions.defID;";
+
+	private ConnectionPool pool;
+
+	private IntMap<Definition> definitions = new IntMap<Definition>();
+	private Map<Long, IntBitmap> postings = new HashMap<Long, IntBitmap>();
+	private boolean loaded = false;
+	// every definition's text, for queries too short for the postings, or
+	// null until one is first needed
+	private volatile TextArena arena = null;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public DefinitionTextIndex(ConnectionPool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException(
+					"the connection pool must be non-null.");
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns every definition whose text contains the query
+	 *
+	 * @param query
+	 *            the string to search for in each definition
+	 * @return a list of definitions containing the query string
+	 */
+	public List<Definition> search(String query) {
+		ensureLoaded();
+
+		List<Definition> toReturn = new ArrayList<Definition>();
+
+		lock.readLock().lock();
+		try {
+			if (query.length() < GRAM) {
+				return arena().search(query);
+			}
+
+			for (int id : candidates(query).toArray()) {
+				Definition def = definitions.get(id);
+
+				if (def.getDefinition().contains(query)) {
+					toReturn.add(def);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Returns an upper bound on the number of definitions containing the
+	 * query, without confirming any of them
+	 *
+	 * @param query
+	 *            the string to search for in each definition
+	 * @return the size of the smallest posting list of the query's trigrams
+	 */
+	public int estimate(String query) {
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			if (query.length() < GRAM) {
+				return definitions.size();
+			}
+
+			int smallest = definitions.size();
+			for (Long gram : grams(query)) {
+				IntBitmap posting = postings.get(gram);
+				smallest = Math.min(smallest, posting == null ? 0 : posting
+						.cardinality());
+			}
+			return smallest;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the definitions with the given ID's, skipping any that don't
+	 * exist
+	 *
+	 * @param ids
+	 *            numeric definition ID's
+	 * @return the definitions in the order of their ID's
+	 */
+	public List<Definition> getDefinitions(int[] ids) {
+		ensureLoaded();
+
+		List<Definition> toReturn = new ArrayList<Definition>(ids.length);
+
+		lock.readLock().lock();
+		try {
+			for (int id : ids) {
+				Definition def = definitions.get(id);
+				if (def != null) {
+					toReturn.add(def);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return toReturn;
+	}
+
+	public void definitionSaved(Definition def) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			remove(Integer.parseInt(def.getID()));
+			add(def);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void definitionDeleted(String defID) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			remove(Integer.parseInt(defID));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the arena of every definition's text, packing it first if no
+	 * short query has needed it yet. Must be called while holding the read
+	 * lock, so no change can be made while packing or searching it.
+	 */
+	private TextArena arena() {
+		TextArena current = arena;
+		if (current == null) {
+			// two readers may both pack it; either arena will do
+			List<Definition> all = new ArrayList<Definition>(definitions
+					.size());
+			for (int id : definitions.keys()) {
+				all.add(definitions.get(id));
+			}
+			current = new TextArena(all);
+			arena = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Intersects the posting lists of every trigram in the query, starting
+	 * with the shortest. The query must be at least a trigram long. Must be
+	 * called while holding the read lock.
+	 */
+	private IntBitmap candidates(String query) {
+		List<IntBitmap> lists = new ArrayList<IntBitmap>();
+		for (Long gram : grams(query)) {
+			IntBitmap posting = postings.get(gram);
+			if (posting == null) {
+				return new IntBitmap();
+			}
+			lists.add(posting);
+		}
+
+		IntBitmap[] sorted = lists.toArray(new IntBitmap[lists.size()]);
+		Arrays.sort(sorted, new Comparator<IntBitmap>() {
+			public int compare(IntBitmap a, IntBitmap b) {
+				return a.cardinality() - b.cardinality();
+			}
+		});
+
+		IntBitmap result = sorted[0];
+		for (int i = 1; i < sorted.length && !result.isEmpty(); i++) {
+			result = result.and(sorted[i]);
+		}
+		return result;
+	}
+
+	private void ensureLoaded() {
+		lock.readLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+			PooledConnection conn = pool.borrow();
+			try {
+				Statement statement = conn.createStatement();
+				ResultSet rs = statement.executeQuery(ALL_DEFINITIONS);
+
+				while (rs.next()) {
+					add(new Definition(
+							rs.getString("term"),
+							rs.getString("definition"),
+							rs.getString("rank"),
+							rs.getString("defID")));
+				}
+				statement.close();
+			} finally {
+				pool.release(conn);
+			}
+			loaded = true;
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void add(Definition def) {
+		int id = Integer.parseInt(def.getID());
+		definitions.put(id, def);
+		if (arena != null) {
+			arena.add(def);
+		}
+
+		for (Long gram : grams(def.getDefinition())) {
+			IntBitmap posting = postings.get(gram);
+			if (posting == null) {
+				posting = new IntBitmap();
+				postings.put(gram, posting);
+			}
+			posting.add(id);
+		}
+	}
+
+	private void remove(int defID) {
+		Definition old = definitions.remove(defID);
+		if (old == null) {
+			return;
+		}
+		if (arena != null) {
+			arena.remove(old.getID());
+		}
+
+		for (Long gram : grams(old.getDefinition())) {
+			IntBitmap posting = postings.get(gram);
+			if (posting != null) {
+				posting.remove(defID);
+				if (posting.isEmpty()) {
+					postings.remove(gram);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the distinct trigrams of the text, each packed into a long
+	 */
+	private static Set<Long> grams(String text) {
+		Set<Long> grams = new HashSet<Long>();
+
+		for (int i = 0; i + GRAM <= text.length(); i++) {
+			grams.add(((long) text.charAt(i) << 32)
+					| ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+		}
+		return grams;
+	}
+}
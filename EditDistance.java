@@ -0,0 +1,279 @@
+package ubergloss.services;
+
+/**
+ * Levenshtein edit distance between two strings, shared by the fuzzy term
+ * indexes and the term filter.
+ *
+ * Both methods reuse per-thread buffers, so neither allocates once a thread
+ * has seen its longest string.
+ *
+ * @author George Kinsman
+ *
+ */
+public final class EditDistance {
+
+	// the longest pattern the bit-parallel kernel can hold in one word
+	private static final int WORD = 64;
+
+	private static final int INFINITY = Integer.MAX_VALUE / 2;
+
+	/**
+	 * The working memory of one thread
+	 */
+	private static class Buffers {
+		int[] previous = new int[32];
+		int[] current = new int[32];
+
+		// match masks of the pattern's characters, by character
+		long[] ascii = new long[128];
+		char[] otherChars = new char[WORD];
+		long[] otherMasks = new long[WORD];
+		int others;
+
+		void ensureRows(int length) {
+			if (previous.length < length) {
+				previous = new int[length];
+				current = new int[length];
+			}
+		}
+	}
+
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	private EditDistance() {
+	}
+
+	/**
+	 * Returns the exact edit distance between s and t, keeping only two rows
+	 * of the matrix rather than all of it
+	 *
+	 * @param s
+	 * @param t
+	 * @return the number of insertions, deletions and substitutions needed
+	 *         to turn s into t
+	 */
+	public static int distance(String s, String t) {
+		int n = s.length();
+		int m = t.length();
+
+		if (n == 0) {
+			return m;
+		}
+		if (m == 0) {
+			return n;
+		}
+
+		Buffers buffers = BUFFERS.get();
+		buffers.ensureRows(m + 1);
+		int[] previous = buffers.previous;
+		int[] current = buffers.current;
+
+		for (int j = 0; j <= m; j++) {
+			previous[j] = j;
+		}
+
+		for (int i = 1; i <= n; i++) {
+			char s_i = s.charAt(i - 1);
+			current[0] = i;
+
+			for (int j = 1; j <= m; j++) {
+				int cost = s_i == t.charAt(j - 1) ? 0 : 1;
+
+				current[j] = Math.min(Math.min(previous[j] + 1,
+						current[j - 1] + 1), previous[j - 1] + cost);
+			}
+
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+
+		return previous[m];
+	}
+
+	/**
+	 * Returns true if the edit distance between s and t is no more than
+	 * limit. This is the same as distance(s, t) <= limit, but gives up as
+	 * soon as the limit can't be met.
+	 *
+	 * When the shorter string fits in a 64 bit word the distance is found
+	 * with Hyyro's bit-parallel version of Myers' algorithm, otherwise with a
+	 * dynamic program limited to the diagonal band of width 2 * limit + 1.
+	 *
+	 * @param s
+	 * @param t
+	 * @param limit
+	 *            the largest distance to accept
+	 * @return true if s is within limit edits of t
+	 */
+	public static boolean withinDistance(String s, String t, int limit) {
+		if (limit < 0) {
+			return false;
+		}
+
+		// keep the shorter string as the pattern
+		if (s.length() > t.length()) {
+			String swap = s;
+			s = t;
+			t = swap;
+		}
+
+		int m = s.length();
+		int n = t.length();
+
+		if (n - m > limit) {
+			return false;
+		}
+		if (m == 0) {
+			return n <= limit;
+		}
+
+		if (m <= WORD) {
+			return bitParallel(s, t, limit);
+		} else {
+			return banded(s, t, limit);
+		}
+	}
+
+	/**
+	 * Hyyro (2001), tracking the last row of the matrix one column at a time.
+	 * Stops early when even n - j matches in a row couldn't bring the score
+	 * back within the limit.
+	 */
+	private static boolean bitParallel(String pattern, String text, int limit) {
+		Buffers buffers = BUFFERS.get();
+		int m = pattern.length();
+		int n = text.length();
+
+		buffers.others = 0;
+		for (int i = 0; i < m; i++) {
+			setMask(buffers, pattern.charAt(i), 1L << i);
+		}
+
+		long last = 1L << (m - 1);
+		long pv = -1L;
+		long mv = 0L;
+		int score = m;
+		boolean within = true;
+
+		for (int j = 0; j < n; j++) {
+			long eq = mask(buffers, text.charAt(j));
+			long xv = eq | mv;
+			long xh = (((eq & pv) + pv) ^ pv) | eq;
+			long ph = mv | ~(xh | pv);
+			long mh = pv & xh;
+
+			if ((ph & last) != 0) {
+				score++;
+			} else if ((mh & last) != 0) {
+				score--;
+			}
+
+			if (score - (n - j - 1) > limit) {
+				within = false;
+				break;
+			}
+
+			ph = (ph << 1) | 1L;
+			mh = mh << 1;
+			pv = mh | ~(xv | ph);
+			mv = ph & xv;
+		}
+
+		for (int i = 0; i < m; i++) {
+			char c = pattern.charAt(i);
+			if (c < 128) {
+				buffers.ascii[c] = 0L;
+			}
+		}
+
+		return within && score <= limit;
+	}
+
+	private static void setMask(Buffers buffers, char c, long bit) {
+		if (c < 128) {
+			buffers.ascii[c] |= bit;
+			return;
+		}
+		for (int i = 0; i < buffers.others; i++) {
+			if (buffers.otherChars[i] == c) {
+				buffers.otherMasks[i] |= bit;
+				return;
+			}
+		}
+		buffers.otherChars[buffers.others] = c;
+		buffers.otherMasks[buffers.others] = bit;
+		buffers.others++;
+	}
+
+	private static long mask(Buffers buffers, char c) {
+		if (c < 128) {
+			return buffers.ascii[c];
+		}
+		for (int i = 0; i < buffers.others; i++) {
+			if (buffers.otherChars[i] == c) {
+				return buffers.otherMasks[i];
+			}
+		}
+		return 0L;
+	}
+
+	/**
+	 * Two-row dynamic program over the cells within limit of the diagonal,
+	 * giving up once a whole row exceeds the limit.
+	 */
+	private static boolean banded(String s, String t, int limit) {
+		Buffers buffers = BUFFERS.get();
+		int m = s.length();
+		int n = t.length();
+
+		buffers.ensureRows(m + 2);
+		int[] previous = buffers.previous;
+		int[] current = buffers.current;
+
+		for (int j = 0; j <= Math.min(m, limit); j++) {
+			previous[j] = j;
+		}
+		if (limit < m) {
+			previous[limit + 1] = INFINITY;
+		}
+
+		for (int i = 1; i <= n; i++) {
+			char t_i = t.charAt(i - 1);
+			int low = Math.max(1, i - limit);
+			int high = Math.min(m, i + limit);
+
+			current[low - 1] = low == 1 ? i : INFINITY;
+			int rowMinimum = current[low - 1];
+
+			for (int j = low; j <= high; j++) {
+				int cost = t_i == s.charAt(j - 1) ? 0 : 1;
+				int value = Math.min(Math.min(previous[j] + 1,
+						current[j - 1] + 1), previous[j - 1] + cost);
+
+				current[j] = value;
+				if (value < rowMinimum) {
+					rowMinimum = value;
+				}
+			}
+			if (high < m) {
+				current[high + 1] = INFINITY;
+			}
+
+			if (rowMinimum > limit) {
+				return false;
+			}
+
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+
+		return previous[m] <= limit;
+	}
+}
@@ -0,0 +1,166 @@
+package ubergloss.serviceTests;
+
+import java.util.Random;
+
+import ubergloss.services.EditDistance;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks EditDistance against the full matrix implementation QueryService
+ * used to have, over many random pairs of strings.
+ */
+public class EditDistanceTests {
+	
+	private static final int PAIRS = 20000;
+	
+	@Test
+	public void distance_RandomPairs_MatchesMatrix() {
+		Random random = new Random(7);
+		
+		for(int i = 0; i < PAIRS; i++) {
+			String s = randomString(random, 12, 3);
+			String t = randomString(random, 12, 3);
+			
+			assertEquals(s + "/" + t, matrix(s, t), EditDistance.distance(s, t));
+		}
+	}
+	
+	@Test
+	public void withinDistance_ShortRandomPairs_MatchesMatrix() {
+		Random random = new Random(11);
+		
+		for(int i = 0; i < PAIRS; i++) {
+			String s = randomString(random, 16, 3);
+			String t = randomString(random, 16, 3);
+			int limit = random.nextInt(6);
+			
+			assertEquals(s + "/" + t + "/" + limit, matrix(s, t) <= limit, 
+					EditDistance.withinDistance(s, t, limit));
+		}
+	}
+	
+	@Test
+	public void withinDistance_LongRandomPairs_MatchesMatrix() {
+		Random random = new Random(13);
+		
+		for(int i = 0; i < PAIRS / 10; i++) {
+			String s = randomString(random, 150, 2);
+			String t = mutate(random, s, random.nextInt(8));
+			int limit = random.nextInt(8);
+			
+			assertEquals(s + "/" + t + "/" + limit, matrix(s, t) <= limit, 
+					EditDistance.withinDistance(s, t, limit));
+		}
+	}
+	
+	@Test
+	public void withinDistance_WordBoundaryLengths_MatchesMatrix() {
+		Random random = new Random(17);
+		
+		for(int length = 62; length <= 66; length++) {
+			for(int i = 0; i < 200; i++) {
+				String s = randomString(random, length, 3, length);
+				String t = mutate(random, s, random.nextInt(5));
+				int limit = random.nextInt(5);
+				
+				assertEquals(matrix(s, t) <= limit, EditDistance.withinDistance(s, t, limit));
+			}
+		}
+	}
+	
+	@Test
+	public void withinDistance_NonAsciiCharacters_MatchesMatrix() {
+		Random random = new Random(19);
+		String alphabet = "a\u00e9\u00fc\u4e2d";
+		
+		for(int i = 0; i < PAIRS / 10; i++) {
+			String s = randomString(random, alphabet, 10);
+			String t = randomString(random, alphabet, 10);
+			int limit = random.nextInt(5);
+			
+			assertEquals(matrix(s, t) <= limit, EditDistance.withinDistance(s, t, limit));
+		}
+	}
+	
+	@Test
+	public void withinDistance_EmptyStrings_ComparesLengths() {
+		assertTrue(EditDistance.withinDistance("", "", 0));
+		assertTrue(EditDistance.withinDistance("", "abc", 3));
+		assertFalse(EditDistance.withinDistance("abc", "", 2));
+		assertFalse(EditDistance.withinDistance("abc", "abc", -1));
+	}
+	
+	private static String randomString(Random random, int maxLength, int letters) {
+		return randomString(random, maxLength, letters, random.nextInt(maxLength + 1));
+	}
+	
+	private static String randomString(Random random, int maxLength, int letters, int length) {
+		StringBuilder result = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			result.append((char) ('a' + random.nextInt(letters)));
+		}
+		return result.toString();
+	}
+	
+	private static String randomString(Random random, String alphabet, int maxLength) {
+		StringBuilder result = new StringBuilder();
+		int length = random.nextInt(maxLength + 1);
+		for(int i = 0; i < length; i++) {
+			result.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return result.toString();
+	}
+	
+	private static String mutate(Random random, String s, int edits) {
+		StringBuilder result = new StringBuilder(s);
+		for(int i = 0; i < edits; i++) {
+			int position = random.nextInt(result.length() + 1);
+			int edit = random.nextInt(3);
+			
+			if(edit == 0 || result.length() == 0) {
+				result.insert(position, 'x');
+			} else if(position < result.length()) {
+				if(edit == 1) {
+					result.deleteCharAt(position);
+				} else {
+					result.setCharAt(position, 'y');
+				}
+			}
+		}
+		return result.toString();
+	}
+	
+	/**
+	 * The Levenshtein algorithm from http://www.merriampark.com/ld.htm which
+	 * QueryService used before, kept as the reference answer
+	 */
+	private static int matrix(String s, String t) {
+		int n = s.length();
+		int m = t.length();
+		if (n == 0) {
+			return m;
+		}
+		if (m == 0) {
+			return n;
+		}
+		int d[][] = new int[n + 1][m + 1];
+		
+		for (int i = 0; i <= n; i++) {
+			d[i][0] = i;
+		}
+		for (int j = 0; j <= m; j++) {
+			d[0][j] = j;
+		}
+		for (int i = 1; i <= n; i++) {
+			char s_i = s.charAt(i - 1);
+			for (int j = 1; j <= m; j++) {
+				int cost = s_i == t.charAt(j - 1) ? 0 : 1;
+				d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+						d[i - 1][j - 1] + cost);
+			}
+		}
+		return d[n][m];
+	}
+}
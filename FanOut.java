@@ -0,0 +1,294 @@
+package ubergloss.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs one task per key concurrently and gathers the results, so a search
+ * waits for its slowest lookup rather than the sum of them all.
+ *
+ * Every call has a deadline. If a task fails or the deadline passes, the
+ * tasks still running are cancelled, along with any statement they have
+ * running (see Cancellation), and the failure is rethrown to the caller.
+ * invokeUntil instead keeps whatever finished in time, and logs the
+ * failures it leaves out.
+ *
+ * Whole searches submitted to run in the background get threads of their
+ * own, so a search waiting on its lookups never holds a thread they need.
+ * Their statements are cancelled at their deadline too.
+ *
+ * @author George Kinsman
+ *
+ */
+class FanOut {
+
+	private static final Logger LOG = Logger
+			.getLogger("ubergloss.services.fanout");
+
+	/**
+	 * The work to do for a single key
+	 */
+	public interface Task<K, V> {
+		public V call(K key) throws Exception;
+	}
+
+	private final ExecutorService executor;
+	private final ExecutorService background = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ubergloss-background-"
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final ScheduledExecutorService deadlines = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ubergloss-deadlines");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	public FanOut(int threads) {
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ubergloss-search-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs the task for every key at once and waits for them all
+	 *
+	 * @param keys
+	 *            the keys to run the task for
+	 * @param task
+	 * @param timeoutMillis
+	 *            how long to wait for every task to finish
+	 * @return each key's result, in the order of the keys
+	 */
+	public <K, V> Map<K, V> invokeAll(Collection<K> keys,
+			final Task<K, V> task, long timeoutMillis) {
+		Map<K, V> results = new LinkedHashMap<K, V>();
+
+		// even a single lookup is handed to another thread, as it can only
+		// be given up on at the deadline if the caller isn't the one running
+		// it
+		CompletionService<Object> completion = new ExecutorCompletionService<Object>(
+				executor);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		List<Cancellation> cancellations = new ArrayList<Cancellation>();
+		final Map<Future<Object>, K> keyOf = new HashMap<Future<Object>, K>();
+
+		for (final K key : keys) {
+			Cancellation cancellation = new Cancellation();
+			futures.add(submit(completion, task, key, cancellation));
+			cancellations.add(cancellation);
+			keyOf.put(futures.get(futures.size() - 1), key);
+		}
+
+		Map<K, V> finished = new HashMap<K, V>();
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				long remaining = deadline - System.nanoTime();
+				Future<Object> done = completion.poll(Math.max(0, remaining),
+						TimeUnit.NANOSECONDS);
+
+				if (done == null)
+					throw new TimeoutException("search did not finish within "
+							+ timeoutMillis + "ms");
+
+				@SuppressWarnings("unchecked")
+				V value = (V) done.get();
+				finished.put(keyOf.get(done), value);
+			}
+		} catch (ExecutionException e) {
+			cancel(futures, cancellations);
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (TimeoutException e) {
+			cancel(futures, cancellations);
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			cancel(futures, cancellations);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+
+		for (K key : keys) {
+			results.put(key, finished.get(key));
+		}
+		return results;
+	}
+
+	/**
+	 * Runs the task for every key at once, and waits for them until the
+	 * deadline. Unlike invokeAll, a task that fails or is still running at
+	 * the deadline is left out rather than failing the call; those still
+	 * running are cancelled, and failures are logged.
+	 *
+	 * @param keys
+	 *            the keys to run the task for
+	 * @param task
+	 * @param deadline
+	 *            the System.nanoTime() to stop waiting at
+	 * @return the results of the keys that finished in time, in the order of
+	 *         the keys
+	 */
+	public <K, V> Map<K, V> invokeUntil(Collection<K> keys,
+			final Task<K, V> task, long deadline) {
+		CompletionService<Object> completion = new ExecutorCompletionService<Object>(
+				executor);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		List<Cancellation> cancellations = new ArrayList<Cancellation>();
+		final Map<Future<Object>, K> keyOf = new HashMap<Future<Object>, K>();
+
+		for (final K key : keys) {
+			Cancellation cancellation = new Cancellation();
+			futures.add(submit(completion, task, key, cancellation));
+			cancellations.add(cancellation);
+			keyOf.put(futures.get(futures.size() - 1), key);
+		}
+
+		Map<K, V> finished = new HashMap<K, V>();
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				long remaining = deadline - System.nanoTime();
+				Future<Object> done = completion.poll(Math.max(0, remaining),
+						TimeUnit.NANOSECONDS);
+				if (done == null) {
+					break;
+				}
+
+				try {
+					@SuppressWarnings("unchecked")
+					V value = (V) done.get();
+					finished.put(keyOf.get(done), value);
+				} catch (ExecutionException e) {
+					// left out, as if it hadn't finished, but not silently
+					LOG.log(Level.WARNING, "lookup for " + keyOf.get(done)
+							+ " failed and was left out", e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		cancel(futures, cancellations);
+
+		Map<K, V> results = new LinkedHashMap<K, V>();
+		for (K key : keys) {
+			if (finished.containsKey(key)) {
+				results.put(key, finished.get(key));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Runs the work on a background thread of its own. Any statement the
+	 * work has running at the deadline is cancelled, and it can borrow no
+	 * more connections, so it fails if it's still using the database then.
+	 *
+	 * @param work
+	 * @param deadline
+	 *            the System.nanoTime() to cancel the work's statements at
+	 * @return the work's eventual result, to be waited for or built on
+	 */
+	public <V> CompletableFuture<V> submit(final Supplier<V> work,
+			final long deadline) {
+		return CompletableFuture.supplyAsync(new Supplier<V>() {
+			public V get() {
+				final Cancellation cancellation = new Cancellation();
+				ScheduledFuture<?> timer = deadlines.schedule(new Runnable() {
+					public void run() {
+						cancellation.cancel();
+					}
+				}, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+				Cancellation previous = cancellation.begin();
+				try {
+					return work.get();
+				} finally {
+					cancellation.end(previous);
+					timer.cancel(false);
+				}
+			}
+		}, background);
+	}
+
+	/**
+	 * Stops the worker threads once their current tasks finish
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		background.shutdown();
+		deadlines.shutdown();
+	}
+
+	/**
+	 * Runs the task for the key with its cancellation current
+	 */
+	private static <K, V> Future<Object> submit(
+			CompletionService<Object> completion, final Task<K, V> task,
+			final K key, final Cancellation cancellation) {
+		return completion.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				Cancellation previous = cancellation.begin();
+				try {
+					return task.call(key);
+				} finally {
+					cancellation.end(previous);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Cancels the statements of the tasks still running, as interrupting
+	 * them doesn't stop a query, then the tasks themselves
+	 */
+	private static void cancel(List<Future<Object>> futures,
+			List<Cancellation> cancellations) {
+		for (int i = 0; i < futures.size(); i++) {
+			if (!futures.get(i).isDone()) {
+				cancellations.get(i).cancel();
+				futures.get(i).cancel(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package ubergloss.services;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+
+/**
+ * The filters of one search, checked against each definition in the order
+ * most likely to reject it soonest for the least work. A filter's place is
+ * its cost per check over the share of definitions it rejects, so a cheap
+ * locale check that rejects most rows runs before an edit distance check
+ * that rejects few.
+ *
+ * Costs are sampled once every few definitions, and rejections are counted
+ * for every check. Both are shared between searches through a Statistics,
+ * by filter type, so a new chain starts from what earlier searches
+ * measured. Each chain also counts its own filters' rejections, and
+ * reorders itself as it learns them.
+ *
+ * The order only changes how soon a definition is rejected, never whether
+ * it is, so the results are the same as checking every filter.
+ *
+ * Not thread-safe; each search makes its own.
+ *
+ * @author George Kinsman
+ *
+ */
+class FilterChain {
+
+	// definitions checked between reorderings
+	private static final int RETUNE_EVERY = 256;
+	// one in this many definitions has each of its checks timed
+	private static final int SAMPLE_EVERY = 32;
+
+	/**
+	 * Checks a definition against one filter
+	 */
+	interface Check {
+		boolean passes(Definition def, int id, Filter filter);
+	}
+
+	private final Filter[] filters;
+	private final Check check;
+	private final Statistics statistics;
+
+	// the positions of the filters, in the order they're checked
+	private final int[] order;
+	private final long[] checks;
+	private final long[] rejections;
+	private final long[] samples;
+	private final long[] sampledNanos;
+	// the checks and rejections already added to the statistics
+	private final long[] flushedChecks;
+	private final long[] flushedRejections;
+	private int definitions = 0;
+
+	public FilterChain(Set<Filter> filters, Check check, Statistics statistics) {
+		this.filters = filters.toArray(new Filter[filters.size()]);
+		this.check = check;
+		this.statistics = statistics;
+
+		int n = this.filters.length;
+		order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		checks = new long[n];
+		rejections = new long[n];
+		samples = new long[n];
+		sampledNanos = new long[n];
+		flushedChecks = new long[n];
+		flushedRejections = new long[n];
+
+		reorder();
+	}
+
+	/**
+	 * @param def
+	 * @param id
+	 *            the definition's ID, for the tag and locale checks
+	 * @return whether the definition passes every filter
+	 */
+	public boolean passes(Definition def, int id) {
+		boolean sampled = ++definitions % SAMPLE_EVERY == 0;
+		boolean passes = sampled ? passesTimed(def, id) : passesUntimed(def,
+				id);
+
+		if (definitions % RETUNE_EVERY == 0) {
+			flush();
+			reorder();
+		}
+		return passes;
+	}
+
+	private boolean passesUntimed(Definition def, int id) {
+		for (int position : order) {
+			checks[position]++;
+			if (!check.passes(def, id, filters[position])) {
+				rejections[position]++;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean passesTimed(Definition def, int id) {
+		for (int position : order) {
+			long start = System.nanoTime();
+			boolean passes = check.passes(def, id, filters[position]);
+			sampledNanos[position] += System.nanoTime() - start;
+			samples[position]++;
+
+			checks[position]++;
+			if (!passes) {
+				rejections[position]++;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the filters in the order they're currently checked, for tests
+	 * and tracing
+	 */
+	Filter[] order() {
+		Filter[] ordered = new Filter[order.length];
+		for (int i = 0; i < order.length; i++) {
+			ordered[i] = filters[order[i]];
+		}
+		return ordered;
+	}
+
+	/**
+	 * Sorts the filters by expected cost per rejection, cheapest first. The
+	 * chain's own rejection counts are used once it has enough of them, and
+	 * the shared ones for its filters' types until then.
+	 */
+	private void reorder() {
+		double[] ranks = new double[filters.length];
+		for (int i = 0; i < filters.length; i++) {
+			FilterTypes type = filters[i].getType();
+			double rejectionRate = checks[i] >= RETUNE_EVERY ? (rejections[i] + 1.0)
+					/ (checks[i] + 2.0)
+					: statistics.rejectionRate(type);
+			ranks[i] = statistics.cost(type) / rejectionRate;
+		}
+
+		// there are only ever a handful of filters
+		for (int i = 1; i < order.length; i++) {
+			int position = order[i];
+			int j = i - 1;
+			while (j >= 0 && ranks[order[j]] > ranks[position]) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = position;
+		}
+	}
+
+	/**
+	 * Adds what the chain has measured since it last did so to the shared
+	 * statistics
+	 */
+	private void flush() {
+		for (int i = 0; i < filters.length; i++) {
+			statistics.add(filters[i].getType(), checks[i] - flushedChecks[i],
+					rejections[i] - flushedRejections[i], samples[i],
+					sampledNanos[i]);
+			flushedChecks[i] = checks[i];
+			flushedRejections[i] = rejections[i];
+			samples[i] = 0;
+			sampledNanos[i] = 0;
+		}
+	}
+
+	/**
+	 * The cost and rejection rate of each type of filter, measured by every
+	 * chain. Updated without locking, so it can be shared by every search.
+	 */
+	static class Statistics {
+
+		// nanoseconds a check is assumed to take before any are measured:
+		// tags and locales are a bitmap lookup, definitions a substring
+		// search and terms an edit distance
+		private static final double TAG_COST = 50;
+		private static final double LOCALE_COST = 50;
+		private static final double DEFINITION_COST = 500;
+		private static final double TERM_COST = 2000;
+		// the rejection rate assumed before any are counted
+		private static final double DEFAULT_REJECTION_RATE = 0.5;
+		// samples needed before the measured cost replaces the assumed one
+		private static final int MIN_SAMPLES = 16;
+
+		private final int types = FilterTypes.values().length;
+		private final AtomicLongArray checks = new AtomicLongArray(types);
+		private final AtomicLongArray rejections = new AtomicLongArray(types);
+		private final AtomicLongArray samples = new AtomicLongArray(types);
+		private final AtomicLongArray sampledNanos = new AtomicLongArray(types);
+
+		void add(FilterTypes type, long checked, long rejected,
+				long sampled, long nanos) {
+			int i = type.ordinal();
+			if (checked > 0) {
+				checks.addAndGet(i, checked);
+				rejections.addAndGet(i, rejected);
+			}
+			if (sampled > 0) {
+				samples.addAndGet(i, sampled);
+				sampledNanos.addAndGet(i, nanos);
+			}
+		}
+
+		/**
+		 * @return the mean nanoseconds to check a definition against a
+		 *         filter of the type
+		 */
+		public double cost(FilterTypes type) {
+			int i = type.ordinal();
+			long sampled = samples.get(i);
+			if (sampled < MIN_SAMPLES) {
+				return defaultCost(type);
+			}
+			// never free, so a filter that rejects nothing still goes last
+			return Math.max(1.0, (double) sampledNanos.get(i) / sampled);
+		}
+
+		/**
+		 * @return the share of the definitions checked against a filter of
+		 *         the type that it rejected
+		 */
+		public double rejectionRate(FilterTypes type) {
+			int i = type.ordinal();
+			long checked = checks.get(i);
+			if (checked == 0) {
+				return DEFAULT_REJECTION_RATE;
+			}
+			return (rejections.get(i) + 1.0) / (checked + 2.0);
+		}
+
+		private static double defaultCost(FilterTypes type) {
+			if (type == FilterTypes.Tag) {
+				return TAG_COST;
+			} else if (type == FilterTypes.Locale) {
+				return LOCALE_COST;
+			} else if (type == FilterTypes.Definition) {
+				return DEFINITION_COST;
+			} else {
+				return TERM_COST;
+			}
+		}
+	}
+}
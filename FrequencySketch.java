@@ -0,0 +1,91 @@
+package ubergloss.services;
+
+/**
+ * A count-min sketch of how often each key has been seen recently, used to
+ * decide whether a new cache entry is worth more than the one it would
+ * evict. Each key has four 4 bit counters, one per row; its frequency is the
+ * smallest of them.
+ * 
+ * Once enough keys have been counted every counter is halved, so keys that
+ * were popular long ago fade out.
+ * 
+ * Not thread-safe; callers lock around it.
+ * 
+ * @author George Kinsman
+ * 
+ */
+class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = { 0x97cb3127, 0xb0a64ee5, 0x8f4d5e11,
+			0x1e8a2c6d };
+
+	private final byte[] counters;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * @param expectedKeys
+	 *            roughly how many distinct keys are live at once
+	 */
+	public FrequencySketch(int expectedKeys) {
+		int width = Integer.highestOneBit(Math.max(16, expectedKeys - 1)) << 1;
+
+		counters = new byte[width * DEPTH];
+		mask = width - 1;
+		sampleSize = width * 10;
+	}
+
+	/**
+	 * Counts one more sighting of the key
+	 */
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+
+		for (int row = 0; row < DEPTH; row++) {
+			int index = indexOf(hash, row);
+			if (counters[index] < MAX_COUNT) {
+				counters[index]++;
+				added = true;
+			}
+		}
+
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * @return an estimate of how often the key has been seen recently
+	 */
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+
+		for (int row = 0; row < DEPTH; row++) {
+			frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+		}
+		return frequency;
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+		h ^= h >>> 16;
+		return row * (mask + 1) + (h & mask);
+	}
+
+	private void reset() {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = (byte) (counters[i] >>> 1);
+		}
+		additions /= 2;
+	}
+
+	private static int spread(int hash) {
+		hash *= 0x9e3779b9;
+		return hash ^ (hash >>> 15);
+	}
+}
@@ -0,0 +1,59 @@
+package ubergloss.services;
+
+import java.util.List;
+
+import ubergloss.objects.Definition;
+
+/**
+ * An in-memory index of every term in the glossary which can find all terms
+ * within a given edit distance of a query, replacing the SEARCH stored
+ * procedure.
+ * 
+ * Implementations are kept up to date through the GlossaryChangeListener
+ * callbacks.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public interface FuzzyTermIndex extends GlossaryChangeListener {
+
+	/**
+	 * Returns the first definition of every term within the given edit
+	 * distance of the query. Terms are compared case-insensitively.
+	 * 
+	 * @param term
+	 *            the term to search for
+	 * @param distance
+	 *            the largest edit distance a match may have
+	 * @return the first definition of each matching term
+	 */
+	public List<Definition> search(String term, int distance);
+
+	/**
+	 * Returns every definition of every term containing the query with no
+	 * more than extra characters around it, which are exactly the terms a
+	 * term filter lets through. Terms are compared case-insensitively.
+	 * 
+	 * Each term's windows, the term less a few characters from its ends,
+	 * are indexed, so this is a single lookup rather than a fuzzy search.
+	 * 
+	 * @param term
+	 *            the term to search for
+	 * @param extra
+	 *            the most characters a match may have around the query, up
+	 *            to 3
+	 * @return every definition of each matching term
+	 */
+	public List<Definition> searchContaining(String term, int extra);
+
+	/**
+	 * @return how many definitions searchContaining would return
+	 */
+	public int countContaining(String term, int extra);
+
+	/**
+	 * @return the number of distinct terms in the index
+	 */
+	public int size();
+
+}
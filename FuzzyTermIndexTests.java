@@ -0,0 +1,162 @@
+package ubergloss.serviceTests;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import ubergloss.objects.Definition;
+import ubergloss.services.BKTreeTermIndex;
+import ubergloss.services.EditDistance;
+import ubergloss.services.FuzzyTermIndex;
+import ubergloss.services.SymSpellTermIndex;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class FuzzyTermIndexTests {
+	
+	private static final String[] TERMS = { "internet", "intranet", "interest",
+		"science", "sciences", "conscience", "physics", "physic", "web", "wed" };
+	
+	private List<FuzzyTermIndex> indexes;
+	
+	@Before
+	public void setup() {
+		indexes = new ArrayList<FuzzyTermIndex>();
+		indexes.add(new BKTreeTermIndex());
+		indexes.add(new SymSpellTermIndex(3));
+		
+		for(FuzzyTermIndex index : indexes) {
+			for(int i = 0; i < TERMS.length; i++) {
+				index.definitionSaved(new Definition(TERMS[i], "def", "0", String.valueOf(i)));
+			}
+		}
+	}
+	
+	@Test
+	public void search_ExactTerm_FindsTerm() {
+		for(FuzzyTermIndex index : indexes) {
+			assertEquals(set("web"), terms(index.search("web", 0)));
+		}
+	}
+	
+	@Test
+	public void search_DifferentCase_FindsTerm() {
+		for(FuzzyTermIndex index : indexes) {
+			assertEquals(set("science"), terms(index.search("SCIENCE", 0)));
+		}
+	}
+	
+	@Test
+	public void search_DistanceOne_FindsNeighbours() {
+		for(FuzzyTermIndex index : indexes) {
+			assertEquals(set("physics", "physic"), terms(index.search("physics", 1)));
+		}
+	}
+	
+	@Test
+	public void search_DeletedDefinition_NotFound() {
+		for(FuzzyTermIndex index : indexes) {
+			index.definitionDeleted("8");
+			assertEquals(set("wed"), terms(index.search("web", 1)));
+			
+			index.definitionSaved(new Definition("web", "def", "0", "8"));
+			assertEquals(set("web", "wed"), terms(index.search("web", 1)));
+		}
+	}
+	
+	@Test
+	public void search_RandomDictionary_MatchesBruteForce() {
+		Random random = new Random(42);
+		List<String> dictionary = new ArrayList<String>();
+		
+		for(int i = 0; i < 2000; i++) {
+			dictionary.add(randomWord(random));
+		}
+		
+		List<FuzzyTermIndex> randomIndexes = new ArrayList<FuzzyTermIndex>();
+		randomIndexes.add(new BKTreeTermIndex());
+		randomIndexes.add(new SymSpellTermIndex(3));
+		
+		for(FuzzyTermIndex index : randomIndexes) {
+			for(int i = 0; i < dictionary.size(); i++) {
+				index.definitionSaved(new Definition(dictionary.get(i), "def", "0", String.valueOf(i)));
+			}
+		}
+		
+		for(int q = 0; q < 200; q++) {
+			String query = randomWord(random);
+			int distance = random.nextInt(4);
+			
+			Set<String> expected = new HashSet<String>();
+			for(String term : dictionary) {
+				if(EditDistance.distance(term, query) <= distance) {
+					expected.add(term);
+				}
+			}
+			
+			for(FuzzyTermIndex index : randomIndexes) {
+				assertEquals(expected, terms(index.search(query, distance)));
+			}
+		}
+	}
+	
+	@Test
+	public void searchContaining_RandomDictionary_MatchesBruteForce() {
+		Random random = new Random(7);
+		List<String> dictionary = new ArrayList<String>();
+		
+		FuzzyTermIndex index = new SymSpellTermIndex(3);
+		for(int i = 0; i < 2000; i++) {
+			dictionary.add(randomWord(random));
+			index.definitionSaved(new Definition(dictionary.get(i), "def", "0", String.valueOf(i)));
+		}
+		
+		for(int q = 0; q < 200; q++) {
+			String query = randomWord(random);
+			int extra = random.nextInt(4);
+			
+			Set<String> expected = new HashSet<String>();
+			int definitions = 0;
+			for(String term : dictionary) {
+				if(term.contains(query) && term.length() - query.length() <= extra) {
+					expected.add(term);
+					definitions++;
+				}
+			}
+			
+			List<Definition> found = index.searchContaining(query, extra);
+			assertEquals(expected, terms(found));
+			assertEquals(definitions, found.size());
+			assertEquals(definitions, index.countContaining(query, extra));
+		}
+	}
+	
+	private static String randomWord(Random random) {
+		StringBuilder word = new StringBuilder();
+		int length = 1 + random.nextInt(7);
+		
+		for(int i = 0; i < length; i++) {
+			word.append((char) ('a' + random.nextInt(4)));
+		}
+		return word.toString();
+	}
+	
+	private static Set<String> terms(List<Definition> defs) {
+		Set<String> terms = new HashSet<String>();
+		for(Definition def : defs) {
+			terms.add(def.getTerm());
+		}
+		return terms;
+	}
+	
+	private static Set<String> set(String... terms) {
+		Set<String> set = new HashSet<String>();
+		for(String term : terms) {
+			set.add(term);
+		}
+		return set;
+	}
+}
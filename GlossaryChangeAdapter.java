@@ -0,0 +1,47 @@
+package ubergloss.services;
+
+import ubergloss.objects.Definition;
+
+/**
+ * A GlossaryChangeListener which ignores every change, for listeners that
+ * only care about some of them.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public abstract class GlossaryChangeAdapter implements GlossaryChangeListener {
+
+	public void definitionSaved(Definition def) {
+	}
+
+	public void definitionDeleted(String defID) {
+	}
+
+	public void tagAdded(String defID, String tagName) {
+	}
+
+	public void tagRemoved(String defID, String tagName) {
+	}
+
+	public void localeAdded(String defID, String shortName) {
+	}
+
+	public void localeRemoved(String defID, String shortName) {
+	}
+
+	public void tagCreated(String tagName) {
+	}
+
+	public void tagDeleted(String tagName) {
+	}
+
+	public void tagMoved(String tagName, String parentName) {
+	}
+
+	public void localeCreated(String shortName) {
+	}
+
+	public void localeDeleted(String shortName) {
+	}
+
+}
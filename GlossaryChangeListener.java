@@ -0,0 +1,118 @@
+package ubergloss.services;
+
+import ubergloss.objects.Definition;
+
+/**
+ * Receives notice of every write made to the glossary, so that in-memory
+ * indexes can be kept consistent with the database without reloading them.
+ * 
+ * The services which write to the database are expected to call these after
+ * each successful write.
+ * 
+ * Definition ID's are the database's, so are always non-negative ints; the
+ * in-memory indexes hold them in IntBitmaps, which can't hold any other.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public interface GlossaryChangeListener {
+
+	/**
+	 * Called after a definition has been added or edited
+	 * 
+	 * @param def
+	 *            the definition as it now stands in the database
+	 */
+	public void definitionSaved(Definition def);
+
+	/**
+	 * Called after a definition has been deleted
+	 * 
+	 * @param defID
+	 *            the ID of the deleted definition
+	 */
+	public void definitionDeleted(String defID);
+
+	/**
+	 * Called after a definition has been tagged
+	 * 
+	 * @param defID
+	 *            the ID of the tagged definition
+	 * @param tagName
+	 *            the name of the tag
+	 */
+	public void tagAdded(String defID, String tagName);
+
+	/**
+	 * Called after a tag has been taken off a definition
+	 * 
+	 * @param defID
+	 *            the ID of the definition
+	 * @param tagName
+	 *            the name of the tag
+	 */
+	public void tagRemoved(String defID, String tagName);
+
+	/**
+	 * Called after a definition has been given a locale
+	 * 
+	 * @param defID
+	 *            the ID of the definition
+	 * @param shortName
+	 *            the short name of the locale, eg. en-AU
+	 */
+	public void localeAdded(String defID, String shortName);
+
+	/**
+	 * Called after a locale has been taken off a definition
+	 * 
+	 * @param defID
+	 *            the ID of the definition
+	 * @param shortName
+	 *            the short name of the locale, eg. en-AU
+	 */
+	public void localeRemoved(String defID, String shortName);
+
+	/**
+	 * Called after a new tag has been created
+	 * 
+	 * @param tagName
+	 *            the name of the tag
+	 */
+	public void tagCreated(String tagName);
+
+	/**
+	 * Called after a tag has been deleted
+	 * 
+	 * @param tagName
+	 *            the name of the tag
+	 */
+	public void tagDeleted(String tagName);
+
+	/**
+	 * Called after a tag has been given a new parent
+	 * 
+	 * @param tagName
+	 *            the name of the tag
+	 * @param parentName
+	 *            the name of its new parent, or null if it now has none
+	 */
+	public void tagMoved(String tagName, String parentName);
+
+	/**
+	 * Called after a new locale has been created
+	 * 
+	 * @param shortName
+	 *            the short name of the locale, eg. en-AU
+	 */
+	public void localeCreated(String shortName);
+
+	/**
+	 * Called after a locale has been deleted
+	 * 
+	 * @param shortName
+	 *            the short name of the locale, eg. en-AU
+	 */
+	public void localeDeleted(String shortName);
+
+}
@@ -0,0 +1,555 @@
+package ubergloss.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+
+/**
+ * Everything a search reads, at one moment: the definitions, their terms,
+ * the tag tree and which definitions carry each tag and locale. A snapshot
+ * is never changed once it's made, so any number of threads can search it
+ * without locking and each sees the whole glossary as it was.
+ *
+ * A change makes a new snapshot which shares all it can with the old one.
+ * The definitions and terms are split into shards, and a change copies only
+ * the shard it touches, so saving a definition copies a small fraction of
+ * the glossary rather than all of it. Tags and locales are few, so their
+ * maps are copied whole, along with only the bitmaps that change.
+ *
+ * Tag and locale names are compared case-insensitively, as the filters are.
+ * Definition ID's must be numeric.
+ *
+ * @author George Kinsman
+ *
+ */
+public final class GlossarySnapshot {
+
+	// must be a power of two
+	private static final int SHARDS = 64;
+
+	private static final IntBitmap EMPTY = new IntBitmap();
+
+	// definitions by ID, sharded by ID
+	private final Map<Integer, Definition>[] definitions;
+	// the ID's of each term's definitions, sharded by term
+	private final Map<String, int[]>[] terms;
+	// the definitions carrying each tag itself, not its descendants
+	private final Map<String, IntBitmap> tags;
+	private final Map<String, IntBitmap> locales;
+	// the parent of every tag, or null for a top level one
+	private final Map<String, String> parents;
+	private final int size;
+
+	private GlossarySnapshot(Map<Integer, Definition>[] definitions,
+			Map<String, int[]>[] terms, Map<String, IntBitmap> tags,
+			Map<String, IntBitmap> locales, Map<String, String> parents,
+			int size) {
+		this.definitions = definitions;
+		this.terms = terms;
+		this.tags = tags;
+		this.locales = locales;
+		this.parents = parents;
+		this.size = size;
+	}
+
+	/**
+	 * @return a snapshot of an empty glossary
+	 */
+	@SuppressWarnings("unchecked")
+	public static GlossarySnapshot empty() {
+		// generic arrays can't be created, only cast to from a wildcard one
+		Map<Integer, Definition>[] definitions = (Map<Integer, Definition>[]) new Map<?, ?>[SHARDS];
+		Map<String, int[]>[] terms = (Map<String, int[]>[]) new Map<?, ?>[SHARDS];
+
+		for (int i = 0; i < SHARDS; i++) {
+			definitions[i] = new HashMap<Integer, Definition>();
+			terms[i] = new HashMap<String, int[]>();
+		}
+		return new GlossarySnapshot(definitions, terms,
+				new HashMap<String, IntBitmap>(),
+				new HashMap<String, IntBitmap>(),
+				new HashMap<String, String>(), 0);
+	}
+
+	/**
+	 * Makes a snapshot from the whole glossary at once, as read from the
+	 * database, rather than a change at a time. The maps are taken over, not
+	 * copied, so must not be changed afterwards.
+	 *
+	 * @param defs
+	 *            every definition
+	 * @param parents
+	 *            the parent of every lower-cased tag name, or null
+	 * @param tags
+	 *            the definitions carrying each lower-cased tag name
+	 * @param locales
+	 *            the definitions in each lower-cased locale short name
+	 */
+	static GlossarySnapshot build(Collection<Definition> defs,
+			Map<String, String> parents, Map<String, IntBitmap> tags,
+			Map<String, IntBitmap> locales) {
+		GlossarySnapshot empty = empty();
+		Map<String, List<Integer>> idsOf = new HashMap<String, List<Integer>>();
+
+		for (Definition def : defs) {
+			int id = Integer.parseInt(def.getID());
+			empty.definitions[id & (SHARDS - 1)].put(id, def);
+
+			List<Integer> ids = idsOf.get(def.getTerm());
+			if (ids == null) {
+				ids = new ArrayList<Integer>(1);
+				idsOf.put(def.getTerm(), ids);
+			}
+			ids.add(id);
+		}
+		for (Map.Entry<String, List<Integer>> entry : idsOf.entrySet()) {
+			int[] ids = new int[entry.getValue().size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = entry.getValue().get(i);
+			}
+			empty.terms[shardOf(entry.getKey())].put(entry.getKey(), ids);
+		}
+
+		int size = 0;
+		for (Map<Integer, Definition> shard : empty.definitions) {
+			size += shard.size();
+		}
+		return new GlossarySnapshot(empty.definitions, empty.terms, tags,
+				locales, parents, size);
+	}
+
+	/**
+	 * Returns every definition passing all of the filters, as performSearch
+	 * would
+	 *
+	 * @param filters
+	 * @param distance
+	 *            the largest edit distance a term filter allows
+	 * @return the matching definitions
+	 */
+	public Set<Definition> search(Set<Filter> filters, int distance) {
+		Set<Definition> results = new HashSet<Definition>();
+
+		// every tag and locale filter at once, as one bitmap intersection
+		IntBitmap members = null;
+		Filter term = null;
+		for (Filter filter : filters) {
+			IntBitmap matches = null;
+
+			if (filter.getType() == FilterTypes.Tag) {
+				matches = getTagged(filter.getQuery());
+			} else if (filter.getType() == FilterTypes.Locale) {
+				matches = bitmap(locales, filter.getQuery());
+			} else if (filter.getType() == FilterTypes.Term) {
+				term = filter;
+			}
+			if (matches != null) {
+				members = members == null ? matches : members.and(matches);
+			}
+		}
+
+		if (members != null) {
+			for (int id : members.toArray()) {
+				Definition def = getDefinition(id);
+				if (def != null && passes(def, filters, distance)) {
+					results.add(def);
+				}
+			}
+		} else if (term != null) {
+			// only the distinct terms are scanned, not every definition
+			for (Map<String, int[]> shard : terms) {
+				for (Map.Entry<String, int[]> entry : shard.entrySet()) {
+					if (!termMatches(entry.getKey(), term.getQuery(), distance)) {
+						continue;
+					}
+					for (int id : entry.getValue()) {
+						Definition def = getDefinition(id);
+						if (passes(def, filters, distance)) {
+							results.add(def);
+						}
+					}
+				}
+			}
+		} else {
+			for (Map<Integer, Definition> shard : definitions) {
+				for (Definition def : shard.values()) {
+					if (passes(def, filters, distance)) {
+						results.add(def);
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Estimates how much work search will do, in the definitions or
+	 * distinct terms it will look at, so in-memory searches can be admitted
+	 * by cost as database ones are
+	 *
+	 * @param filters
+	 * @return the estimated cost
+	 */
+	public long estimate(Set<Filter> filters) {
+		IntBitmap members = null;
+		boolean term = false;
+		for (Filter filter : filters) {
+			IntBitmap matches = null;
+
+			if (filter.getType() == FilterTypes.Tag) {
+				matches = getTagged(filter.getQuery());
+			} else if (filter.getType() == FilterTypes.Locale) {
+				matches = bitmap(locales, filter.getQuery());
+			} else if (filter.getType() == FilterTypes.Term) {
+				term = true;
+			}
+			if (matches != null) {
+				members = members == null ? matches : members.and(matches);
+			}
+		}
+
+		if (members != null) {
+			return members.cardinality();
+		} else if (term) {
+			long distinct = 0;
+			for (Map<String, int[]> shard : terms) {
+				distinct += shard.size();
+			}
+			return distinct;
+		}
+		return filters.isEmpty() ? 0 : size;
+	}
+
+	/**
+	 * @return the definition with the ID, or null if there isn't one
+	 */
+	public Definition getDefinition(int id) {
+		return definitions[id & (SHARDS - 1)].get(id);
+	}
+
+	/**
+	 * Returns the ID's of every definition with the tag or one of its
+	 * descendants. The bitmap must not be changed.
+	 */
+	public IntBitmap getTagged(String tagName) {
+		String name = tagName.toLowerCase();
+		IntBitmap tagged = bitmap(tags, name);
+
+		for (Map.Entry<String, IntBitmap> entry : tags.entrySet()) {
+			if (!entry.getKey().equals(name) && isWithin(entry.getKey(), name)) {
+				tagged = tagged.or(entry.getValue());
+			}
+		}
+		return tagged;
+	}
+
+	/**
+	 * @return the number of definitions
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a snapshot with the definition added, or replacing the one with
+	 * its ID
+	 */
+	public GlossarySnapshot withDefinition(Definition def) {
+		int id = Integer.parseInt(def.getID());
+		Map<Integer, Definition> shard = definitions[id & (SHARDS - 1)];
+		Definition old = shard.get(id);
+
+		Map<Integer, Definition>[] newDefinitions = definitions.clone();
+		Map<Integer, Definition> newShard = new HashMap<Integer, Definition>(
+				shard);
+		newShard.put(id, def);
+		newDefinitions[id & (SHARDS - 1)] = newShard;
+
+		Map<String, int[]>[] newTerms = terms;
+		if (old == null || !old.getTerm().equals(def.getTerm())) {
+			newTerms = terms.clone();
+			if (old != null) {
+				changeTerm(newTerms, old.getTerm(), id, false);
+			}
+			changeTerm(newTerms, def.getTerm(), id, true);
+		}
+
+		return new GlossarySnapshot(newDefinitions, newTerms, tags, locales,
+				parents, old == null ? size + 1 : size);
+	}
+
+	/**
+	 * Returns a snapshot without the definition, its tags or its locales
+	 */
+	public GlossarySnapshot withoutDefinition(int id) {
+		Map<Integer, Definition> shard = definitions[id & (SHARDS - 1)];
+		Definition old = shard.get(id);
+		if (old == null) {
+			return this;
+		}
+
+		Map<Integer, Definition>[] newDefinitions = definitions.clone();
+		Map<Integer, Definition> newShard = new HashMap<Integer, Definition>(
+				shard);
+		newShard.remove(id);
+		newDefinitions[id & (SHARDS - 1)] = newShard;
+
+		Map<String, int[]>[] newTerms = terms.clone();
+		changeTerm(newTerms, old.getTerm(), id, false);
+
+		return new GlossarySnapshot(newDefinitions, newTerms, without(tags,
+				id), without(locales, id), parents, size - 1);
+	}
+
+	/**
+	 * Returns a snapshot with the definition carrying the tag, or not. A tag
+	 * no one has said was created is added at the top of the tree.
+	 */
+	public GlossarySnapshot withTag(int id, String tagName, boolean carried) {
+		String name = tagName.toLowerCase();
+		Map<String, String> newParents = parents;
+
+		if (carried && !parents.containsKey(name)) {
+			newParents = new HashMap<String, String>(parents);
+			newParents.put(name, null);
+		}
+		return new GlossarySnapshot(definitions, terms, with(tags, name, id,
+				carried), locales, newParents, size);
+	}
+
+	/**
+	 * Returns a snapshot with the definition in the locale, or not
+	 */
+	public GlossarySnapshot withLocale(int id, String shortName, boolean in) {
+		return new GlossarySnapshot(definitions, terms, tags, with(locales,
+				shortName.toLowerCase(), id, in), parents, size);
+	}
+
+	/**
+	 * Returns a snapshot with the tag at the top of the tree, if it isn't
+	 * already somewhere in it
+	 */
+	public GlossarySnapshot withNewTag(String tagName) {
+		String name = tagName.toLowerCase();
+		if (parents.containsKey(name)) {
+			return this;
+		}
+
+		Map<String, String> newParents = new HashMap<String, String>(parents);
+		newParents.put(name, null);
+		return new GlossarySnapshot(definitions, terms, tags, locales,
+				newParents, size);
+	}
+
+	/**
+	 * Returns a snapshot with the tag given a new parent, taking its subtree
+	 * with it
+	 *
+	 * @param tagName
+	 * @param parentName
+	 *            the new parent, or null for the top of the tree
+	 * @throws IllegalArgumentException
+	 *             if the parent is within the tag's own subtree
+	 */
+	public GlossarySnapshot withParent(String tagName, String parentName) {
+		String name = tagName.toLowerCase();
+		String parent = parentName == null ? null : parentName.toLowerCase();
+
+		if (parent != null && isWithin(parent, name))
+			throw new IllegalArgumentException("the tag " + parentName
+					+ " is within the subtree of " + tagName + ".");
+
+		Map<String, String> newParents = new HashMap<String, String>(parents);
+		newParents.put(name, parent);
+		if (parent != null && !newParents.containsKey(parent)) {
+			newParents.put(parent, null);
+		}
+		return new GlossarySnapshot(definitions, terms, tags, locales,
+				newParents, size);
+	}
+
+	/**
+	 * Returns a snapshot without the tag, its children given to its parent
+	 */
+	public GlossarySnapshot withoutTag(String tagName) {
+		String name = tagName.toLowerCase();
+		if (!parents.containsKey(name) && !tags.containsKey(name)) {
+			return this;
+		}
+
+		String parent = parents.get(name);
+		Map<String, String> newParents = new HashMap<String, String>(parents);
+		newParents.remove(name);
+		for (Map.Entry<String, String> entry : newParents.entrySet()) {
+			if (name.equals(entry.getValue())) {
+				entry.setValue(parent);
+			}
+		}
+
+		Map<String, IntBitmap> newTags = new HashMap<String, IntBitmap>(tags);
+		newTags.remove(name);
+		return new GlossarySnapshot(definitions, terms, newTags, locales,
+				newParents, size);
+	}
+
+	/**
+	 * Returns a snapshot without the locale
+	 */
+	public GlossarySnapshot withoutLocale(String shortName) {
+		String name = shortName.toLowerCase();
+		if (!locales.containsKey(name)) {
+			return this;
+		}
+
+		Map<String, IntBitmap> newLocales = new HashMap<String, IntBitmap>(
+				locales);
+		newLocales.remove(name);
+		return new GlossarySnapshot(definitions, terms, tags, newLocales,
+				parents, size);
+	}
+
+	/**
+	 * Returns true if the tag is the ancestor or below it, walking up from
+	 * the tag. Tags are few and shallow, so this is cheap.
+	 */
+	private boolean isWithin(String tag, String ancestor) {
+		// a loop can't be made through withParent, but is guarded against
+		for (int depth = 0; tag != null && depth <= parents.size(); depth++) {
+			if (tag.equals(ancestor)) {
+				return true;
+			}
+			tag = parents.get(tag);
+		}
+		return false;
+	}
+
+	/**
+	 * Checks the term and definition filters; tag and locale filters have
+	 * already been checked against the bitmaps
+	 */
+	private static boolean passes(Definition def, Set<Filter> filters,
+			int distance) {
+		for (Filter filter : filters) {
+			if (filter.getType() == FilterTypes.Definition) {
+				if (!def.getDefinition().contains(filter.getQuery())) {
+					return false;
+				}
+			} else if (filter.getType() == FilterTypes.Term) {
+				if (!termMatches(def.getTerm(), filter.getQuery(), distance)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean termMatches(String term, String query, int distance) {
+		return term.contains(query)
+				&& EditDistance.withinDistance(term, query, distance);
+	}
+
+	private static IntBitmap bitmap(Map<String, IntBitmap> index, String name) {
+		IntBitmap bitmap = index.get(name.toLowerCase());
+		return bitmap == null ? EMPTY : bitmap;
+	}
+
+	/**
+	 * Adds or removes an ID from a term in a copy of the term shards, copying
+	 * the shard it's in
+	 */
+	private static void changeTerm(Map<String, int[]>[] terms, String term,
+			int id, boolean add) {
+		int index = shardOf(term);
+		Map<String, int[]> shard = new HashMap<String, int[]>(terms[index]);
+		int[] ids = shard.get(term);
+
+		if (add) {
+			int[] newIds = ids == null ? new int[1] : Arrays.copyOf(ids,
+					ids.length + 1);
+			newIds[newIds.length - 1] = id;
+			shard.put(term, newIds);
+		} else if (ids != null) {
+			int position = 0;
+			while (position < ids.length && ids[position] != id) {
+				position++;
+			}
+			if (position == ids.length) {
+				return;
+			}
+
+			int[] newIds = new int[ids.length - 1];
+			System.arraycopy(ids, 0, newIds, 0, position);
+			System.arraycopy(ids, position + 1, newIds, position,
+					newIds.length - position);
+			if (newIds.length == 0) {
+				shard.remove(term);
+			} else {
+				shard.put(term, newIds);
+			}
+		}
+		terms[index] = shard;
+	}
+
+	/**
+	 * Returns a copy of the index with the ID added to or removed from one
+	 * name's bitmap, copying only that bitmap
+	 */
+	private static Map<String, IntBitmap> with(Map<String, IntBitmap> index,
+			String name, int id, boolean add) {
+		IntBitmap old = index.get(name);
+		if (add ? old != null && old.contains(id) : old == null
+				|| !old.contains(id)) {
+			return index;
+		}
+
+		IntBitmap bitmap = old == null ? new IntBitmap() : old.copy();
+		if (add) {
+			bitmap.add(id);
+		} else {
+			bitmap.remove(id);
+		}
+
+		Map<String, IntBitmap> newIndex = new HashMap<String, IntBitmap>(index);
+		newIndex.put(name, bitmap);
+		return newIndex;
+	}
+
+	/**
+	 * Returns a copy of the index with the ID taken out of every bitmap,
+	 * copying only the bitmaps which held it
+	 */
+	private static Map<String, IntBitmap> without(
+			Map<String, IntBitmap> index, int id) {
+		List<String> holding = new ArrayList<String>();
+		for (Map.Entry<String, IntBitmap> entry : index.entrySet()) {
+			if (entry.getValue().contains(id)) {
+				holding.add(entry.getKey());
+			}
+		}
+		if (holding.isEmpty()) {
+			return index;
+		}
+
+		Map<String, IntBitmap> newIndex = new HashMap<String, IntBitmap>(index);
+		for (String name : holding) {
+			IntBitmap bitmap = newIndex.get(name).copy();
+			bitmap.remove(id);
+			newIndex.put(name, bitmap);
+		}
+		return newIndex;
+	}
+
+	private static int shardOf(String term) {
+		int h = term.hashCode();
+		return (h ^ (h >>> 16)) & (SHARDS - 1);
+	}
+}
@@ -0,0 +1,120 @@
+package ubergloss.serviceTests;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+import ubergloss.services.GlossarySnapshot;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class GlossarySnapshotTests {
+
+	private GlossarySnapshot snapshot;
+
+	@Before
+	public void setup() {
+		snapshot = GlossarySnapshot.empty()
+			.withDefinition(new Definition("internet", "a network of networks", "1", "1"))
+			.withDefinition(new Definition("intranet", "a private network", "1", "2"))
+			.withDefinition(new Definition("science", "knowledge of the world", "1", "3"))
+			.withParent("web", "computing")
+			.withTag(1, "web", true)
+			.withTag(2, "computing", true)
+			.withTag(3, "physics", true)
+			.withLocale(1, "en-AU", true)
+			.withLocale(3, "en-AU", true);
+	}
+
+	@Test
+	public void search_Tag_MatchesSubtree() {
+		assertEquals(ids("1", "2"), ids(snapshot.search(filters(FilterTypes.Tag, "COMPUTING"), 3)));
+		assertEquals(ids("1"), ids(snapshot.search(filters(FilterTypes.Tag, "web"), 3)));
+	}
+
+	@Test
+	public void search_TagAndLocale_Intersected() {
+		Set<Filter> filters = filters(FilterTypes.Tag, "computing");
+		filters.add(new Filter(FilterTypes.Locale, "en-au"));
+
+		assertEquals(ids("1"), ids(snapshot.search(filters, 3)));
+	}
+
+	@Test
+	public void search_TermAndDefinition_Verified() {
+		assertEquals(ids("1"), ids(snapshot.search(filters(FilterTypes.Term, "intern"), 3)));
+		assertEquals(ids(), ids(snapshot.search(filters(FilterTypes.Term, "net"), 3)));
+		assertEquals(ids("2"), ids(snapshot.search(filters(FilterTypes.Definition, "private"), 3)));
+
+		Set<Filter> filters = filters(FilterTypes.Term, "intern");
+		filters.add(new Filter(FilterTypes.Definition, "private"));
+		assertEquals(ids(), ids(snapshot.search(filters, 3)));
+	}
+
+	@Test
+	public void estimate_Filters_CountsWhatSearchLooksAt() {
+		Set<Filter> filters = filters(FilterTypes.Tag, "computing");
+		filters.add(new Filter(FilterTypes.Locale, "en-au"));
+
+		assertEquals(1, snapshot.estimate(filters));
+		assertEquals(3, snapshot.estimate(filters(FilterTypes.Term, "intern")));
+		assertEquals(3, snapshot.estimate(filters(FilterTypes.Definition, "private")));
+		assertEquals(0, snapshot.estimate(new HashSet<Filter>()));
+	}
+
+	@Test
+	public void withDefinition_OldSnapshot_Unchanged() {
+		GlossarySnapshot changed = snapshot
+			.withDefinition(new Definition("webinar", "a network seminar", "1", "2"))
+			.withoutDefinition(1);
+
+		assertEquals(ids("1"), ids(snapshot.search(filters(FilterTypes.Term, "intern"), 3)));
+		assertEquals(ids("2"), ids(snapshot.search(filters(FilterTypes.Term, "intranet"), 3)));
+		assertEquals(3, snapshot.size());
+
+		assertEquals(ids(), ids(changed.search(filters(FilterTypes.Term, "intern"), 3)));
+		assertEquals(ids(), ids(changed.search(filters(FilterTypes.Term, "intranet"), 3)));
+		assertEquals(ids("2"), ids(changed.search(filters(FilterTypes.Term, "webinar"), 3)));
+		assertEquals(ids("2"), ids(changed.search(filters(FilterTypes.Definition, "network"), 3)));
+		assertEquals(ids("2"), ids(changed.search(filters(FilterTypes.Tag, "computing"), 3)));
+		assertEquals(2, changed.size());
+	}
+
+	@Test
+	public void withoutTag_Children_GivenToParent() {
+		GlossarySnapshot changed = snapshot.withParent("computing", "physics").withoutTag("computing");
+
+		assertEquals(ids("1", "3"), ids(changed.search(filters(FilterTypes.Tag, "physics"), 3)));
+		assertEquals(ids(), ids(changed.search(filters(FilterTypes.Tag, "computing"), 3)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void withParent_OwnDescendant_Throws() {
+		snapshot.withParent("computing", "web");
+	}
+
+	private static Set<Filter> filters(FilterTypes type, String query) {
+		Set<Filter> filters = new HashSet<Filter>();
+		filters.add(new Filter(type, query));
+		return filters;
+	}
+
+	private static Set<String> ids(Set<Definition> defs) {
+		Set<String> ids = new HashSet<String>();
+		for(Definition def : defs) {
+			ids.add(def.getID());
+		}
+		return ids;
+	}
+
+	private static Set<String> ids(String... ids) {
+		Set<String> set = new HashSet<String>();
+		for(String id : ids) {
+			set.add(id);
+		}
+		return set;
+	}
+}
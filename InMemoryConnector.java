@@ -0,0 +1,195 @@
+package ubergloss.serviceTests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ubergloss.connectors.AbstractConnector;
+import ubergloss.objects.Definition;
+
+/**
+ * A connector serving a SyntheticGlossary from memory, so the search services
+ * can be benchmarked without a database.
+ *
+ * It is not a database. Each query is recognised by the tables it reads and
+ * answered from the glossary; anything it doesn't recognise returns no rows.
+ * Only the handful of JDBC calls the search services make are implemented.
+ *
+ * @author George Kinsman
+ *
+ */
+public class InMemoryConnector extends AbstractConnector {
+
+	private SyntheticGlossary glossary;
+
+	public InMemoryConnector(SyntheticGlossary glossary) {
+		this.glossary = glossary;
+	}
+
+	@Override
+	public Connection getDBConnection() {
+		return proxy(Connection.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("createStatement")) {
+					return statement(null);
+				} else if(method.getName().equals("prepareStatement")) {
+					return statement((String) args[0]);
+				}
+				return defaultFor(method.getReturnType());
+			}
+		});
+	}
+
+	private PreparedStatement statement(final String prepared) {
+		final Map<Integer, String> parameters = new HashMap<Integer, String>();
+
+		return proxy(PreparedStatement.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+				String name = method.getName();
+
+				if(name.equals("setString")) {
+					parameters.put((Integer) args[0], (String) args[1]);
+					return null;
+				} else if(name.equals("executeQuery")) {
+					String sql = args == null ? prepared : (String) args[0];
+					return resultSet(query(sql, parameters));
+				}
+				return defaultFor(method.getReturnType());
+			}
+		});
+	}
+
+	/**
+	 * Answers a query from the glossary, as rows of column name to value
+	 */
+	private List<Map<String, Object>> query(String sql, Map<Integer, String> parameters) {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+
+		if(sql.contains("FROM definitions, termdef")) {
+			String like = parameters.get(1);
+			String term = like == null ? null : like.replace("%", "");
+
+			for(Definition def : glossary.getDefinitions()) {
+				if(term == null || def.getTerm().contains(term)) {
+					rows.add(row("defID", def.getID(), "rank", def.getRank(),
+							"definition", def.getDefinition(), "term", def.getTerm()));
+				}
+			}
+		} else if(sql.contains("LEFT JOIN tags parent")) {
+			for(String tag : glossary.getTags()) {
+				rows.add(row("name", tag, "parentName", glossary.getParent(tag)));
+			}
+		} else if(sql.contains("FROM tags, tagdef")) {
+			for(String id : idsOf(sql, parameters, glossary.getTagsOf())) {
+				for(String tag : glossary.getTagsOf().get(id)) {
+					rows.add(row("defID", id, "tagID", glossary.idOfTag(tag), "name", tag));
+				}
+			}
+		} else if(sql.contains("FROM locales, localedef")) {
+			for(String id : idsOf(sql, parameters, glossary.getLocalesOf())) {
+				for(String locale : glossary.getLocalesOf().get(id)) {
+					rows.add(row("defID", id, "localeID", glossary.idOfLocale(locale),
+							"shortName", locale));
+				}
+			}
+		} else if(sql.contains("FROM tags")) {
+			for(String tag : glossary.getTags()) {
+				rows.add(row("name", tag));
+			}
+		} else if(sql.contains("FROM locales")) {
+			for(String locale : glossary.getLocales()) {
+				rows.add(row("shortName", locale));
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns the definition ID's a membership query asks about: those bound
+	 * to its IN list, or all of them
+	 */
+	private static Set<String> idsOf(String sql, Map<Integer, String> parameters,
+			Map<String, List<String>> memberships) {
+		Set<String> ids = new HashSet<String>();
+
+		if(sql.contains(" IN (")) {
+			for(String id : parameters.values()) {
+				if(memberships.containsKey(id)) {
+					ids.add(id);
+				}
+			}
+		} else {
+			ids.addAll(memberships.keySet());
+		}
+		return ids;
+	}
+
+	private ResultSet resultSet(final List<Map<String, Object>> rows) {
+		return proxy(ResultSet.class, new InvocationHandler() {
+			private int row = -1;
+
+			public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+				String name = method.getName();
+
+				if(name.equals("next")) {
+					return ++row < rows.size();
+				} else if(name.equals("getString")) {
+					Object value = rows.get(row).get(args[0]);
+					return value == null ? null : value.toString();
+				} else if(name.equals("getInt")) {
+					Object value = rows.get(row).get(args[0]);
+					return value == null ? 0 : Integer.parseInt(value.toString());
+				}
+				return defaultFor(method.getReturnType());
+			}
+		});
+	}
+
+	private static Map<String, Object> row(Object... columns) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		for(int i = 0; i < columns.length; i += 2) {
+			row.put((String) columns[i], columns[i + 1]);
+		}
+		return row;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(InMemoryConnector.class.getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+
+	/**
+	 * What an unimplemented call returns: nothing, zero or false
+	 */
+	private static Object defaultFor(Class<?> type) {
+		if(type == boolean.class) {
+			return false;
+		} else if(type == int.class) {
+			return 0;
+		} else if(type == long.class) {
+			return 0L;
+		} else if(type == short.class) {
+			return (short) 0;
+		} else if(type == byte.class) {
+			return (byte) 0;
+		} else if(type == float.class) {
+			return 0f;
+		} else if(type == double.class) {
+			return 0d;
+		} else if(type == char.class) {
+			return (char) 0;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,472 @@
+package ubergloss.services;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints, laid out the way Roaring bitmaps
+ * are. Values are split by their high 16 bits into chunks of 65536, and each
+ * chunk is stored in whichever container is smaller for it: a sorted array
+ * of its low 16 bits while it holds up to 4096 values, or a 65536 bit bitmap
+ * once it holds more.
+ *
+ * Intersections work chunk by chunk, so two sparse sets are intersected by
+ * merging short arrays and two dense ones by ANDing words.
+ *
+ * Not thread-safe; callers lock around it.
+ *
+ * @author George Kinsman
+ *
+ */
+public class IntBitmap {
+
+	// above this many values a chunk is cheaper as a bitmap
+	private static final int ARRAY_LIMIT = 4096;
+
+	private char[] keys = new char[4];
+	private Container[] containers = new Container[4];
+	private int size = 0;
+
+	public IntBitmap() {
+	}
+
+	/**
+	 * Adds a value to the set
+	 *
+	 * @param value
+	 *            a non-negative int
+	 * @return true if the value wasn't already in the set
+	 */
+	public boolean add(int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("values must not be negative.");
+
+		char high = (char) (value >>> 16);
+		int index = find(high);
+
+		if (index < 0) {
+			index = -index - 1;
+			insertContainer(index, high, new ArrayContainer());
+		}
+
+		Container container = containers[index];
+		boolean added = container.add((char) value);
+
+		if (container.cardinality() > ARRAY_LIMIT
+				&& container instanceof ArrayContainer) {
+			containers[index] = ((ArrayContainer) container).toBitmap();
+		}
+		return added;
+	}
+
+	/**
+	 * Removes a value from the set
+	 *
+	 * @param value
+	 * @return true if the value was in the set
+	 */
+	public boolean remove(int value) {
+		if (value < 0) {
+			return false;
+		}
+
+		int index = find((char) (value >>> 16));
+		if (index < 0) {
+			return false;
+		}
+
+		Container container = containers[index];
+		boolean removed = container.remove((char) value);
+
+		if (container.cardinality() == 0) {
+			removeContainer(index);
+		} else if (container.cardinality() <= ARRAY_LIMIT
+				&& container instanceof BitmapContainer) {
+			containers[index] = ((BitmapContainer) container).toArray();
+		}
+		return removed;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value is in the set
+	 */
+	public boolean contains(int value) {
+		if (value < 0) {
+			return false;
+		}
+
+		int index = find((char) (value >>> 16));
+		return index >= 0 && containers[index].contains((char) value);
+	}
+
+	/**
+	 * @return the number of values in the set
+	 */
+	public int cardinality() {
+		int cardinality = 0;
+
+		for (int i = 0; i < size; i++) {
+			cardinality += containers[i].cardinality();
+		}
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns a new set of the values in both this set and the other
+	 *
+	 * @param other
+	 * @return the intersection of the two sets
+	 */
+	public IntBitmap and(IntBitmap other) {
+		IntBitmap result = new IntBitmap();
+		int i = 0;
+		int j = 0;
+
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				Container container = containers[i].and(other.containers[j]);
+				if (container.cardinality() > 0) {
+					result.insertContainer(result.size, keys[i], container);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a new set of the values in either this set or the other
+	 *
+	 * @param other
+	 * @return the union of the two sets
+	 */
+	public IntBitmap or(IntBitmap other) {
+		IntBitmap result = new IntBitmap();
+		int i = 0;
+		int j = 0;
+
+		while (i < size || j < other.size) {
+			if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+				result.insertContainer(result.size, keys[i], containers[i]
+						.copy());
+				i++;
+			} else if (i == size || keys[i] > other.keys[j]) {
+				result.insertContainer(result.size, other.keys[j],
+						other.containers[j].copy());
+				j++;
+			} else {
+				result.insertContainer(result.size, keys[i], containers[i]
+						.or(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return a copy of the set, independent of this one
+	 */
+	public IntBitmap copy() {
+		IntBitmap result = new IntBitmap();
+
+		for (int i = 0; i < size; i++) {
+			result.insertContainer(i, keys[i], containers[i].copy());
+		}
+		return result;
+	}
+
+	/**
+	 * @return every value in the set, in ascending order
+	 */
+	public int[] toArray() {
+		int[] values = new int[cardinality()];
+		int offset = 0;
+
+		for (int i = 0; i < size; i++) {
+			offset = containers[i].writeTo(values, offset, keys[i] << 16);
+		}
+		return values;
+	}
+
+	private int find(char high) {
+		return Arrays.binarySearch(keys, 0, size, high);
+	}
+
+	private void insertContainer(int index, char high, Container container) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size
+				- index);
+		keys[index] = high;
+		containers[index] = container;
+		size++;
+	}
+
+	private void removeContainer(int index) {
+		System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, size
+				- index - 1);
+		size--;
+		containers[size] = null;
+	}
+
+	/**
+	 * The low 16 bits of the values within one chunk
+	 */
+	private static abstract class Container {
+		abstract boolean add(char value);
+
+		abstract boolean remove(char value);
+
+		abstract boolean contains(char value);
+
+		abstract int cardinality();
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container copy();
+
+		/**
+		 * Writes the values, offset by the chunk's high bits, into the array
+		 * and returns the next free position
+		 */
+		abstract int writeTo(int[] values, int offset, int high);
+	}
+
+	private static class ArrayContainer extends Container {
+		char[] values;
+		int cardinality;
+
+		ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		boolean add(char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				return false;
+			}
+			index = -index - 1;
+
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, cardinality * 2);
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality
+					- index);
+			values[index] = value;
+			cardinality++;
+			return true;
+		}
+
+		boolean remove(char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index < 0) {
+				return false;
+			}
+			System.arraycopy(values, index + 1, values, index, cardinality
+					- index - 1);
+			cardinality--;
+			return true;
+		}
+
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		int cardinality() {
+			return cardinality;
+		}
+
+		Container and(Container other) {
+			char[] result = new char[cardinality];
+			int count = 0;
+
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0;
+				int j = 0;
+
+				while (i < cardinality && j < array.cardinality) {
+					if (values[i] < array.values[j]) {
+						i++;
+					} else if (values[i] > array.values[j]) {
+						j++;
+					} else {
+						result[count++] = values[i];
+						i++;
+						j++;
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (other.contains(values[i])) {
+						result[count++] = values[i];
+					}
+				}
+			}
+			return new ArrayContainer(result, count);
+		}
+
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+
+			Container result = copy();
+			ArrayContainer array = (ArrayContainer) other;
+			for (int i = 0; i < array.cardinality; i++) {
+				result.add(array.values[i]);
+				if (result.cardinality() > ARRAY_LIMIT
+						&& result instanceof ArrayContainer) {
+					result = ((ArrayContainer) result).toBitmap();
+				}
+			}
+			return result;
+		}
+
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(4,
+					cardinality)), cardinality);
+		}
+
+		int writeTo(int[] out, int offset, int high) {
+			for (int i = 0; i < cardinality; i++) {
+				out[offset++] = high | values[i];
+			}
+			return offset;
+		}
+
+		BitmapContainer toBitmap() {
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++) {
+				bitmap.add(values[i]);
+			}
+			return bitmap;
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+		long[] words = new long[1024];
+		int cardinality;
+
+		boolean add(char value) {
+			long bit = 1L << value;
+			long word = words[value >>> 6];
+
+			if ((word & bit) != 0) {
+				return false;
+			}
+			words[value >>> 6] = word | bit;
+			cardinality++;
+			return true;
+		}
+
+		boolean remove(char value) {
+			long bit = 1L << value;
+			long word = words[value >>> 6];
+
+			if ((word & bit) == 0) {
+				return false;
+			}
+			words[value >>> 6] = word & ~bit;
+			cardinality--;
+			return true;
+		}
+
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		int cardinality() {
+			return cardinality;
+		}
+
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+
+			BitmapContainer bitmap = (BitmapContainer) other;
+			BitmapContainer result = new BitmapContainer();
+			for (int i = 0; i < words.length; i++) {
+				result.words[i] = words[i] & bitmap.words[i];
+				result.cardinality += Long.bitCount(result.words[i]);
+			}
+			return result.cardinality <= ARRAY_LIMIT ? result.toArray()
+					: result;
+		}
+
+		Container or(Container other) {
+			BitmapContainer result = (BitmapContainer) copy();
+
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					result.add(array.values[i]);
+				}
+			} else {
+				BitmapContainer bitmap = (BitmapContainer) other;
+				result.cardinality = 0;
+				for (int i = 0; i < words.length; i++) {
+					result.words[i] |= bitmap.words[i];
+					result.cardinality += Long.bitCount(result.words[i]);
+				}
+			}
+			return result;
+		}
+
+		Container copy() {
+			BitmapContainer result = new BitmapContainer();
+			result.words = words.clone();
+			result.cardinality = cardinality;
+			return result;
+		}
+
+		int writeTo(int[] out, int offset, int high) {
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					out[offset++] = high | (i << 6)
+							| Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return offset;
+		}
+
+		ArrayContainer toArray() {
+			char[] values = new char[Math.max(4, cardinality)];
+			int count = 0;
+
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					values[count++] = (char) ((i << 6) | Long
+							.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, count);
+		}
+	}
+}
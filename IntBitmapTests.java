@@ -0,0 +1,81 @@
+package ubergloss.serviceTests;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import ubergloss.services.IntBitmap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class IntBitmapTests {
+	
+	@Test
+	public void add_DuplicateValue_CountedOnce() {
+		IntBitmap bitmap = new IntBitmap();
+		
+		assertTrue(bitmap.add(5));
+		assertFalse(bitmap.add(5));
+		assertEquals(1, bitmap.cardinality());
+	}
+	
+	@Test
+	public void remove_LastValue_Empty() {
+		IntBitmap bitmap = new IntBitmap();
+		bitmap.add(70000);
+		
+		assertTrue(bitmap.remove(70000));
+		assertFalse(bitmap.contains(70000));
+		assertTrue(bitmap.isEmpty());
+	}
+	
+	@Test
+	public void randomOperations_SparseAndDense_MatchTreeSet() {
+		Random random = new Random(3);
+		
+		// a small range makes the dense chunks turn into bitmaps
+		for(int range : new int[] { 1000, 20000, 300000 }) {
+			IntBitmap a = new IntBitmap();
+			IntBitmap b = new IntBitmap();
+			TreeSet<Integer> expectedA = new TreeSet<Integer>();
+			TreeSet<Integer> expectedB = new TreeSet<Integer>();
+			
+			for(int i = 0; i < 30000; i++) {
+				int value = random.nextInt(range);
+				if(random.nextInt(4) == 0) {
+					assertEquals(expectedA.remove(value), a.remove(value));
+				} else {
+					assertEquals(expectedA.add(value), a.add(value));
+				}
+				value = random.nextInt(range);
+				assertEquals(expectedB.add(value), b.add(value));
+			}
+			
+			assertEquals(expectedA.size(), a.cardinality());
+			assertTrue(Arrays.equals(toArray(expectedA), a.toArray()));
+			
+			TreeSet<Integer> expectedAnd = new TreeSet<Integer>(expectedA);
+			expectedAnd.retainAll(expectedB);
+			assertTrue(Arrays.equals(toArray(expectedAnd), a.and(b).toArray()));
+			
+			TreeSet<Integer> expectedOr = new TreeSet<Integer>(expectedA);
+			expectedOr.addAll(expectedB);
+			assertTrue(Arrays.equals(toArray(expectedOr), a.or(b).toArray()));
+			
+			for(int i = 0; i < 1000; i++) {
+				int value = random.nextInt(range);
+				assertEquals(expectedA.contains(value), a.contains(value));
+			}
+		}
+	}
+	
+	private static int[] toArray(TreeSet<Integer> set) {
+		int[] values = new int[set.size()];
+		int i = 0;
+		for(Integer value : set) {
+			values[i++] = value;
+		}
+		return values;
+	}
+}
@@ -0,0 +1,158 @@
+package ubergloss.services;
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative ints to values, with the keys held in an int[]
+ * rather than boxed. Looking a definition up by its numeric ID is then a
+ * probe of a flat array, with no Integer to allocate or unbox.
+ *
+ * Open addressing with linear probing; a removal moves later entries of its
+ * run back, so there are no tombstones. Null values aren't allowed.
+ *
+ * Not thread-safe; callers lock around it.
+ *
+ * @author George Kinsman
+ *
+ */
+public class IntMap<V> {
+
+	// marks an empty slot, as keys are never negative
+	private static final int FREE = -1;
+
+	private int[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	public IntMap() {
+		keys = new int[16];
+		Arrays.fill(keys, FREE);
+		values = new Object[16];
+	}
+
+	/**
+	 * @return the value with the key, or null if there isn't one
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask); keys[i] != FREE; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return (V) values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 *            a non-negative int
+	 * @param value
+	 *            a non-null value
+	 * @return the value the key had before, or null if it had none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (key < 0)
+			throw new IllegalArgumentException("keys must not be negative.");
+		if (value == null)
+			throw new IllegalArgumentException("values must be non-null.");
+
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; keys[i] != FREE; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+
+		// kept at most half full, so runs stay short
+		if (++size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value the key had, or null if it had none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while (keys[i] != key) {
+			if (keys[i] == FREE) {
+				return null;
+			}
+			i = (i + 1) & mask;
+		}
+		V old = (V) values[i];
+
+		// move back any later entry of the run that would otherwise be cut
+		// off from its slot by the gap
+		int gap = i;
+		for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+			int home = slot(keys[j], mask);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = FREE;
+		values[gap] = null;
+		size--;
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return every key, in no particular order
+	 */
+	public int[] keys() {
+		int[] all = new int[size];
+		int n = 0;
+		for (int key : keys) {
+			if (key != FREE) {
+				all[n++] = key;
+			}
+		}
+		return all;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		Arrays.fill(keys, FREE);
+		values = new Object[capacity];
+
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != FREE) {
+				int i = slot(oldKeys[j], mask);
+				while (keys[i] != FREE) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	/**
+	 * Spreads the key's bits, as consecutive ID's would otherwise fill
+	 * consecutive slots
+	 */
+	private static int slot(int key, int mask) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
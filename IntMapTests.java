@@ -0,0 +1,64 @@
+package ubergloss.serviceTests;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import ubergloss.services.IntMap;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class IntMapTests {
+
+	@Test
+	public void put_ExistingKey_ValueReplaced() {
+		IntMap<String> map = new IntMap<String>();
+
+		assertNull(map.put(7, "a"));
+		assertEquals("a", map.put(7, "b"));
+		assertEquals("b", map.get(7));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void randomOperations_ManyKeys_MatchHashMap() {
+		Random random = new Random(5);
+
+		// a small range has keys removed from the middle of long runs
+		for(int range : new int[] { 100, 5000, Integer.MAX_VALUE }) {
+			IntMap<Integer> map = new IntMap<Integer>();
+			Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+			for(int i = 0; i < 50000; i++) {
+				int key = random.nextInt(range);
+				if(random.nextInt(3) == 0) {
+					assertEquals(expected.remove(key), map.remove(key));
+				} else {
+					assertEquals(expected.put(key, i), map.put(key, i));
+				}
+				key = random.nextInt(range);
+				assertEquals(expected.get(key), map.get(key));
+			}
+
+			assertEquals(expected.size(), map.size());
+			for(Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+				assertEquals(entry.getValue(), map.get(entry.getKey()));
+			}
+			int[] keys = map.keys();
+			Arrays.sort(keys);
+			assertTrue(Arrays.equals(sorted(expected), keys));
+		}
+	}
+
+	private static int[] sorted(Map<Integer, Integer> map) {
+		int[] keys = new int[map.size()];
+		int n = 0;
+		for(int key : map.keySet()) {
+			keys[n++] = key;
+		}
+		Arrays.sort(keys);
+		return keys;
+	}
+}
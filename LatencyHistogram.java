@@ -0,0 +1,119 @@
+package ubergloss.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds,
+ * with buckets that grow with the values in the style of HdrHistogram.
+ * Values below 64 have a bucket each; above that, each power of two is split
+ * into 32 buckets, so any value is reported to within about 3%. The whole
+ * range of a long fits in under two thousand buckets.
+ * 
+ * Recording is a few atomic increments, without locking, so it can be done
+ * on every search from every thread.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS)
+			* HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value; negative values are counted as zero
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns the value at or below which the given percentage of recorded
+	 * values fall, as the top of the bucket it lands in
+	 * 
+	 * @param percentile
+	 *            from 0 to 100
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestIn(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets every recorded value. Values recorded during a reset may be
+	 * partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - (SUB_BUCKET_BITS - 1);
+		int sub = (int) (value >>> shift);
+
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * HALF + sub - HALF;
+	}
+
+	static long highestIn(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int k = index - SUB_BUCKETS;
+		int shift = k / HALF + 1;
+		long sub = HALF + k % HALF;
+
+		return ((sub + 1) << shift) - 1;
+	}
+}
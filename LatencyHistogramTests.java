@@ -0,0 +1,76 @@
+package ubergloss.serviceTests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ubergloss.services.LatencyHistogram;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTests {
+	
+	@Test
+	public void getPercentile_Empty_Zero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		
+		assertEquals(0, histogram.getPercentile(99));
+		assertEquals(0, histogram.getCount());
+	}
+	
+	@Test
+	public void getPercentile_SmallValues_Exact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 50; i++) {
+			histogram.record(i);
+		}
+		
+		assertEquals(25, histogram.getPercentile(50));
+		assertEquals(50, histogram.getPercentile(100));
+		assertEquals(25.5, histogram.getMean(), 0.001);
+	}
+	
+	@Test
+	public void getPercentile_RandomLatencies_WithinThreePercent() {
+		Random random = new Random(5);
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] values = new long[100000];
+		
+		// spread over microseconds to seconds
+		for(int i = 0; i < values.length; i++) {
+			values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 6);
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		
+		for(double percentile : new double[] { 1, 25, 50, 90, 99, 99.9 }) {
+			long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			long reported = histogram.getPercentile(percentile);
+			
+			assertTrue(percentile + ": " + reported + " vs " + exact, 
+					reported >= exact && reported <= exact * 1.03 + 1);
+		}
+		assertEquals(values[values.length - 1], histogram.getMax());
+	}
+	
+	@Test
+	public void record_HugeValue_Counted() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(-5);
+		
+		assertEquals(2, histogram.getCount());
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+		assertEquals(0, histogram.getPercentile(50));
+	}
+	
+	@Test
+	public void reset_AfterRecording_Empty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		histogram.reset();
+		
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+}
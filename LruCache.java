@@ -0,0 +1,44 @@
+package ubergloss.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small thread-safe cache which keeps only its most recently used entries.
+ * 
+ * @author George Kinsman
+ * 
+ */
+class LruCache<K, V> {
+
+	private final Map<K, V> entries;
+
+	public LruCache(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException(
+					"the cache must hold at least one entry.");
+
+		entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(K key, V value) {
+		entries.put(key, value);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
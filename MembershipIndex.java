@@ -0,0 +1,398 @@
+package ubergloss.services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+
+/**
+ * Holds, for every tag and locale, a compressed bitmap of the ID's of the
+ * definitions carrying it. Tag and locale filters become bitmap
+ * intersections, and checking whether a single definition carries a tag or
+ * locale is a bitmap lookup rather than a walk over its lists.
+ *
+ * A tag filter also matches the tag's descendants, so the tagged
+ * definitions are the union of the bitmaps of the tag's subtree, and a
+ * definition carries a tag if any of its own tags is within the subtree.
+ *
+ * Each definition's own tags are also held as the ordinals of their names,
+ * keyed by its ID, so checking one definition is a walk over a few ints.
+ *
+ * Tag and locale names are compared case-insensitively, as the filters are.
+ * Definition ID's must be numeric; the checks take them as ints.
+ *
+ * The index is loaded from the database on first use and is kept up to date
+ * through the GlossaryChangeListener callbacks.
+ *
+ * @author George Kinsman
+ *
+ */
+public class MembershipIndex extends GlossaryChangeAdapter {
+
+	private static final String ALL_TAGS = "SELECT tagdef.defID, tags.name FROM tags, tagdef WHERE tagdef.tagID = tags.tagID;";
+	private static final String ALL_LOCALES = "SELECT localedef.defID, locales.shortName FROM locales, localedef WHERE localedef.localeID = locales.localeID;";
+
+	private static final IntBitmap EMPTY = new IntBitmap();
+
+	private ConnectionPool pool;
+	private TagHierarchy hierarchy;
+
+	private Map<String, IntBitmap> tags = new HashMap<String, IntBitmap>();
+	private Map<String, IntBitmap> locales = new HashMap<String, IntBitmap>();
+	// the ordinals of each definition's tags, for checking one definition
+	// at a time
+	private IntMap<int[]> tagsOf = new IntMap<int[]>();
+	private OrdinalTable<String> tagNames = new OrdinalTable<String>();
+	private boolean loaded = false;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public MembershipIndex(ConnectionPool pool, TagHierarchy hierarchy) {
+		if (pool == null || hierarchy == null)
+			throw new IllegalArgumentException(
+					"the connection pool or tag hierarchy must be non-null.");
+		this.pool = pool;
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Returns a copy of the ID's of every definition with the tag or one of
+	 * its descendants
+	 *
+	 * @param tagName
+	 * @return the ID's of the tagged definitions
+	 */
+	public IntBitmap getTagged(String tagName) {
+		List<String> subtree = hierarchy.getSubtree(tagName);
+
+		if (subtree.size() == 1) {
+			return copyOf(tags, tagName);
+		}
+
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			IntBitmap tagged = new IntBitmap();
+			for (String name : subtree) {
+				IntBitmap bitmap = tags.get(name);
+				if (bitmap != null) {
+					tagged = tagged.or(bitmap);
+				}
+			}
+			return tagged;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the ID's of every definition in the locale
+	 *
+	 * @param shortName
+	 * @return the ID's of the definitions in the locale
+	 */
+	public IntBitmap getInLocale(String shortName) {
+		return copyOf(locales, shortName);
+	}
+
+	/**
+	 * @return the number of definitions with the tag
+	 */
+	public int countTagged(String tagName) {
+		if (hierarchy.getSubtree(tagName).size() == 1) {
+			return count(tags, tagName);
+		}
+		return getTagged(tagName).cardinality();
+	}
+
+	/**
+	 * @return the number of definitions in the locale
+	 */
+	public int countInLocale(String shortName) {
+		return count(locales, shortName);
+	}
+
+	/**
+	 * @return true if the definition has the tag itself, rather than only one
+	 *         of its descendants
+	 */
+	public boolean hasOwnTag(int defID, String tagName) {
+		return contains(tags, tagName, defID);
+	}
+
+	/**
+	 * @return true if the definition has the tag or one of its descendants
+	 */
+	public boolean isTagged(int defID, String tagName) {
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			int[] ordinals = tagsOf.get(defID);
+			if (ordinals == null) {
+				return false;
+			}
+
+			// each check is a comparison of the tags' subtree intervals
+			for (int ordinal : ordinals) {
+				if (hierarchy.isWithin(tagNames.get(ordinal), tagName)) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the definition is in the locale
+	 */
+	public boolean isInLocale(int defID, String shortName) {
+		return contains(locales, shortName, defID);
+	}
+
+	@Override
+	public void tagAdded(String defID, String tagName) {
+		updateTag(tagName, defID, true);
+	}
+
+	@Override
+	public void tagRemoved(String defID, String tagName) {
+		updateTag(tagName, defID, false);
+	}
+
+	@Override
+	public void localeAdded(String defID, String shortName) {
+		update(locales, shortName, defID, true);
+	}
+
+	@Override
+	public void localeRemoved(String defID, String shortName) {
+		update(locales, shortName, defID, false);
+	}
+
+	@Override
+	public void tagDeleted(String tagName) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			IntBitmap bitmap = tags.get(tagName.toLowerCase());
+			if (bitmap != null) {
+				for (int id : bitmap.toArray()) {
+					putTag(tagName, id, false);
+				}
+			}
+			tags.remove(tagName.toLowerCase());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void localeDeleted(String shortName) {
+		drop(locales, shortName);
+	}
+
+	@Override
+	public void definitionDeleted(String defID) {
+		ensureLoaded();
+		int id = Integer.parseInt(defID);
+
+		lock.writeLock().lock();
+		try {
+			for (IntBitmap bitmap : tags.values()) {
+				bitmap.remove(id);
+			}
+			for (IntBitmap bitmap : locales.values()) {
+				bitmap.remove(id);
+			}
+			tagsOf.remove(id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private IntBitmap copyOf(Map<String, IntBitmap> index, String name) {
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			IntBitmap bitmap = index.get(name.toLowerCase());
+			return bitmap == null ? new IntBitmap() : bitmap.copy();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int count(Map<String, IntBitmap> index, String name) {
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			IntBitmap bitmap = index.get(name.toLowerCase());
+			return bitmap == null ? 0 : bitmap.cardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private boolean contains(Map<String, IntBitmap> index, String name,
+			int defID) {
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			IntBitmap bitmap = index.get(name.toLowerCase());
+			return (bitmap == null ? EMPTY : bitmap).contains(defID);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void update(Map<String, IntBitmap> index, String name,
+			String defID, boolean add) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			put(index, name, Integer.parseInt(defID), add);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void drop(Map<String, IntBitmap> index, String name) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			index.remove(name.toLowerCase());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void updateTag(String tagName, String defID, boolean add) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			putTag(tagName, Integer.parseInt(defID), add);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void putTag(String tagName, int id, boolean add) {
+		put(tags, tagName, id, add);
+
+		String key = tagName.toLowerCase();
+		int[] ordinals = tagsOf.get(id);
+		int position = indexOf(ordinals, tagNames.ordinalOf(key));
+		if (add) {
+			if (position < 0) {
+				int[] added = ordinals == null ? new int[1] : Arrays.copyOf(
+						ordinals, ordinals.length + 1);
+				added[added.length - 1] = tagNames.add(key, key);
+				tagsOf.put(id, added);
+			}
+		} else if (position >= 0) {
+			if (ordinals.length == 1) {
+				tagsOf.remove(id);
+			} else {
+				int[] removed = new int[ordinals.length - 1];
+				System.arraycopy(ordinals, 0, removed, 0, position);
+				System.arraycopy(ordinals, position + 1, removed, position,
+						removed.length - position);
+				tagsOf.put(id, removed);
+			}
+		}
+	}
+
+	/**
+	 * @return where the ordinal is in the array, or -1 if it isn't, or the
+	 *         array is null or the ordinal -1
+	 */
+	private static int indexOf(int[] ordinals, int ordinal) {
+		if (ordinals == null || ordinal < 0) {
+			return -1;
+		}
+		for (int i = 0; i < ordinals.length; i++) {
+			if (ordinals[i] == ordinal) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void put(Map<String, IntBitmap> index, String name, int id,
+			boolean add) {
+		String key = name.toLowerCase();
+		IntBitmap bitmap = index.get(key);
+
+		if (add) {
+			if (bitmap == null) {
+				bitmap = new IntBitmap();
+				index.put(key, bitmap);
+			}
+			bitmap.add(id);
+		} else if (bitmap != null) {
+			bitmap.remove(id);
+		}
+	}
+
+	private void ensureLoaded() {
+		lock.readLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+			PooledConnection conn = pool.borrow();
+			try {
+				Statement statement = conn.createStatement();
+
+				ResultSet rs = statement.executeQuery(ALL_TAGS);
+				while (rs.next()) {
+					putTag(rs.getString("name"), rs.getInt("defID"), true);
+				}
+				rs.close();
+
+				rs = statement.executeQuery(ALL_LOCALES);
+				while (rs.next()) {
+					put(locales, rs.getString("shortName"), rs
+							.getInt("defID"), true);
+				}
+				rs.close();
+
+				statement.close();
+			} finally {
+				pool.release(conn);
+			}
+			loaded = true;
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
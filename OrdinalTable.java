@@ -0,0 +1,67 @@
+package ubergloss.services;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives each distinct value a small int, its ordinal, and hands back one
+ * shared instance of the value for it. Definitions then hold the ordinals of
+ * their tags and locales in an int[] rather than a list of objects of their
+ * own, and a tag carried by a thousand definitions is one object, not a
+ * thousand.
+ *
+ * Values are never removed, so an ordinal stays valid for as long as the
+ * table lives. Safe to share between threads.
+ *
+ * @author George Kinsman
+ *
+ */
+class OrdinalTable<T> {
+
+	private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+	private Object[] values = new Object[16];
+	private int size = 0;
+
+	/**
+	 * @return the ordinal of the value with the key, or -1 if there isn't one
+	 */
+	public synchronized int ordinalOf(String key) {
+		Integer ordinal = ordinals.get(key);
+		return ordinal == null ? -1 : ordinal;
+	}
+
+	/**
+	 * Adds a value under the key, unless one is already there
+	 *
+	 * @return the ordinal of the value now held under the key
+	 */
+	public synchronized int add(String key, T value) {
+		Integer ordinal = ordinals.get(key);
+		if (ordinal != null) {
+			return ordinal;
+		}
+
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size] = value;
+		ordinals.put(key, size);
+		return size++;
+	}
+
+	/**
+	 * @return the shared value with the ordinal
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized T get(int ordinal) {
+		if (ordinal < 0 || ordinal >= size)
+			throw new IndexOutOfBoundsException("no value has the ordinal "
+					+ ordinal + ".");
+		return (T) values[ordinal];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+}
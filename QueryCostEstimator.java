@@ -0,0 +1,82 @@
+package ubergloss.services;
+
+import java.util.Set;
+
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+
+/**
+ * Estimates how much work a search will be before any of it is done, so
+ * searches that would swamp the database can be held back, degraded or
+ * turned away.
+ *
+ * The cost is the work of every fuzzy term lookup plus the candidates the
+ * search's most selective filter is expected to produce, all measured in
+ * definitions. Term matches are counted from the term index's windows,
+ * without a fuzzy search.
+ *
+ * @author George Kinsman
+ *
+ */
+class QueryCostEstimator {
+
+	private DefinitionTextIndex definitionIndex;
+	private FuzzyTermIndex termIndex;
+	private MembershipIndex membershipIndex;
+	private int termDistance;
+
+	public QueryCostEstimator(DefinitionTextIndex definitionIndex,
+			FuzzyTermIndex termIndex, MembershipIndex membershipIndex,
+			int termDistance) {
+		this.definitionIndex = definitionIndex;
+		this.termIndex = termIndex;
+		this.membershipIndex = membershipIndex;
+		this.termDistance = termDistance;
+	}
+
+	/**
+	 * Returns the estimated cost of performing the search
+	 *
+	 * @param filters
+	 * @param degraded
+	 *            whether the search's short terms are to be matched at
+	 *            their degraded distance
+	 * @return the estimated cost, in definitions
+	 */
+	public long estimate(Set<Filter> filters, boolean degraded) {
+		long lookups = 0;
+		long candidates = Long.MAX_VALUE;
+
+		for (Filter filter : filters) {
+			long matches;
+			if (filter.getType() == FilterTypes.Term) {
+				String term = filter.getQuery();
+				matches = termIndex.countContaining(term, degraded ? degradedDistance(
+						term, termDistance) : termDistance);
+				lookups += matches;
+			} else if (filter.getType() == FilterTypes.Definition) {
+				matches = definitionIndex.estimate(filter.getQuery());
+			} else if (filter.getType() == FilterTypes.Tag) {
+				matches = membershipIndex.countTagged(filter.getQuery());
+			} else {
+				matches = membershipIndex.countInLocale(filter.getQuery());
+			}
+			candidates = Math.min(candidates, matches);
+		}
+		return filters.isEmpty() ? 0 : lookups + candidates;
+	}
+
+	/**
+	 * Returns the distance a term is matched at when its search is
+	 * degraded: one less than its length, so even a one letter term can no
+	 * longer match every short term, and never more than the usual distance
+	 *
+	 * @param term
+	 * @param distance
+	 *            the usual distance
+	 * @return the degraded distance
+	 */
+	public static int degradedDistance(String term, int distance) {
+		return Math.min(distance, Math.max(0, term.length() - 1));
+	}
+}
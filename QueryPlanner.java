@@ -0,0 +1,103 @@
+package ubergloss.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+
+/**
+ * Estimates how many definitions each filter matches, so a search can start
+ * from its most selective filter rather than the union of them all.
+ *
+ * Every estimate comes from the in-memory indexes, so planning never touches
+ * the database. Tag and locale counts are exact; definition estimates are an
+ * upper bound. Term counts are exact, and come from a lookup of the term's
+ * windows rather than a fuzzy search.
+ *
+ * @author George Kinsman
+ *
+ */
+class QueryPlanner {
+
+	private DefinitionTextIndex definitionIndex;
+	private FuzzyTermIndex termIndex;
+	private MembershipIndex membershipIndex;
+	private int termDistance;
+
+	public QueryPlanner(DefinitionTextIndex definitionIndex,
+			FuzzyTermIndex termIndex, MembershipIndex membershipIndex,
+			int termDistance) {
+		this.definitionIndex = definitionIndex;
+		this.termIndex = termIndex;
+		this.membershipIndex = membershipIndex;
+		this.termDistance = termDistance;
+	}
+
+	/**
+	 * Returns the filters in order of how many definitions they're expected
+	 * to match, most selective first
+	 *
+	 * @param filters
+	 * @return the same filters, most selective first
+	 */
+	public List<Filter> order(Set<Filter> filters) {
+		return order(filters, false);
+	}
+
+	/**
+	 * As order, for a search whose short terms are matched at a lower
+	 * distance because it has been degraded
+	 *
+	 * @param filters
+	 * @param degraded
+	 * @return the same filters, most selective first
+	 */
+	public List<Filter> order(Set<Filter> filters, boolean degraded) {
+		final Map<Filter, Integer> estimates = new HashMap<Filter, Integer>();
+
+		for (Filter filter : filters) {
+			estimates.put(filter, estimate(filter, degraded));
+		}
+
+		List<Filter> ordered = new ArrayList<Filter>(filters);
+		Collections.sort(ordered, new Comparator<Filter>() {
+			public int compare(Filter a, Filter b) {
+				return estimates.get(a).compareTo(estimates.get(b));
+			}
+		});
+		return ordered;
+	}
+
+	/**
+	 * Returns an estimate of the number of definitions that match the filter
+	 *
+	 * @param filter
+	 * @return the estimated number of matching definitions
+	 */
+	public int estimate(Filter filter) {
+		return estimate(filter, false);
+	}
+
+	public int estimate(Filter filter, boolean degraded) {
+		if (filter.getType() == FilterTypes.Definition) {
+			return definitionIndex.estimate(filter.getQuery());
+
+		} else if (filter.getType() == FilterTypes.Term) {
+			int distance = degraded ? QueryCostEstimator.degradedDistance(
+					filter.getQuery(), termDistance) : termDistance;
+			return termIndex.countContaining(filter.getQuery(), distance);
+
+		} else if (filter.getType() == FilterTypes.Tag) {
+			return membershipIndex.countTagged(filter.getQuery());
+
+		} else {
+			return membershipIndex.countInLocale(filter.getQuery());
+		}
+	}
+}
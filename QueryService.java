@@ -1,14 +1,27 @@
 package ubergloss.services;
 
-import java.sql.CallableStatement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.regex.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import ubergloss.connectors.AbstractConnector;
 import ubergloss.objects.Definition;
@@ -17,43 +30,474 @@ import ubergloss.objects.Filter.FilterTypes;
 import ubergloss.objects.Locale;
 import ubergloss.objects.SearchResult;
 import ubergloss.objects.Tag;
+import ubergloss.services.ConnectionPool.PooledConnection;
 
-public class QueryService {
+public class QueryService implements GlossaryChangeListener {
 
-	private static final int LEVENSHTEIN_DISTANCE = 3;
-	
-	// query to search for a term in the database
-	protected CallableStatement searchForTerm;
-	protected PreparedStatement searchInDefinition;
-	protected PreparedStatement searchInTerm;
+	static final int LEVENSHTEIN_DISTANCE = 3;
+
+	// candidate sets at or below this size are verified rather than
+	// intersected with further filters
+	private static final int VERIFY_BELOW = 100;
+	// a further filter is only worth retrieving to intersect with when it
+	// isn't expected to be much larger than the candidates so far
+	private static final int INTERSECT_RATIO = 10;
+
+	// connections opened when no pool is given. A QueryService is shared by
+	// every servlet thread, so nothing here may hold a statement between
+	// calls; each call borrows a connection from the pool instead.
+	private static final int DEFAULT_POOL_SIZE = 8;
+
+	// how long a search may spend fetching before it's abandoned
+	private static final long DEFAULT_SEARCH_TIMEOUT_MILLIS = 10000;
+
+	// distinct query strings to keep parsed
+	private static final int PARSED_QUERY_CACHE_SIZE = 1024;
+
+	// memory the cached search results may hold, in bytes
+	private static final long RESULT_CACHE_WEIGHT = 32L * 1024 * 1024;
+
+	// rows to read from the database at a time when searching terms
+	private static final int TERM_FETCH_SIZE = 200;
+
+	// the most completions a term prefix can have
+	private static final int MAX_COMPLETIONS = 10;
 
-	private AbstractConnector connection;
+	// candidates a search with a deadline checks between looking at the
+	// clock
+	private static final int DEADLINE_CHECK_EVERY = 64;
+
+	private static final String SEARCH_IN_TERM = "SELECT definitions.defID, rank, definition, termdef.term FROM definitions, termdef WHERE termdef.term LIKE ? AND termdef.defID = definitions.defID;";
+
+	private ConnectionPool pool;
 	private DefinitionService defServ;
-	private TagService tagserv;
-	private LocaleService locserv;
+	private DefinitionHydrator hydrator;
+	private DefinitionTextIndex definitionIndex;
+	private FuzzyTermIndex termIndex;
+	private TermCompleter completer;
+	private TagHierarchy tagHierarchy;
+	private MembershipIndex membershipIndex;
+	private VocabularyDictionary vocabulary;
+	private QueryPlanner planner;
+	private QueryCostEstimator costEstimator;
+	private RelevanceScorer scorer;
+	private FanOut fanOut;
+	private LruCache<String, List<ParsedFilter>> parsedQueries = new LruCache<String, List<ParsedFilter>>(
+			PARSED_QUERY_CACHE_SIZE);
+	private SearchResultCache resultCache;
+	// how costly and how selective each type of filter has been, to order
+	// each search's checks by
+	private FilterChain.Statistics filterStatistics = new FilterChain.Statistics();
+	private FilterChain.Check filterCheck = new FilterChain.Check() {
+		public boolean passes(Definition def, int id, Filter filter) {
+			return passesFilter(def, id, filter, false);
+		}
+	};
+	private FilterChain.Check degradedFilterCheck = new FilterChain.Check() {
+		public boolean passes(Definition def, int id, Filter filter) {
+			return passesFilter(def, id, filter, true);
+		}
+	};
+
+	private volatile long searchTimeoutMillis = DEFAULT_SEARCH_TIMEOUT_MILLIS;
+	private volatile boolean parallelHydration = false;
+	// told how long each stage of each call took, or null for no timing
+	private volatile SearchMetrics metrics = null;
+
+	// holds back, degrades or turns away costly searches, or null to let
+	// every search straight through
+	private volatile AdmissionControl admissionControl = null;
+
+	// answers performSearch without the database when in-memory search is on
+	private volatile SnapshotSearchEngine snapshotEngine = null;
+
+	// in-memory indexes to be told about every write to the glossary
+	private List<GlossaryChangeListener> listeners = new CopyOnWriteArrayList<GlossaryChangeListener>();
 
 	public QueryService(AbstractConnector conn, DefinitionService defServ) {
-		if (conn == null || defServ == null)
+		this(conn, defServ, conn == null ? null : new ConnectionPool(conn,
+				DEFAULT_POOL_SIZE));
+	}
+
+	// the term index loads from the same pool as everything else
+	private QueryService(AbstractConnector conn, DefinitionService defServ,
+			ConnectionPool pool) {
+		this(conn, defServ, pool == null ? null : new BKTreeTermIndex(pool),
+				pool);
+	}
+
+	public QueryService(AbstractConnector conn, DefinitionService defServ,
+			FuzzyTermIndex termIndex) {
+		this(conn, defServ, termIndex, conn == null ? null
+				: new ConnectionPool(conn, DEFAULT_POOL_SIZE));
+	}
+
+	public QueryService(AbstractConnector conn, DefinitionService defServ,
+			FuzzyTermIndex termIndex, ConnectionPool pool) {
+		if (conn == null || defServ == null || termIndex == null || pool == null)
 			throw new IllegalArgumentException(
-					"the connection or definition service must be non-null.");
+					"the connection, definition service, term index or pool must be non-null.");
+		this.pool = pool;
+		this.defServ = defServ;
+		hydrator = new DefinitionHydrator(pool);
+
+		definitionIndex = new DefinitionTextIndex(pool);
+		listeners.add(definitionIndex);
+
+		this.termIndex = termIndex;
+		listeners.add(termIndex);
+
+		completer = new TermCompleter(pool, MAX_COMPLETIONS);
+		listeners.add(completer);
+
+		tagHierarchy = new TagHierarchy(pool);
+		listeners.add(tagHierarchy);
+
+		membershipIndex = new MembershipIndex(pool, tagHierarchy);
+		listeners.add(membershipIndex);
+
+		vocabulary = new VocabularyDictionary(pool);
+		listeners.add(vocabulary);
+
+		planner = new QueryPlanner(definitionIndex, termIndex,
+				membershipIndex, LEVENSHTEIN_DISTANCE);
+
+		costEstimator = new QueryCostEstimator(definitionIndex, termIndex,
+				membershipIndex, LEVENSHTEIN_DISTANCE);
+
+		scorer = new RelevanceScorer(membershipIndex, LEVENSHTEIN_DISTANCE);
+
+		fanOut = new FanOut(pool.getSize());
+
+		// a tag or locale that has come or gone changes which filters
+		// verify. Tagging a definition only does when it's the first use of
+		// a name the vocabulary hadn't seen, so the vocabulary's version,
+		// already updated as it's told first, says whether to clear.
+		listeners.add(new GlossaryChangeAdapter() {
+			private long seen = vocabulary.getVersion();
+
+			public void tagAdded(String defID, String tagName) {
+				vocabularyChanged();
+			}
+
+			public void localeAdded(String defID, String shortName) {
+				vocabularyChanged();
+			}
+
+			public void tagCreated(String tagName) {
+				vocabularyChanged();
+			}
+
+			public void tagDeleted(String tagName) {
+				vocabularyChanged();
+			}
+
+			public void localeCreated(String shortName) {
+				vocabularyChanged();
+			}
+
+			public void localeDeleted(String shortName) {
+				vocabularyChanged();
+			}
+
+			private synchronized void vocabularyChanged() {
+				long version = vocabulary.getVersion();
+				if (version != seen) {
+					seen = version;
+					parsedQueries.clear();
+				}
+			}
+		});
+
+		// told last, once every index it could be answered from is current
+		resultCache = new SearchResultCache(RESULT_CACHE_WEIGHT,
+				new SearchResultCache.Matcher() {
+					public boolean passes(Definition def, Set<Filter> filters) {
+						return passesFilters(def, filters);
+					}
+				}, tagHierarchy);
+		listeners.add(resultCache);
+	}
+
+	/**
+	 * Sets how long a search may spend fetching its filters, or hydrating
+	 * definitions, before it's abandoned with an exception
+	 * 
+	 * @param millis
+	 */
+	public void setSearchTimeout(long millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("the timeout must be positive.");
+		searchTimeoutMillis = millis;
+	}
+
+	/**
+	 * Sets whether getCompleteDefinitions loads each batch of definitions on
+	 * its own connection at the same time, rather than one after another
+	 * 
+	 * @param parallel
+	 */
+	public void setParallelHydration(boolean parallel) {
+		parallelHydration = parallel;
+	}
+
+	/**
+	 * Sets whether performSearch is answered entirely from a snapshot of the
+	 * glossary held in memory, without the database. Turning it on reads the
+	 * whole glossary once; from then on the snapshot is kept current by the
+	 * changes reported to this service, so every write must be.
+	 * 
+	 * @param inMemory
+	 */
+	public synchronized void setInMemorySearch(boolean inMemory) {
+		if (inMemory && snapshotEngine == null) {
+			SnapshotSearchEngine engine = new SnapshotSearchEngine(pool,
+					LEVENSHTEIN_DISTANCE);
+			// listen before loading, so no change made during the load is
+			// missed
+			listeners.add(engine);
+			engine.load();
+			snapshotEngine = engine;
+		} else if (!inMemory && snapshotEngine != null) {
+			listeners.remove(snapshotEngine);
+			snapshotEngine = null;
+		}
+	}
+
+	public boolean isInMemorySearch() {
+		return snapshotEngine != null;
+	}
+
+	/**
+	 * Reloads the tag and locale names used to verify filters, for when they
+	 * have been changed without going through this service
+	 */
+	public void refreshVocabulary() {
+		vocabulary.refresh();
+		parsedQueries.clear();
+	}
+
+	/**
+	 * Returns the cache of search results, for its hit, miss and eviction
+	 * counts
+	 */
+	public SearchResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Sets where the timings of each search stage are recorded, such as a
+	 * SearchStatistics. With none set, which is the default, nothing is
+	 * timed.
+	 * 
+	 * @param metrics
+	 *            the metrics to record to, or null to stop recording
+	 */
+	public void setMetrics(SearchMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public SearchMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets what decides whether each search that isn't already cached may
+	 * run, by its estimated cost. With none set, which is the default,
+	 * every search runs at once and in full.
+	 * 
+	 * @param admissionControl
+	 *            the admission control to use, or null to stop using one
+	 */
+	public void setAdmissionControl(AdmissionControl admissionControl) {
+		this.admissionControl = admissionControl;
+	}
+
+	public AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
+	/**
+	 * Stops the search threads and closes the pooled connections
+	 */
+	public void shutdown() {
+		fanOut.shutdown();
+		pool.close();
+	}
+
+	/**
+	 * A filter as it was parsed and validated, kept in the parsed query cache
+	 */
+	private static class ParsedFilter {
+		final FilterTypes type;
+		final String query;
+		final boolean verified;
+
+		ParsedFilter(FilterTypes type, String query, boolean verified) {
+			this.type = type;
+			this.query = query;
+			this.verified = verified;
+		}
+
+		Filter toFilter() {
+			Filter filter = new Filter(type, query);
+			if (verified) {
+				filter.setVerified(true);
+			}
+			return filter;
+		}
+	}
+
+	/**
+	 * The ordinals of the tags and locales of one batch of definitions, in
+	 * the order of the batch's ID's
+	 */
+	private static class Hydration {
+		int[][] tags;
+		int[][] locales;
+		int roundTrips;
+	}
+
+	/**
+	 * A definition passing a ranked search, with its relevance
+	 */
+	private static class Scored {
+		final Definition def;
+		final int relevance;
+		final int id;
+
+		Scored(Definition def, int relevance) {
+			this.def = def;
+			this.relevance = relevance;
+			this.id = Integer.parseInt(def.getID());
+		}
+	}
+
+	// most relevant first, then by ID so pages are stable between calls
+	private static final Comparator<Scored> BY_RELEVANCE = new Comparator<Scored>() {
+		public int compare(Scored a, Scored b) {
+			if (a.relevance != b.relevance) {
+				return a.relevance > b.relevance ? -1 : 1;
+			}
+			return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+		}
+	};
+
+	private final FanOut.Task<Filter, Collection<Definition>> retrieveTask = new FanOut.Task<Filter, Collection<Definition>>() {
+		public Collection<Definition> call(Filter filter) {
+			return retrieve(filter);
+		}
+	};
+
+	private final FanOut.Task<Filter, Collection<Definition>> degradedRetrieveTask = new FanOut.Task<Filter, Collection<Definition>>() {
+		public Collection<Definition> call(Filter filter) {
+			return retrieve(filter, true);
+		}
+	};
+
+	private final FanOut.Task<int[], Hydration> hydrateTask = new FanOut.Task<int[], Hydration>() {
+		public Hydration call(int[] ids) throws SQLException {
+			Hydration hydration = new Hydration();
+			hydration.tags = hydrator.getTagOrdinals(ids);
+			hydration.locales = hydrator.getLocaleOrdinals(ids);
+			// one query for tags and one for locales, per chunk
+			hydration.roundTrips = 2 * ((ids.length
+					+ DefinitionHydrator.CHUNK_SIZE - 1) / DefinitionHydrator.CHUNK_SIZE);
+			return hydration;
+		}
+	};
+
+	/**
+	 * Must be called by whatever saves a definition, so the search indexes
+	 * stay consistent with the database
+	 */
+	public void definitionSaved(Definition def) {
+		checkID(def.getID());
+		for (GlossaryChangeListener listener : listeners) {
+			listener.definitionSaved(def);
+		}
+	}
+
+	/**
+	 * Must be called by whatever deletes a definition, so the search indexes
+	 * stay consistent with the database
+	 */
+	public void definitionDeleted(String defID) {
+		for (GlossaryChangeListener listener : listeners) {
+			listener.definitionDeleted(defID);
+		}
+	}
+
+	public void tagAdded(String defID, String tagName) {
+		checkID(defID);
+		for (GlossaryChangeListener listener : listeners) {
+			listener.tagAdded(defID, tagName);
+		}
+	}
+
+	public void tagRemoved(String defID, String tagName) {
+		for (GlossaryChangeListener listener : listeners) {
+			listener.tagRemoved(defID, tagName);
+		}
+	}
+
+	public void localeAdded(String defID, String shortName) {
+		checkID(defID);
+		for (GlossaryChangeListener listener : listeners) {
+			listener.localeAdded(defID, shortName);
+		}
+	}
+
+	public void localeRemoved(String defID, String shortName) {
+		for (GlossaryChangeListener listener : listeners) {
+			listener.localeRemoved(defID, shortName);
+		}
+	}
+
+	public void tagCreated(String tagName) {
+		for (GlossaryChangeListener listener : listeners) {
+			listener.tagCreated(tagName);
+		}
+	}
+
+	public void tagDeleted(String tagName) {
+		for (GlossaryChangeListener listener : listeners) {
+			listener.tagDeleted(tagName);
+		}
+	}
+
+	public void tagMoved(String tagName, String parentName) {
+		for (GlossaryChangeListener listener : listeners) {
+			listener.tagMoved(tagName, parentName);
+		}
+	}
+
+	public void localeCreated(String shortName) {
+		for (GlossaryChangeListener listener : listeners) {
+			listener.localeCreated(shortName);
+		}
+	}
+
+	public void localeDeleted(String shortName) {
+		for (GlossaryChangeListener listener : listeners) {
+			listener.localeDeleted(shortName);
+		}
+	}
+
+	/**
+	 * Turns away a definition ID that isn't a non-negative int before any
+	 * index is told of it, so a bad ID can't leave the indexes half updated
+	 */
+	private static void checkID(String defID) {
+		int id;
 		try {
-			searchForTerm = conn.getDBConnection().prepareCall(
-					"{CALL SEARCH(?,?)}");
-
-			searchInDefinition = conn
-					.getDBConnection()
-					.prepareStatement(
-							"SELECT definitions.defID, rank, definition, termdef.term FROM definitions, termdef WHERE definition LIKE ? AND termdef.defID = definitions.defID;");
-			searchInTerm = conn.getDBConnection().prepareStatement(
-					"SELECT definitions.defID, rank, definition, termdef.term FROM definitions, termdef WHERE termdef.term LIKE ? AND termdef.defID = definitions.defID;");
-		
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+			id = Integer.parseInt(defID);
+		} catch (NumberFormatException e) {
+			id = -1;
 		}
-		connection = conn;
-		this.defServ = defServ;
-		locserv = new LocaleService(conn);
-		tagserv = new TagService(conn);
+		if (id < 0)
+			throw new IllegalArgumentException(
+					"definition ID's must be non-negative ints.");
 	}
 
 	/**
@@ -61,11 +505,18 @@ public class QueryService {
 	 * a definition, including locales and tags. It's purpose is to reduce the 
 	 * number of database queries.
 	 * 
+	 * Hydrated tags and locales are held as ordinals of the instances the
+	 * hydrator shares between definitions, and the definition's ID as an int.
+	 * 
 	 * @author George Kinsman
 	 * 
 	 */
 	public class CompleteDefinition {
 		private Definition def = null;
+		private int id;
+		private int[] tagOrdinals = null;
+		private int[] localeOrdinals = null;
+		// tags and locales given directly rather than hydrated, held as given
 		private List<Tag> tags = null;
 		private List<Locale> locales = null;
 
@@ -76,8 +527,16 @@ public class QueryService {
 			this.setLocales(locales);
 		}
 
+		private CompleteDefinition(Definition def, int[] tagOrdinals,
+				int[] localeOrdinals) {
+			this.setDefinition(def);
+			this.tagOrdinals = tagOrdinals;
+			this.localeOrdinals = localeOrdinals;
+		}
+
 		public void setDefinition(Definition def) {
 			this.def = def;
+			this.id = def == null ? 0 : Integer.parseInt(def.getID());
 		}
 
 		public Definition getDefinition() {
@@ -86,197 +545,1361 @@ public class QueryService {
 
 		public void setTags(List<Tag> tags) {
 			this.tags = tags;
+			this.tagOrdinals = null;
 		}
 
+		/**
+		 * @return the definition's tags; a new list if they were hydrated
+		 */
 		public List<Tag> getTags() {
-			return tags;
+			if (tagOrdinals == null) {
+				return tags;
+			}
+			List<Tag> toReturn = new ArrayList<Tag>(tagOrdinals.length);
+			for (int ordinal : tagOrdinals) {
+				toReturn.add(hydrator.tagAt(ordinal));
+			}
+			return toReturn;
 		}
 
 		public void setLocales(List<Locale> locales) {
 			this.locales = locales;
+			this.localeOrdinals = null;
 		}
 
+		/**
+		 * @return the definition's locales; a new list if they were hydrated
+		 */
 		public List<Locale> getLocales() {
-			return locales;
+			if (localeOrdinals == null) {
+				return locales;
+			}
+			List<Locale> toReturn = new ArrayList<Locale>(
+					localeOrdinals.length);
+			for (int ordinal : localeOrdinals) {
+				toReturn.add(hydrator.localeAt(ordinal));
+			}
+			return toReturn;
+		}
+
+		/**
+		 * @return the definition's ID
+		 */
+		public int getID() {
+			return id;
+		}
+
+		/**
+		 * Two complete definitions are equal when they are of the same
+		 * definition
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CompleteDefinition)) {
+				return false;
+			}
+			CompleteDefinition other = (CompleteDefinition) o;
+			return def == null ? other.def == null : other.def != null
+					&& id == other.id;
+		}
+
+		@Override
+		public int hashCode() {
+			return id;
+		}
+
+	}
+
+	/**
+	 * Accepts a list of filters and performs the query
+	 * 
+	 * Rather than fetching everything any filter matches, the search starts
+	 * from the filter expected to match the fewest definitions, and the rest
+	 * of the filters narrow that set down. Results are cached until the
+	 * glossary changes in a way that affects them.
+	 * 
+	 * @param query
+	 *            - the UAL phrase to search for
+	 * @return a list of definitions that contain all UAL filters
+	 */
+	public Set<Definition> performSearch(Set<Filter> filters) {
+		Set<Definition> searchResults;
+
+		if (filters.isEmpty()) {
+			return new HashSet<Definition>();
+		}
+
+		SearchMetrics metrics = this.metrics;
+		SearchTrace trace = metrics == null ? null : new SearchTrace(
+				"performSearch", null, filters);
+		long start = now(trace);
+
+		// in-memory search needs neither the result cache nor the database
+		SnapshotSearchEngine engine = snapshotEngine;
+		if (engine != null) {
+			AdmissionControl.Ticket ticket = admitInMemory(engine,
+					Collections.singletonList(filters));
+			try {
+				searchResults = engine.search(filters);
+			} finally {
+				if (ticket != null) {
+					ticket.release();
+				}
+			}
+
+			if (trace != null) {
+				stage(trace, SearchStage.FILTER, start);
+				trace.setResults(searchResults.size());
+				finish(metrics, trace, start);
+			}
+			return searchResults;
+		}
+
+		// 1. popular searches are answered from the result cache
+		String key = SearchResultCache.keyOf(filters);
+		Set<Definition> cached = resultCache.get(key);
+		if (cached != null) {
+			if (trace != null) {
+				trace.setCached(true);
+				trace.setResults(cached.size());
+				finish(metrics, trace, start);
+			}
+			return new HashSet<Definition>(cached);
+		}
+		long generation = resultCache.generation();
+
+		// 2. costly searches wait their turn, are degraded or turned away
+		AdmissionControl.Ticket ticket = admit(filters);
+		boolean degraded = ticket != null && ticket.isDegraded();
+		CandidateList maxResultSet;
+		try {
+			// 3. get candidate set, starting from the most selective filter
+			long stageStart = now(trace);
+			maxResultSet = new CandidateList(candidates(filters, degraded));
+			stage(trace, SearchStage.CANDIDATES, stageStart);
+
+			// 4. filter results, checking tags and locales against the
+			// membership index rather than hydrating every candidate
+			stageStart = now(trace);
+			searchResults = filterDefinitions(maxResultSet, filters, degraded);
+			stage(trace, SearchStage.FILTER, stageStart);
+		} finally {
+			if (ticket != null) {
+				ticket.release();
+			}
+		}
+
+		// degraded results aren't what the search would normally find
+		if (!degraded) {
+			resultCache.put(key, filters, searchResults, generation);
+		}
+
+		if (trace != null) {
+			trace.setCandidates(maxResultSet.size());
+			trace.setResults(searchResults.size());
+			finish(metrics, trace, start);
+		}
+		return searchResults;
+	}
+
+	/**
+	 * Estimates the search's cost, and has it admitted by the admission
+	 * control if there is one
+	 * 
+	 * @return the search's ticket, or null if there is no admission control
+	 * @throws SearchRejectedException
+	 *             if the search is turned away
+	 */
+	AdmissionControl.Ticket admit(Set<Filter> filters) {
+		AdmissionControl admissionControl = this.admissionControl;
+		if (admissionControl == null) {
+			return null;
+		}
+		return admissionControl.admit(costEstimator.estimate(filters, false),
+				costEstimator.estimate(filters, true));
+	}
+
+	/**
+	 * As admitAll, for searches answered by the snapshot engine, costed from
+	 * its snapshot so the database indexes aren't loaded to do it. An
+	 * in-memory search does the same work whatever its distance, so it's
+	 * never degraded, only held back or turned away.
+	 * 
+	 * @return the searches' ticket, or null if there is no admission control
+	 * @throws SearchRejectedException
+	 *             if the searches are turned away
+	 */
+	private AdmissionControl.Ticket admitInMemory(SnapshotSearchEngine engine,
+			List<Set<Filter>> searches) {
+		AdmissionControl admissionControl = this.admissionControl;
+		if (admissionControl == null) {
+			return null;
+		}
+		long[] costs = new long[searches.size()];
+		for (int i = 0; i < costs.length; i++) {
+			costs[i] = engine.estimate(searches.get(i));
+		}
+		return admissionControl.admitAll(costs, costs);
+	}
+
+	/**
+	 * As admit, for a batch of searches admitted together
+	 * 
+	 * @return the batch's ticket, or null if there is no admission control
+	 * @throws SearchRejectedException
+	 *             if the batch is turned away
+	 */
+	private AdmissionControl.Ticket admitAll(List<Set<Filter>> searches) {
+		AdmissionControl admissionControl = this.admissionControl;
+		if (admissionControl == null) {
+			return null;
 		}
+		long[] costs = new long[searches.size()];
+		long[] degradedCosts = new long[searches.size()];
+		for (int i = 0; i < costs.length; i++) {
+			costs[i] = costEstimator.estimate(searches.get(i), false);
+			degradedCosts[i] = costEstimator.estimate(searches.get(i), true);
+		}
+		return admissionControl.admitAll(costs, degradedCosts);
+	}
+
+	private static boolean isDegraded(AdmissionControl.Ticket ticket,
+			int search) {
+		return ticket != null && ticket.isDegraded(search);
+	}
+
+	/**
+	 * Performs many searches at once, as performSearch would one at a time.
+	 * 
+	 * Searches in the batch often share filters, so each distinct filter is
+	 * fetched only once for the whole batch, each distinct tag or locale
+	 * filter is looked up in the membership index once, and a definition
+	 * already checked against a filter for one search isn't checked again for
+	 * another. Identical searches are performed once.
+	 * 
+	 * @param batch
+	 *            the filters of each search
+	 * @return the results of each search, in the order of the batch
+	 */
+	public List<Set<Definition>> performSearches(List<Set<Filter>> batch) {
+		List<Set<Definition>> results = new ArrayList<Set<Definition>>(batch
+				.size());
+
+		SnapshotSearchEngine engine = snapshotEngine;
+		if (engine != null) {
+			AdmissionControl.Ticket ticket = admitInMemory(engine, batch);
+			try {
+				for (Set<Filter> filters : batch) {
+					results.add(filters.isEmpty() ? new HashSet<Definition>()
+							: engine.search(filters));
+				}
+			} finally {
+				if (ticket != null) {
+					ticket.release();
+				}
+			}
+			return results;
+		}
+
+		SearchMetrics metrics = this.metrics;
+		SearchTrace trace = metrics == null ? null : new SearchTrace(
+				"performSearches", null, null);
+		long start = now(trace);
+
+		// 1. the distinct searches not already in the result cache
+		Map<String, Set<Definition>> answers = new HashMap<String, Set<Definition>>();
+		Map<String, Set<Filter>> toSearch = new LinkedHashMap<String, Set<Filter>>();
+		for (Set<Filter> filters : batch) {
+			if (filters.isEmpty()) {
+				continue;
+			}
+			String key = SearchResultCache.keyOf(filters);
+			if (answers.containsKey(key) || toSearch.containsKey(key)) {
+				continue;
+			}
+			Set<Definition> cached = resultCache.get(key);
+			if (cached != null) {
+				answers.put(key, cached);
+			} else {
+				toSearch.put(key, filters);
+			}
+		}
+		long generation = resultCache.generation();
+
+		// 2. costly batches wait their turn, or have their costly searches
+		// degraded, or are turned away
+		List<Set<Filter>> searches = new ArrayList<Set<Filter>>(toSearch
+				.values());
+		AdmissionControl.Ticket ticket = admitAll(searches);
+		int candidates = 0;
+		try {
+			// 3. plan every search, then fetch every filter any of them
+			// needs at once
+			long stageStart = now(trace);
+			Map<Filter, IntBitmap> memberships = new HashMap<Filter, IntBitmap>();
+			List<CandidatePlan> plans = new ArrayList<CandidatePlan>();
+			Set<Filter> toFetch = new LinkedHashSet<Filter>();
+			Set<Filter> toFetchDegraded = new LinkedHashSet<Filter>();
+			for (int i = 0; i < searches.size(); i++) {
+				boolean degraded = isDegraded(ticket, i);
+				CandidatePlan plan = planCandidates(searches.get(i),
+						memberships, degraded);
+				plans.add(plan);
+				(degraded ? toFetchDegraded : toFetch).addAll(plan.toFetch);
+			}
+			Map<Filter, Collection<Definition>> fetched = fanOut.invokeAll(
+					toFetch, retrieveTask, searchTimeoutMillis);
+			Map<Filter, Collection<Definition>> fetchedDegraded = toFetchDegraded
+					.isEmpty() ? fetched : fanOut.invokeAll(toFetchDegraded,
+					degradedRetrieveTask, searchTimeoutMillis);
+			stage(trace, SearchStage.CANDIDATES, stageStart);
+
+			// 4. filter each search's candidates, remembering each verdict
+			stageStart = now(trace);
+			Map<Filter, int[]> fetchedIds = new HashMap<Filter, int[]>();
+			Map<Filter, int[]> fetchedDegradedIds = new HashMap<Filter, int[]>();
+			Map<Filter, Verdicts> verdicts = new HashMap<Filter, Verdicts>();
+			Map<Filter, Verdicts> degradedVerdicts = new HashMap<Filter, Verdicts>();
+			for (int i = 0; i < searches.size(); i++) {
+				Set<Filter> filters = searches.get(i);
+				boolean degraded = isDegraded(ticket, i);
+				Set<Definition> searchResults = new HashSet<Definition>();
+
+				Candidates it = degraded ? candidates(plans.get(i),
+						fetchedDegraded, fetchedDegradedIds) : candidates(
+						plans.get(i), fetched, fetchedIds);
+				while (it.hasNext()) {
+					Definition def = it.next();
+					candidates++;
+					if (passesFilters(def, it.id(), filters,
+							degraded ? degradedVerdicts : verdicts, degraded)) {
+						searchResults.add(def);
+					}
+				}
+
+				String key = SearchResultCache.keyOf(filters);
+				// degraded results aren't what the search would normally find
+				if (!degraded) {
+					resultCache.put(key, filters, searchResults, generation);
+				}
+				answers.put(key, searchResults);
+			}
+			stage(trace, SearchStage.FILTER, stageStart);
+		} finally {
+			if (ticket != null) {
+				ticket.release();
+			}
+		}
+
+		// 5. fan the answers back out, each search getting its own copy
+		int total = 0;
+		for (Set<Filter> filters : batch) {
+			Set<Definition> answer = filters.isEmpty() ? null : answers
+					.get(SearchResultCache.keyOf(filters));
+			results.add(answer == null ? new HashSet<Definition>()
+					: new HashSet<Definition>(answer));
+			total += answer == null ? 0 : answer.size();
+		}
+
+		if (trace != null) {
+			trace.setCandidates(candidates);
+			trace.setResults(total);
+			finish(metrics, trace, start);
+		}
+		return results;
+	}
+
+	/**
+	 * Starts the search in the background, to be stopped at a deadline
+	 * rather than holding the caller for as long as its slowest lookup
+	 * takes.
+	 * 
+	 * The filters are fetched at once, and any not fetched by the deadline
+	 * are cancelled, along with their queries. As every result must pass
+	 * every filter, the candidates can come from whichever filter was
+	 * fetched in time, and the rest are checked in memory, so a slow or
+	 * failing lookup alone doesn't make the results partial. They are
+	 * partial when no filter was fetched in time, when an index the search
+	 * needed was still loading at the deadline, or when the deadline passed
+	 * while the candidates were being checked; either way every result
+	 * returned passes every filter. Only complete results are cached.
+	 * 
+	 * The outcome can be built on, with thenApply and the like, rather than
+	 * waited for. Cancelling it doesn't stop the search, which stops at its
+	 * deadline regardless.
+	 * 
+	 * @param filters
+	 * @param timeoutMillis
+	 *            how long from now the search may take
+	 * @return the outcome of the search, which is never a failure because of
+	 *         the deadline, but fails with a SearchRejectedException if the
+	 *         admission control turns the search away
+	 */
+	public CompletableFuture<SearchOutcome> performSearchAsync(Set<Filter> filters,
+			long timeoutMillis) {
+		if (timeoutMillis <= 0)
+			throw new IllegalArgumentException("the timeout must be positive.");
+
+		final long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		// the caller is free to change the filters while searching
+		final Set<Filter> copies = new HashSet<Filter>(filters);
+
+		return fanOut.submit(new Supplier<SearchOutcome>() {
+			public SearchOutcome get() {
+				try {
+					return searchUntil(copies, deadline);
+				} catch (SearchRejectedException e) {
+					throw e;
+				} catch (RuntimeException e) {
+					// an index still loading at the deadline has its query
+					// cancelled
+					if (System.nanoTime() - deadline < 0) {
+						throw e;
+					}
+					return new SearchOutcome(new HashSet<Definition>(), true);
+				}
+			}
+		}, deadline);
+	}
+
+	private SearchOutcome searchUntil(Set<Filter> filters, long deadline) {
+		if (filters.isEmpty()) {
+			return new SearchOutcome(new HashSet<Definition>(), false);
+		}
+
+		SearchMetrics metrics = this.metrics;
+		SearchTrace trace = metrics == null ? null : new SearchTrace(
+				"performSearchAsync", null, filters);
+		long start = now(trace);
+
+		// in memory, there's nothing slow to wait for
+		SnapshotSearchEngine engine = snapshotEngine;
+		if (engine != null) {
+			AdmissionControl.Ticket ticket = admitInMemory(engine,
+					Collections.singletonList(filters));
+			Set<Definition> searchResults;
+			try {
+				searchResults = engine.search(filters);
+			} finally {
+				if (ticket != null) {
+					ticket.release();
+				}
+			}
+			stage(trace, SearchStage.FILTER, start);
+			return finishUntil(metrics, trace, start, searchResults, 0, false);
+		}
+
+		String key = SearchResultCache.keyOf(filters);
+		Set<Definition> cached = resultCache.get(key);
+		if (cached != null) {
+			if (trace != null) {
+				trace.setCached(true);
+				trace.setResults(cached.size());
+				finish(metrics, trace, start);
+			}
+			return new SearchOutcome(new HashSet<Definition>(cached), false);
+		}
+		long generation = resultCache.generation();
+
+		// 1. costly searches wait their turn, are degraded or turned away
+		AdmissionControl.Ticket ticket = admit(filters);
+		boolean degraded = ticket != null && ticket.isDegraded();
+		Set<Definition> searchResults = new HashSet<Definition>();
+		int candidates = 0;
+		boolean partial = false;
+		try {
+			// 2. fetch what the plan would, keeping whatever is back in time
+			long stageStart = now(trace);
+			CandidatePlan plan = planCandidates(filters,
+					new HashMap<Filter, IntBitmap>(), degraded);
+			Map<Filter, Collection<Definition>> fetched = fanOut.invokeUntil(
+					plan.toFetch, degraded ? degradedRetrieveTask
+							: retrieveTask, deadline);
+			plan = fetchedPart(plan, fetched);
+			stage(trace, SearchStage.CANDIDATES, stageStart);
+
+			if (plan == null) {
+				return finishUntil(metrics, trace, start, searchResults, 0,
+						true);
+			}
+
+			// 3. check the candidates until they run out or time does
+			stageStart = now(trace);
+			FilterChain chain = chain(filters, degraded);
+			Candidates it = candidates(plan, fetched,
+					new HashMap<Filter, int[]>());
+			while (it.hasNext()) {
+				if (++candidates % DEADLINE_CHECK_EVERY == 0
+						&& System.nanoTime() - deadline > 0) {
+					partial = true;
+					break;
+				}
+				Definition def = it.next();
+				if (chain.passes(def, it.id())) {
+					searchResults.add(def);
+				}
+			}
+			stage(trace, SearchStage.FILTER, stageStart);
+		} finally {
+			if (ticket != null) {
+				ticket.release();
+			}
+		}
+
+		// degraded results aren't what the search would normally find
+		if (!partial && !degraded) {
+			resultCache.put(key, filters, searchResults, generation);
+		}
+		return finishUntil(metrics, trace, start, searchResults, candidates,
+				partial);
+	}
+
+	/**
+	 * Narrows a plan to the filters that were fetched, or returns null if
+	 * none of its candidates can be found without those that weren't
+	 */
+	private static CandidatePlan fetchedPart(CandidatePlan plan,
+			Map<Filter, Collection<Definition>> fetched) {
+		CandidatePlan part = new CandidatePlan();
+		part.members = plan.members;
+		part.membersFirst = plan.membersFirst;
+		part.first = plan.first;
+		for (Filter filter : plan.toFetch) {
+			if (fetched.containsKey(filter)) {
+				part.toFetch.add(filter);
+			}
+		}
+
+		if (part.membersFirst || fetched.containsKey(part.first)) {
+			return part;
+		}
+		// start from the tag and locale members, or failing those the next
+		// filter fetched
+		if (part.members != null) {
+			part.membersFirst = true;
+		} else if (!part.toFetch.isEmpty()) {
+			part.first = part.toFetch.get(0);
+		} else {
+			return null;
+		}
+		return part;
+	}
+
+	private static SearchOutcome finishUntil(SearchMetrics metrics,
+			SearchTrace trace, long start, Set<Definition> searchResults,
+			int candidates, boolean partial) {
+		if (trace != null) {
+			trace.setCandidates(candidates);
+			trace.setResults(searchResults.size());
+			finish(metrics, trace, start);
+		}
+		return new SearchOutcome(searchResults, partial);
+	}
+
+	/**
+	 * Performs the search and returns one page of the results, most relevant
+	 * first. Relevance combines each definition's rank with how closely it
+	 * matches the filters.
+	 * 
+	 * Only the best offset + limit results are kept while the candidates are
+	 * filtered, in a bounded heap, so the whole result set is never held or
+	 * sorted.
+	 * 
+	 * @param filters
+	 * @param offset
+	 *            the number of results to skip
+	 * @param limit
+	 *            the most results to return
+	 * @return the page of results, most relevant first
+	 */
+	public List<SearchResult> performRankedSearch(Set<Filter> filters,
+			int offset, int limit) {
+		if (offset < 0 || limit < 1)
+			throw new IllegalArgumentException(
+					"the offset must not be negative and the limit must be positive.");
+
+		List<SearchResult> page = new ArrayList<SearchResult>();
+
+		if (filters.isEmpty()) {
+			return page;
+		}
+
+		// a cached result set has already been filtered, and costs nothing
+		// to admit. Only the top results are kept here, so this search can't
+		// cache its own, and mustn't count a miss.
+		Set<Definition> cached = resultCache.peek(SearchResultCache
+				.keyOf(filters));
+		AdmissionControl.Ticket ticket = cached == null ? admit(filters)
+				: null;
+		boolean degraded = ticket != null && ticket.isDegraded();
+
+		int keep = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+		PriorityQueue<Scored> best = new PriorityQueue<Scored>(Math.min(keep,
+				1024), Collections.reverseOrder(BY_RELEVANCE));
+
+		try {
+			Candidates candidates = cached != null ? new ParsedCandidates(
+					cached.iterator()) : candidates(filters, degraded);
+
+			FilterChain chain = cached == null ? chain(filters, degraded)
+					: null;
+
+			while (candidates.hasNext()) {
+				Definition def = candidates.next();
+				int id = candidates.id();
+				if (chain != null && !chain.passes(def, id)) {
+					continue;
+				}
+
+				Scored scored = new Scored(def, scorer.score(def, id, filters));
+				if (best.size() < keep) {
+					best.add(scored);
+				} else if (BY_RELEVANCE.compare(scored, best.peek()) < 0) {
+					best.poll();
+					best.add(scored);
+				}
+			}
+		} finally {
+			if (ticket != null) {
+				ticket.release();
+			}
+		}
+
+		List<Scored> ranked = new ArrayList<Scored>(best);
+		Collections.sort(ranked, BY_RELEVANCE);
+
+		for (int i = offset; i < ranked.size(); i++) {
+			Scored scored = ranked.get(i);
+			page.add(new SearchResult(scored.def, scored.relevance));
+		}
+		return page;
+	}
+
+	/**
+	 * Performs the search lazily, producing complete definitions as they're
+	 * read. Candidates are filtered as they're reached, and only those that
+	 * pass are hydrated, fetchSize at a time, so the first results are ready
+	 * before the search is finished and a broad search never holds all of
+	 * its results at once.
+	 * 
+	 * @param filters
+	 * @param fetchSize
+	 *            the number of definitions to hydrate at a time
+	 * @return the definitions passing every filter
+	 */
+	public Iterator<CompleteDefinition> searchIterator(Set<Filter> filters,
+			int fetchSize) {
+		if (fetchSize < 1)
+			throw new IllegalArgumentException(
+					"the fetch size must be positive.");
+
+		if (filters.isEmpty()) {
+			return Collections.<CompleteDefinition> emptyList().iterator();
+		}
+
+		// the caller is free to change the filters while reading
+		Set<Filter> copies = new HashSet<Filter>(filters);
+
+		// the results are never all held at once, so can't be cached
+		Set<Definition> cached = resultCache.peek(SearchResultCache
+				.keyOf(copies));
+		if (cached != null) {
+			return new SearchCursor(new ParsedCandidates(cached.iterator()),
+					copies, fetchSize, false, false);
+		}
+
+		// the ticket covers fetching the candidates, as the cursor may be
+		// read slowly or abandoned, and would hold its share of the budget
+		// for as long
+		AdmissionControl.Ticket ticket = admit(copies);
+		boolean degraded = ticket != null && ticket.isDegraded();
+		try {
+			return new SearchCursor(candidates(copies, degraded), copies,
+					fetchSize, true, degraded);
+		} finally {
+			if (ticket != null) {
+				ticket.release();
+			}
+		}
+	}
+
+	/**
+	 * Filters candidates a batch at a time and hydrates each batch with a
+	 * single call to getCompleteDefinitions
+	 */
+	private class SearchCursor implements Iterator<CompleteDefinition> {
+		private final Candidates candidates;
+		// null when the candidates have already been filtered
+		private final FilterChain chain;
+		private final int fetchSize;
+		private Iterator<CompleteDefinition> batch = Collections
+				.<CompleteDefinition> emptyList().iterator();
+
+		SearchCursor(Candidates candidates, Set<Filter> filters,
+				int fetchSize, boolean filter, boolean degraded) {
+			this.candidates = candidates;
+			this.chain = filter ? chain(filters, degraded) : null;
+			this.fetchSize = fetchSize;
+		}
+
+		public boolean hasNext() {
+			while (!batch.hasNext() && candidates.hasNext()) {
+				Set<Definition> passed = new LinkedHashSet<Definition>();
+
+				while (passed.size() < fetchSize && candidates.hasNext()) {
+					Definition def = candidates.next();
+					if (chain == null || chain.passes(def, candidates.id())) {
+						passed.add(def);
+					}
+				}
+				batch = getCompleteDefinitions(passed).iterator();
+			}
+			return batch.hasNext();
+		}
+
+		public CompleteDefinition next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return batch.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * This method performs all parsing on the query string and decides what the
+	 * user wants to do. It uses other methods to perform the actual searching
+	 * 
+	 * @param The
+	 *            entire search query string
+	 * @return a set of filters parsed from the query
+	 */
+	public Set<Filter> parseQuery(String query) {
+		SearchMetrics metrics = this.metrics;
+		SearchTrace trace = metrics == null ? null : new SearchTrace(
+				"parseQuery", query, null);
+		long start = now(trace);
+
+		String key = query.trim();
+
+		// typeahead parses the same prefixes over and over, so the parsed
+		// and validated filters are cached by query
+		List<ParsedFilter> parsed = parsedQueries.get(key);
+
+		if (parsed == null) {
+			long stageStart = now(trace);
+			Set<Filter> lexed = UalLexer.lex(key);
+			stage(trace, SearchStage.PARSE, stageStart);
+
+			stageStart = now(trace);
+			parsed = new ArrayList<ParsedFilter>();
+			for (Filter filter : lexed) {
+				parsed.add(new ParsedFilter(filter.getType(), filter
+						.getQuery(), isKnown(filter)));
+			}
+			stage(trace, SearchStage.VALIDATE, stageStart);
+
+			parsedQueries.put(key, parsed);
+		} else if (trace != null) {
+			trace.setCached(true);
+		}
+
+		// callers are free to change the filters, so each gets their own
+		Set<Filter> filters = new HashSet<Filter>();
+		for (ParsedFilter filter : parsed) {
+			filters.add(filter.toFilter());
+		}
+
+		if (trace != null) {
+			trace.setResults(filters.size());
+			finish(metrics, trace, start);
+		}
+		return filters;
+	}
+
+	/**
+	 * Returns a set of filters parsed from their string equivalents
+	 * 
+	 * @param filter
+	 *            A set of filters to search for in raw string form
+	 */
+	public Set<Filter> convertStringsToFilters(Set<String> filters) {
+
+		Set<Filter> realFilters = new HashSet<Filter>();
+
+		for (String filter : filters) {
+			if (filter.startsWith("[")) {
+				realFilters.add(new Filter(FilterTypes.Tag, filter.substring(1,
+						filter.length() - 1)));
+
+			} else if (filter.startsWith("\"")) {
+				realFilters.add(new Filter(FilterTypes.Definition, filter
+						.substring(1, filter.length() - 1)));
+
+			} else if (filter.startsWith("(")) {
+				realFilters.add(new Filter(FilterTypes.Locale, filter
+						.substring(1, filter.length() - 1)));
+
+			} else {
+				realFilters.add(new Filter(FilterTypes.Term, filter));
+			}
+		}
+		return realFilters;
+	}
+	
+	
+	/**
+	 * Returns true if the filter is a tag or locale which exists, which is
+	 * what marks a filter as verified. This is answered from the in-memory
+	 * vocabulary rather than the database.
+	 */
+	private boolean isKnown(Filter filter) {
+		if(filter.getType() == FilterTypes.Tag) {
+			return vocabulary.tagExists(filter.getQuery());
+		} else if(filter.getType() == FilterTypes.Locale) {
+			return vocabulary.localeExists(filter.getQuery());
+		}
+		return false;
+	}
+
+	/**
+	 * Queries the database for all information associated with each
+	 * definition. Tags and locales are loaded for the whole set at once, in
+	 * chunks, rather than with two queries per definition.
+	 * 
+	 * @param defs
+	 * @return
+	 */
+	public List<CompleteDefinition> getCompleteDefinitions(Set<Definition> defs) {
+
+		List<CompleteDefinition> results = new ArrayList<CompleteDefinition>();
+
+		if (defs.isEmpty()) {
+			return results;
+		}
+
+		SearchMetrics metrics = this.metrics;
+		SearchTrace trace = metrics == null ? null : new SearchTrace(
+				"getCompleteDefinitions", null, null);
+		long start = now(trace);
+
+		// the distinct ID's, sorted, so each definition finds its place in
+		// the hydrated arrays by binary search rather than through a map
+		int[] ids = new int[defs.size()];
+		int n = 0;
+		for (Definition def : defs) {
+			ids[n++] = Integer.parseInt(def.getID());
+		}
+		Arrays.sort(ids);
+		n = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (i == 0 || ids[i] != ids[i - 1]) {
+				ids[n++] = ids[i];
+			}
+		}
+		ids = Arrays.copyOf(ids, n);
+
+		int[][] tags = new int[ids.length][];
+		int[][] locales = new int[ids.length][];
+
+		// each batch borrows its own connection, so batches can be loaded
+		// side by side
+		List<int[]> batches = new ArrayList<int[]>();
+		if (parallelHydration) {
+			for (int from = 0; from < ids.length; from += DefinitionHydrator.CHUNK_SIZE) {
+				batches.add(Arrays.copyOfRange(ids, from, Math.min(ids.length,
+						from + DefinitionHydrator.CHUNK_SIZE)));
+			}
+		} else {
+			batches.add(ids);
+		}
+
+		for (Map.Entry<int[], Hydration> batch : fanOut.invokeAll(batches,
+				hydrateTask, searchTimeoutMillis).entrySet()) {
+			int[] batchIDs = batch.getKey();
+			Hydration hydration = batch.getValue();
+
+			// a batch is a run of the sorted ID's
+			int offset = Arrays.binarySearch(ids, batchIDs[0]);
+			System.arraycopy(hydration.tags, 0, tags, offset, batchIDs.length);
+			System.arraycopy(hydration.locales, 0, locales, offset,
+					batchIDs.length);
+			if (trace != null) {
+				trace.addRoundTrips(hydration.roundTrips);
+			}
+		}
+		stage(trace, SearchStage.HYDRATE, start);
+
+		for (Definition def : defs) {
+			int position = Arrays.binarySearch(ids, Integer.parseInt(def
+					.getID()));
+			results.add(new CompleteDefinition(def, tags[position],
+					locales[position]));
+		}
+
+		if (trace != null) {
+			trace.setResults(results.size());
+			finish(metrics, trace, start);
+		}
+		return results;
+	}
+
+	/**
+	 * Queries the database for all information associated with the
+	 * definitions of many searches at once. A definition found by more than
+	 * one search is hydrated only once, and shared between them.
+	 * 
+	 * @param batch
+	 *            the definitions of each search
+	 * @return the complete definitions of each search, in the order of the
+	 *         batch
+	 */
+	public List<List<CompleteDefinition>> getCompleteDefinitions(
+			List<Set<Definition>> batch) {
+		Set<Definition> union = new HashSet<Definition>();
+		for (Set<Definition> defs : batch) {
+			union.addAll(defs);
+		}
+
+		Map<Integer, CompleteDefinition> hydrated = new HashMap<Integer, CompleteDefinition>();
+		for (CompleteDefinition complete : getCompleteDefinitions(union)) {
+			hydrated.put(complete.getID(), complete);
+		}
+
+		List<List<CompleteDefinition>> results = new ArrayList<List<CompleteDefinition>>(
+				batch.size());
+		for (Set<Definition> defs : batch) {
+			List<CompleteDefinition> completes = new ArrayList<CompleteDefinition>(
+					defs.size());
+			for (Definition def : defs) {
+				CompleteDefinition complete = hydrated.get(Integer.parseInt(def
+						.getID()));
+				if (complete != null) {
+					completes.add(complete);
+				}
+			}
+			results.add(completes);
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the largest possible list of definitions possible from the
+	 * database, without duplicates
+	 * 
+	 * For each filter, fetches the definitions that contain the filter
+	 * 
+	 * @param filters
+	 *            a set of filters to search for
+	 * @return a maximal set of definitions from the database
+	 */
+	public Set<Definition> getMaximumResultSet(Set<Filter> filters) {
+		SearchMetrics metrics = this.metrics;
+		SearchTrace trace = metrics == null ? null : new SearchTrace(
+				"getMaximumResultSet", null, filters);
+		long start = now(trace);
+
+		Set<Definition> definitions = new HashSet<Definition>();
+
+		for (Collection<Definition> matches : fanOut.invokeAll(filters,
+				retrieveTask, searchTimeoutMillis).values()) {
+			definitions.addAll(matches);
+		}
+
+		if (trace != null) {
+			stage(trace, SearchStage.CANDIDATES, start);
+			trace.setCandidates(definitions.size());
+			finish(metrics, trace, start);
+		}
+		return definitions;
+	}
+
+	/**
+	 * Returns a set of definitions which includes every definition passing
+	 * all of the filters, but as few others as can cheaply be avoided
+	 * 
+	 * The filters are ordered by their estimated number of matches. The most
+	 * selective one is fetched, and while the candidates are still large,
+	 * the next filters are fetched and intersected with them. Any filters
+	 * left over are checked by filterResults.
+	 * 
+	 * @param filters
+	 *            a non-empty set of filters to search for
+	 * @return the candidate definitions
+	 */
+	public Set<Definition> getCandidateSet(Set<Filter> filters) {
+		return getCandidateSet(filters, false);
+	}
+
+	private Set<Definition> getCandidateSet(Set<Filter> filters,
+			boolean degraded) {
+		Set<Definition> candidates = new HashSet<Definition>();
+
+		Iterator<Definition> it = candidates(filters, degraded);
+		while (it.hasNext()) {
+			candidates.add(it.next());
+		}
+		return candidates;
+	}
+
+	/**
+	 * Produces the candidates of getCandidateSet one at a time. When a tag or
+	 * locale filter is the most selective, the definitions are looked up a
+	 * chunk of ID's at a time as they're needed. Short terms are matched at
+	 * their degraded distance if the search has been degraded.
+	 */
+	private Candidates candidates(Set<Filter> filters, boolean degraded) {
+		CandidatePlan plan = planCandidates(filters,
+				new HashMap<Filter, IntBitmap>(), degraded);
+
+		return candidates(plan, fanOut.invokeAll(plan.toFetch,
+				degraded ? degradedRetrieveTask : retrieveTask,
+				searchTimeoutMillis), new HashMap<Filter, int[]>());
+	}
+
+	/**
+	 * How the candidates of one search are to be found
+	 */
+	private static class CandidatePlan {
+		// the ID's passing every tag and locale filter, or null if none
+		IntBitmap members;
+		// whether the candidates are the members, rather than the first
+		// filter's matches
+		boolean membersFirst;
+		Filter first;
+		// the filters to fetch, the first among them unless membersFirst
+		List<Filter> toFetch = new ArrayList<Filter>();
+	}
+
+	/**
+	 * Chooses where a search's candidates come from and which filters are
+	 * worth fetching to intersect them with
+	 * 
+	 * @param filters
+	 * @param memberships
+	 *            the ID's of each tag and locale filter, found so far
+	 */
+	private CandidatePlan planCandidates(Set<Filter> filters,
+			Map<Filter, IntBitmap> memberships) {
+		return planCandidates(filters, memberships, false);
+	}
+
+	private CandidatePlan planCandidates(Set<Filter> filters,
+			Map<Filter, IntBitmap> memberships, boolean degraded) {
+		List<Filter> order = planner.order(filters, degraded);
+		CandidatePlan plan = new CandidatePlan();
+
+		// every tag and locale filter at once, as one bitmap intersection
+		plan.members = getMembers(filters, memberships);
+
+		plan.first = order.get(0);
+		plan.membersFirst = plan.members != null
+				&& isMembershipFilter(plan.first);
+		int expected = plan.membersFirst ? plan.members.cardinality()
+				: planner.estimate(plan.first, degraded);
+
+		// choose every filter worth fetching up front, so they can all be
+		// fetched at once
+		if (!plan.membersFirst) {
+			plan.toFetch.add(plan.first);
+		}
+		for (int i = 1; i < order.size() && expected > VERIFY_BELOW; i++) {
+			Filter filter = order.get(i);
+
+			if (isMembershipFilter(filter)) {
+				continue;
+			}
+			if (planner.estimate(filter, degraded) > expected * INTERSECT_RATIO) {
+				break;
+			}
+			plan.toFetch.add(filter);
+		}
+		return plan;
+	}
+
+	/**
+	 * Produces the candidates of a plan from the definitions its filters
+	 * fetched
+	 * 
+	 * @param plan
+	 * @param fetched
+	 *            the matches of at least every filter the plan fetches
+	 * @param fetchedIds
+	 *            the sorted ID's of the fetched matches, worked out so far
+	 */
+	private Candidates candidates(CandidatePlan plan,
+			Map<Filter, Collection<Definition>> fetched,
+			Map<Filter, int[]> fetchedIds) {
+		final Candidates source = plan.membersFirst ? new DefinitionsById(
+				plan.members.toArray()) : new ParsedCandidates(fetched.get(
+				plan.first).iterator());
+		final IntBitmap mustBeMembers = plan.membersFirst ? null
+				: plan.members;
+
+		// the ID's each other fetched filter matched, sorted for searching
+		final List<int[]> others = new ArrayList<int[]>();
+		for (Filter filter : plan.toFetch) {
+			if (!plan.membersFirst && filter.equals(plan.first)) {
+				continue;
+			}
+			int[] ids = fetchedIds.get(filter);
+			if (ids == null) {
+				ids = sortedIds(fetched.get(filter));
+				fetchedIds.put(filter, ids);
+			}
+			others.add(ids);
+		}
+
+		return new Candidates() {
+			private Definition next = advance();
+			private int nextId;
+			private int id;
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public Definition next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				Definition def = next;
+				id = nextId;
+				next = advance();
+				return def;
+			}
+
+			int id() {
+				return id;
+			}
+
+			private Definition advance() {
+				while (source.hasNext()) {
+					Definition def = source.next();
+
+					if (isCandidate(source.id())) {
+						nextId = source.id();
+						return def;
+					}
+				}
+				return null;
+			}
 
-		public boolean equals(Object o) {
-			if (((Definition) o).equals(this.def)) {
+			private boolean isCandidate(int id) {
+				if (mustBeMembers != null && !mustBeMembers.contains(id)) {
+					return false;
+				}
+				for (int[] matches : others) {
+					if (Arrays.binarySearch(matches, id) < 0) {
+						return false;
+					}
+				}
 				return true;
-			} else {
-				return false;
 			}
-		}
-
+		};
 	}
 
 	/**
-	 * Accepts a list of filters and performs the query
-	 * 
-	 * @param query
-	 *            - the UAL phrase to search for
-	 * @return a list of definitions that contain all UAL filters
+	 * Candidates one at a time, along with each one's numeric ID, so the
+	 * tag and locale checks never have to parse it
 	 */
-	public Set<Definition> performSearch(Set<Filter> filters) {
-		Set<Definition> searchResults;
-
-		// 2. get maximum result set
-		Set<Definition> maxResultSet = getMaximumResultSet(filters);
-
-		// 3. get complete definitions
-		List<CompleteDefinition> completeDefinitions = getCompleteDefinitions(maxResultSet);
-
-		// 4. filter results
-		searchResults = filterResults(completeDefinitions, filters);
-		
-		
-		
-		return searchResults;
+	private abstract static class Candidates implements Iterator<Definition> {
+		/**
+		 * @return the ID of the definition last returned by next
+		 */
+		abstract int id();
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 
 	/**
-	 * This method performs all parsing on the query string and decides what the
-	 * user wants to do. It uses other methods to perform the actual searching
-	 * 
-	 * @param The
-	 *            entire search query string
-	 * @return a set of filters parsed from the query
+	 * Candidates from a collection of definitions, parsing each ID once
 	 */
-	public Set<Filter> parseQuery(String query) {
-		List<Pattern> patterns = new ArrayList<Pattern>();
-
-		// Definition pattern format: "search term"
-		Pattern definition = Pattern.compile("\".*?\"");
-		// Tag pattern format: [tag] eg. [science]
-		Pattern tag = Pattern.compile("\\[[^]\\r\\n]+]");
-		// Locale pattern format: (locale) eg. (en-AU)
-		Pattern locale = Pattern.compile("\\([^]\\r\\n\\s]*\\)");
-		Pattern term = Pattern.compile("(?<=^|\\s)[a-zA-Z]+(?=\\s|$)");
-
-		patterns.add(definition);
-		patterns.add(tag);
-		patterns.add(locale);
-		patterns.add(term);
+	private static class ParsedCandidates extends Candidates {
+		private final Iterator<Definition> definitions;
+		private int id;
 
-		Set<String> filters = new HashSet<String>();
+		ParsedCandidates(Iterator<Definition> definitions) {
+			this.definitions = definitions;
+		}
 
-		// Go through each pattern and check for a match
-		for (Pattern pat : patterns) {
+		public boolean hasNext() {
+			return definitions.hasNext();
+		}
 
-			Matcher match = pat.matcher(query);
+		public Definition next() {
+			Definition def = definitions.next();
+			id = Integer.parseInt(def.getID());
+			return def;
+		}
 
-			while (match.find()) {
-				String filter = query.substring(match.start(), match.end());
-				filters.add(filter);
-			}
+		int id() {
+			return id;
 		}
-		Set<Filter> returnFilters = convertStringsToFilters(filters);
-		
-		return validateFilters(returnFilters);
 	}
 
 	/**
-	 * Returns a set of filters parsed from their string equivalents
-	 * 
-	 * @param filter
-	 *            A set of filters to search for in raw string form
+	 * Looks definitions up by ID a chunk at a time, so only one chunk of
+	 * them is held at once
 	 */
-	public Set<Filter> convertStringsToFilters(Set<String> filters) {
+	private class DefinitionsById extends Candidates {
+		private final int[] ids;
+		private int position = 0;
+		private List<Definition> chunk = Collections.emptyList();
+		private int[] chunkIds = new int[0];
+		private int next = 0;
+
+		DefinitionsById(int[] ids) {
+			this.ids = ids;
+		}
 
-		Set<Filter> realFilters = new HashSet<Filter>();
+		public boolean hasNext() {
+			while (next == chunk.size() && position < ids.length) {
+				int end = Math.min(ids.length, position
+						+ DefinitionHydrator.CHUNK_SIZE);
+				chunkIds = Arrays.copyOfRange(ids, position, end);
+				chunk = definitionIndex.getDefinitions(chunkIds);
+				next = 0;
+				position = end;
+
+				// definitions deleted since their ID's were gathered are left
+				// out, so the rest no longer line up with the ID's
+				if (chunk.size() != chunkIds.length) {
+					chunkIds = new int[chunk.size()];
+					for (int i = 0; i < chunkIds.length; i++) {
+						chunkIds[i] = Integer.parseInt(chunk.get(i).getID());
+					}
+				}
+			}
+			return next < chunk.size();
+		}
 
-		for (String filter : filters) {
-			if (filter.startsWith("[")) {
-				realFilters.add(new Filter(FilterTypes.Tag, filter.substring(1,
-						filter.length() - 1)));
+		public Definition next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return chunk.get(next++);
+		}
 
-			} else if (filter.startsWith("\"")) {
-				realFilters.add(new Filter(FilterTypes.Definition, filter
-						.substring(1, filter.length() - 1)));
+		int id() {
+			return chunkIds[next - 1];
+		}
+	}
 
-			} else if (filter.startsWith("(")) {
-				realFilters.add(new Filter(FilterTypes.Locale, filter
-						.substring(1, filter.length() - 1)));
+	/**
+	 * The candidates of one search, gathered along with their ID's, each
+	 * only once
+	 */
+	private static class CandidateList {
+		final List<Definition> definitions = new ArrayList<Definition>();
+		int[] ids = new int[16];
+
+		CandidateList(Candidates candidates) {
+			IntBitmap seen = new IntBitmap();
+			while (candidates.hasNext()) {
+				Definition def = candidates.next();
+				if (seen.add(candidates.id())) {
+					add(def, candidates.id());
+				}
+			}
+		}
 
-			} else {
-				realFilters.add(new Filter(FilterTypes.Term, filter));
+		CandidateList(List<CompleteDefinition> defs) {
+			for (CompleteDefinition def : defs) {
+				add(def.getDefinition(), def.id);
 			}
 		}
-		return realFilters;
-	}
-	
-	
-	private Set<Filter> validateFilters(Set<Filter> filters) {
-		
-		for(Filter filter : filters) {
-			if(filter.getType() == FilterTypes.Tag) {
-				if(tagserv.tagExists(filter.getQuery())) {
-					filter.setVerified(true);
-				}
-			} else if(filter.getType() == FilterTypes.Locale) {
-				if(locserv.localeExists(filter.getQuery())) {
-					filter.setVerified(true);
-				}
+
+		private void add(Definition def, int id) {
+			if (definitions.size() == ids.length) {
+				ids = Arrays.copyOf(ids, ids.length * 2);
 			}
+			ids[definitions.size()] = id;
+			definitions.add(def);
+		}
+
+		int size() {
+			return definitions.size();
 		}
-		
-		return filters;
 	}
 
 	/**
-	 * Queries the respective services to get all information associated with
-	 * each definition
-	 * 
-	 * @param defs
-	 * @return
+	 * The definitions of a batch already checked against one filter, and
+	 * those of them that passed, by ID
 	 */
-	public List<CompleteDefinition> getCompleteDefinitions(Set<Definition> defs) {
-
-		TagService tserv = new TagService(connection);
-		LocaleService lserv = new LocaleService(connection);
-
-		List<CompleteDefinition> results = new ArrayList<CompleteDefinition>();
+	private static class Verdicts {
+		final IntBitmap checked = new IntBitmap();
+		final IntBitmap passed = new IntBitmap();
+	}
 
+	private static int[] sortedIds(Collection<Definition> defs) {
+		int[] ids = new int[defs.size()];
+		int n = 0;
 		for (Definition def : defs) {
-			results.add(new CompleteDefinition(def, 
-					tserv.getTagsForDefinition(def.getID()), 
-					lserv.getLocalesForDefinition(def.getID())));
+			ids[n++] = Integer.parseInt(def.getID());
 		}
-
-		return results;
+		Arrays.sort(ids);
+		return ids;
 	}
 
 	/**
-	 * Returns the largest possible list of definitions possible from the
-	 * database, without duplicates
-	 * 
-	 * For each filter, fetches the definitions that contain the filter
-	 * 
-	 * @param filters
-	 *            a set of filters to search for
-	 * @return a maximal set of definitions from the database
+	 * Returns the ID's of the definitions passing every tag and locale
+	 * filter, or null if there are no such filters
 	 */
-	public Set<Definition> getMaximumResultSet(Set<Filter> filters) {
-		Set<Definition> definitions = new HashSet<Definition>();
+	private IntBitmap getMembers(Set<Filter> filters,
+			Map<Filter, IntBitmap> memberships) {
+		IntBitmap members = null;
 
 		for (Filter filter : filters) {
-			if (filter.getType() == FilterTypes.Definition) {
-				definitions.addAll(definitionSearch(filter.getQuery()));
-			} else if (filter.getType() == FilterTypes.Locale) {
-				definitions.addAll(locserv.getDefinitionsForLocale(filter
-						.getQuery()));
-			} else if (filter.getType() == FilterTypes.Tag) {
-				definitions.addAll(tagserv.getDefinitionsTaggedWith(filter
-						.getQuery()));
-				
-			} else {
-				definitions.addAll(levenshtein(filter.getQuery(), 
-						LEVENSHTEIN_DISTANCE));
-				//definitions.addAll(termSearch(filter.getQuery()));
+			if (isMembershipFilter(filter)) {
+				IntBitmap matches = memberships.get(filter);
+				if (matches == null) {
+					matches = membersOf(filter);
+					memberships.put(filter, matches);
+				}
+				members = members == null ? matches : members.and(matches);
 			}
 		}
+		return members;
+	}
 
-		return definitions;
+	private IntBitmap membersOf(Filter filter) {
+		if (filter.getType() == FilterTypes.Tag) {
+			return membershipIndex.getTagged(filter.getQuery());
+		} else {
+			return membershipIndex.getInLocale(filter.getQuery());
+		}
+	}
+
+	private static boolean isMembershipFilter(Filter filter) {
+		return filter.getType() == FilterTypes.Tag
+				|| filter.getType() == FilterTypes.Locale;
+	}
+
+	/**
+	 * Fetches every definition which matches a single filter. A term filter
+	 * only lets through terms containing its query with no more than the
+	 * distance in extra characters around it, so it fetches every
+	 * definition of each such term from the term index's windows, rather
+	 * than the first definition of each term levenshtein finds.
+	 */
+	private Collection<Definition> retrieve(Filter filter) {
+		return retrieve(filter, false);
+	}
+
+	private Collection<Definition> retrieve(Filter filter, boolean degraded) {
+		if (filter.getType() == FilterTypes.Definition) {
+			return definitionSearch(filter.getQuery());
+		} else if (isMembershipFilter(filter)) {
+			return definitionIndex.getDefinitions(membersOf(filter).toArray());
+		} else {
+			return termIndex.searchContaining(filter.getQuery(),
+					termDistance(filter, degraded));
+			//return termSearch(filter.getQuery());
+		}
 	}
 
 	/**
@@ -290,97 +1913,195 @@ public class QueryService {
 	public Set<Definition> filterResults(List<CompleteDefinition> defs,
 			Set<Filter> filters) {
 
-		Set<CompleteDefinition> results = new HashSet<CompleteDefinition>(defs);
+		SearchMetrics metrics = this.metrics;
+		SearchTrace trace = metrics == null ? null : new SearchTrace(
+				"filterResults", null, filters);
+		long start = now(trace);
 
-		for (CompleteDefinition def : defs) {
-			for (Filter filter : filters) {
-				if (filter.getType() == FilterTypes.Tag) {
-					if (!checkTags(def.getTags(), filter.getQuery())) {
-						results.remove(def);
-						break;
-					}
-				} else if (filter.getType() == FilterTypes.Definition) {
-					if (!def.getDefinition().getDefinition()
-							.contains(filter.getQuery())) {
-						results.remove(def);
-						break;
-					}
-				} else if (filter.getType() == FilterTypes.Locale) {
-					if (!checkLocales(def.getLocales(), filter.getQuery())) {
-						results.remove(def);
-						break;
-					}
-				} else if(filter.getType() == FilterTypes.Term) {
-					if((levenshtein(def.getDefinition().getTerm(), filter.getQuery()) > LEVENSHTEIN_DISTANCE) ||
-							!def.getDefinition().getTerm().contains(filter.getQuery())) {
-						results.remove(def);
-						break;
-					}
-				}
-			}
-		}
+		// complete definitions already hold their numeric ID's
+		Set<Definition> results = filterDefinitions(new CandidateList(defs),
+				filters, false);
 
-		return trimCompleteDefinitions(results);
+		if (trace != null) {
+			stage(trace, SearchStage.FILTER, start);
+			trace.setCandidates(defs.size());
+			trace.setResults(results.size());
+			finish(metrics, trace, start);
+		}
+		return results;
 	}
 
 	/**
-	 * Return a Set of Definitions without the additional data associated with
-	 * CompleteDefinitions
+	 * Filters the definitions to only those that pass every filter. Tags and
+	 * locales are checked against the membership index, so the definitions
+	 * don't need to be hydrated first.
 	 * 
 	 * @param defs
+	 * @param filters
+	 * @param degraded
 	 * @return
 	 */
-	private Set<Definition> trimCompleteDefinitions(Set<CompleteDefinition> defs) {
+	private Set<Definition> filterDefinitions(CandidateList defs,
+			Set<Filter> filters, boolean degraded) {
+
 		Set<Definition> results = new HashSet<Definition>();
+		FilterChain chain = chain(filters, degraded);
 
-		for (CompleteDefinition def : defs) {
-			results.add(def.getDefinition());
+		for (int i = 0; i < defs.size(); i++) {
+			Definition def = defs.definitions.get(i);
+			if (chain.passes(def, defs.ids[i])) {
+				results.add(def);
+			}
 		}
 
 		return results;
 	}
 
 	/**
-	 * Checks to see if the given list of tags contains a tag with the specified
-	 * tag name
-	 * 
-	 * @param tags
-	 *            The list of tags to search in
-	 * @param query
-	 *            the name of the tag to search for in the list
-	 * @return true if the list of tags contains the queried tag
+	 * Returns the filters as a chain that checks each definition against
+	 * them cheapest and most selective first, as measured so far
 	 */
-	private Boolean checkTags(List<Tag> tags, String query) {
+	private FilterChain chain(Set<Filter> filters, boolean degraded) {
+		return new FilterChain(filters, degraded ? degradedFilterCheck
+				: filterCheck, filterStatistics);
+	}
 
-		for (Tag tag : tags) {
-			if (tag.getName().equalsIgnoreCase(query)) {
-				return true;
-			} else {
+	private boolean passesFilters(Definition def, Set<Filter> filters) {
+		int id = Integer.parseInt(def.getID());
+		for (Filter filter : filters) {
+			if (!passesFilter(def, id, filter, false)) {
 				return false;
 			}
 		}
-		return false;
+		return true;
 	}
 
 	/**
-	 * Checks to see if the given list of locales contains a locale with the
-	 * specified short name
-	 * 
-	 * @param locales
-	 *            The list of locales to search in
-	 * @param shortName
-	 *            The short name of the locale to search for
-	 * @return true if the list of locales contains specified locale
+	 * @param def
+	 * @param id
+	 *            the definition's ID, parsed once by the caller
+	 * @param filter
+	 * @param degraded
 	 */
-	private Boolean checkLocales(List<Locale> locales, String shortName) {
-		for (Locale loc : locales) {
-			if (loc.getShortName().equalsIgnoreCase(shortName)) {
-				return true;
+	private boolean passesFilter(Definition def, int id, Filter filter,
+			boolean degraded) {
+		if (filter.getType() == FilterTypes.Tag) {
+			return membershipIndex.isTagged(id, filter.getQuery());
+		} else if (filter.getType() == FilterTypes.Definition) {
+			return def.getDefinition().contains(filter.getQuery());
+		} else if (filter.getType() == FilterTypes.Locale) {
+			return membershipIndex.isInLocale(id, filter.getQuery());
+		} else if(filter.getType() == FilterTypes.Term) {
+			return EditDistance.withinDistance(def.getTerm(), filter.getQuery(), termDistance(filter, degraded)) &&
+					def.getTerm().contains(filter.getQuery());
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the edit distance a term filter matches terms within, which is
+	 * lower for short terms when the search has been degraded
+	 */
+	private static int termDistance(Filter filter, boolean degraded) {
+		return degraded ? QueryCostEstimator.degradedDistance(filter
+				.getQuery(), LEVENSHTEIN_DISTANCE) : LEVENSHTEIN_DISTANCE;
+	}
+
+	/**
+	 * As passesFilters, but remembering each definition's verdict against
+	 * each filter, so definitions shared by searches in a batch are only
+	 * checked against a shared filter once
+	 */
+	private boolean passesFilters(Definition def, int id,
+			Set<Filter> filters, Map<Filter, Verdicts> verdicts,
+			boolean degraded) {
+		for (Filter filter : filters) {
+			Verdicts known = verdicts.get(filter);
+			if (known == null) {
+				known = new Verdicts();
+				verdicts.put(filter, known);
+			}
+			boolean passes;
+			if (known.checked.add(id)) {
+				passes = passesFilter(def, id, filter, degraded);
+				if (passes) {
+					known.passed.add(id);
+				}
 			} else {
+				passes = known.passed.contains(id);
+			}
+			if (!passes) {
 				return false;
 			}
 		}
-		return false;
+		return true;
+	}
+
+	/**
+	 * Starts a run of searches for one user, where each can be worked out
+	 * from the last when only a filter or two has changed
+	 * 
+	 * @return a new session, to be kept for that user alone
+	 */
+	public SearchSession openSession() {
+		return new SearchSession(this);
+	}
+
+	/**
+	 * The filters, most selective first, for a SearchSession
+	 */
+	List<Filter> plan(Set<Filter> filters) {
+		return planner.order(filters);
+	}
+
+	/**
+	 * Every definition passing the filter on its own, for a SearchSession
+	 */
+	List<Definition> matchesOf(Filter filter, boolean degraded) {
+		List<Definition> matches = new ArrayList<Definition>();
+
+		for (Definition def : retrieve(filter, degraded)) {
+			if (passesFilter(def, Integer.parseInt(def.getID()), filter,
+					degraded)) {
+				matches.add(def);
+			}
+		}
+		return matches;
+	}
+
+	boolean passes(Definition def, Filter filter, boolean degraded) {
+		return passesFilter(def, Integer.parseInt(def.getID()), filter,
+				degraded);
+	}
+
+	/**
+	 * Changes whenever the glossary does, so a SearchSession knows when what
+	 * it holds is out of date
+	 */
+	long generation() {
+		return resultCache.generation();
+	}
+
+	/**
+	 * Returns the time now, if the call is being traced
+	 */
+	private static long now(SearchTrace trace) {
+		return trace == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Adds the time since start to a stage of the trace, if there is one
+	 */
+	private static void stage(SearchTrace trace, SearchStage stage, long start) {
+		if (trace != null) {
+			trace.addStage(stage, System.nanoTime() - start);
+		}
+	}
+
+	private static void finish(SearchMetrics metrics, SearchTrace trace,
+			long start) {
+		trace.addStage(SearchStage.TOTAL, System.nanoTime() - start);
+		metrics.record(trace);
 	}
 
 	/**
@@ -395,33 +2116,15 @@ public class QueryService {
 
 	/**
 	 * Returns a list of definitions who's textual definitions contain all of
-	 * the given string
+	 * the given string. This is answered from the in-memory trigram index
+	 * rather than with a LIKE query.
 	 * 
 	 * @param query
 	 *            - the string to search for in each definition
 	 * @return a list of definitions containing the query string
 	 */
 	public List<Definition> definitionSearch(String query) {
-
-		List<Definition> toReturn = new ArrayList<Definition>();
-
-		try {
-			searchInTerm.setString(1, "%" + query + "%");
-
-			ResultSet rs = searchInDefinition.executeQuery();
-
-			while (rs.next()) {
-				toReturn.add(new Definition(
-						rs.getString("term"), 
-						rs.getString("definition"), 
-						rs.getString("rank"), 
-						rs.getString("defID")));
-			}
-
-		} catch (SQLException e) {
-			toReturn = null;
-		}
-		return toReturn;
+		return definitionIndex.search(query);
 	}
 	
 	public List<Definition> termSearch(String query) {
@@ -429,63 +2132,60 @@ public class QueryService {
 		List<Definition> toReturn = new ArrayList<Definition>();
 
 		try {
-			searchInTerm.setString(1, "%" + query + "%");
+			PooledConnection conn = pool.borrow();
+			try {
+				PreparedStatement searchInTerm = conn.prepare(SEARCH_IN_TERM);
+				searchInTerm.setString(1, "%" + query + "%");
+				searchInTerm.setFetchSize(TERM_FETCH_SIZE);
 
-			ResultSet rs = searchInTerm.executeQuery();
+				ResultSet rs = searchInTerm.executeQuery();
 
-			while (rs.next()) {
-				toReturn.add(new Definition(
-						rs.getString("term"), 
-						rs.getString("definition"), 
-						rs.getString("rank"), 
-						rs.getString("defID")));
+				while (rs.next()) {
+					toReturn.add(new Definition(
+							rs.getString("term"), 
+							rs.getString("definition"), 
+							rs.getString("rank"), 
+							rs.getString("defID")));
+				}
+				rs.close();
+			} finally {
+				pool.release(conn);
 			}
 
 		} catch (SQLException e) {
-			toReturn = null;
+			throw new RuntimeException(e);
 		}
 		return toReturn;
 	}
 
 	/**
-	 * Returns a list of Definitions 
+	 * Returns the first definition of every term within the given edit
+	 * distance of the term. This is answered from the in-memory fuzzy term
+	 * index rather than the SEARCH stored procedure.
 	 * 
 	 * @param term
 	 * @param distance
 	 * @return
 	 */
 	public List<Definition> levenshtein(String term, Integer distance) {
+		return termIndex.search(term, distance);
+	}
 
-		if (term == null || term.equals(""))
-			throw new IllegalArgumentException(
-					"The supplied term must be non-null and non-empty.");
-
-		List<Definition> toReturn = new ArrayList<Definition>();
-		try {
-
-			searchForTerm.setString(1, term);
-			searchForTerm.setString(2, distance.toString());
-			Boolean hadResults = searchForTerm.execute();
-
-			if (hadResults) {
-				ResultSet rs = searchForTerm.getResultSet();
-
-				while (rs.next()) {
-					Definition def = defServ.getFirstDefinition(rs
-							.getString("term"));
-					if (def != null) {
-						Definition result = def;
-								//Integer.parseInt(rs.getString("relevance")));
-
-						toReturn.add(result);
-					}
-				}
-			}
-		} catch (SQLException e) {
-			// return null to signal an error
-			toReturn = null;
-		}
-		return toReturn;
+	/**
+	 * Returns the best ranked terms starting with the prefix, for typeahead.
+	 * This is answered from the in-memory term completer, without a query,
+	 * rather than with termSearch.
+	 *
+	 * @param prefix
+	 *            - what has been typed of the term so far
+	 * @param limit
+	 *            - the most terms to return, up to 10
+	 * @param fuzzy
+	 *            - whether to also complete prefixes one typo away
+	 * @return the completed terms, best ranked first
+	 */
+	public List<String> completeTerm(String prefix, int limit, boolean fuzzy) {
+		return completer.complete(prefix, limit, fuzzy);
 	}
 
 	/**
@@ -526,90 +2226,4 @@ public class QueryService {
 			 		 replace(">", "&gt;");
 	}
 
-	/**
-	 * Levenshtein algorithm from http://www.merriampark.com/ld.htm
-	 * @param s
-	 * @param t
-	 * @return
-	 */
-	private static int levenshtein(String s, String t) {
-		int d[][]; // matrix
-		int n; // length of s
-		int m; // length of t
-		int i; // iterates through s
-		int j; // iterates through t
-		char s_i; // ith character of s
-		char t_j; // jth character of t
-		int cost; // cost
-
-		// Step 1
-
-		n = s.length();
-		m = t.length();
-		if (n == 0) {
-			return m;
-		}
-		if (m == 0) {
-			return n;
-		}
-		d = new int[n + 1][m + 1];
-
-		// Step 2
-
-		for (i = 0; i <= n; i++) {
-			d[i][0] = i;
-		}
-
-		for (j = 0; j <= m; j++) {
-			d[0][j] = j;
-		}
-
-		// Step 3
-
-		for (i = 1; i <= n; i++) {
-
-			s_i = s.charAt(i - 1);
-
-			// Step 4
-
-			for (j = 1; j <= m; j++) {
-
-				t_j = t.charAt(j - 1);
-
-				// Step 5
-
-				if (s_i == t_j) {
-					cost = 0;
-				} else {
-					cost = 1;
-				}
-
-				// Step 6
-
-				d[i][j] = Minimum(d[i - 1][j] + 1, d[i][j - 1] + 1,
-						d[i - 1][j - 1] + cost);
-
-			}
-
-		}
-
-		// Step 7
-
-		return d[n][m];
-	}
-
-	private static int Minimum(int a, int b, int c) {
-		int mi;
-
-		mi = a;
-		if (b < mi) {
-			mi = b;
-		}
-		if (c < mi) {
-			mi = c;
-		}
-		return mi;
-
-	}
-
 }
@@ -1,16 +1,26 @@
 package ubergloss.serviceTests;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ubergloss.connectors.AbstractConnector;
+import ubergloss.services.AdmissionControl;
 import ubergloss.services.DefinitionService;
 import ubergloss.services.QueryService;
 import ubergloss.services.QueryService.CompleteDefinition;
+import ubergloss.services.SearchOutcome;
+import ubergloss.services.SearchSession;
 import ubergloss.objects.Definition;
 import ubergloss.objects.Filter;
 import ubergloss.objects.Filter.FilterTypes;
+import ubergloss.objects.SearchResult;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -225,6 +235,218 @@ public class QueryServiceTests {
 		}
 	}
 	
+	@Test
+	public void filterResults_MixedFiltersRepeated_SameResultsAsOrderIsTuned() {
+		Set<Filter> filters = qs.parseQuery("\"as\" (en-AU) [tag1] dam");
+		List<CompleteDefinition> completeDefs = qs.getCompleteDefinitions(qs.getMaximumResultSet(filters));
+		
+		Set<Definition> first = qs.filterResults(completeDefs, filters);
+		for(int i = 0; i < 5; i++) {
+			assertEquals(first, qs.filterResults(completeDefs, filters));
+		}
+	}
+	
+	@Test
+	public void performSearch_MixedFilters_SameAsUnionThenFilter() {
+		for(String query : new String[] { "dam \"the\"", "enweb \"the\"", "dam (en-AU)", "dam [tag1] \"as\"", "dam web" }) {
+			Set<Filter> filters = qs.parseQuery(query);
+			
+			List<CompleteDefinition> union = qs.getCompleteDefinitions(qs.getMaximumResultSet(filters));
+			
+			assertEquals(qs.filterResults(union, filters), qs.performSearch(filters));
+		}
+	}
+	
+	@Test
+	public void definitionSearch_SavedDefinition_FoundUntilDeleted() {
+		String id = String.valueOf(Integer.MAX_VALUE);
+		Definition def = new Definition("zqxterm", "a zqxjkw definition", "0", id);
+		
+		qs.definitionSaved(def);
+		assertTrue(qs.definitionSearch("zqxjkw").contains(def));
+		
+		qs.definitionDeleted(id);
+		assertTrue(qs.definitionSearch("zqxjkw").isEmpty());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void definitionSaved_NegativeID_Rejected() {
+		qs.definitionSaved(new Definition("zqxterm", "a zqxjkw definition", "0", "-1"));
+	}
+	
+	@Test
+	public void performSearch_TwoDefFilters_SameAsFilteringMaximumResultSet() {
+		Set<Filter> filters = qs.parseQuery("\"as\" \"the\"");
+		
+		Set<Definition> expected = qs.filterResults(
+				qs.getCompleteDefinitions(qs.getMaximumResultSet(filters)), filters);
+		
+		assertEquals(expected, qs.performSearch(filters));
+	}
+	
+	@Test
+	public void performSearch_ConcurrentSearches_SameAsSequential() throws Exception {
+		String[] queries = { "\"as\"", "\"the\" \"of\"", "(en-AU)", "dam", "\"as\" (en-US)" };
+		
+		final List<Set<Filter>> filterSets = new ArrayList<Set<Filter>>();
+		final List<Set<Definition>> expected = new ArrayList<Set<Definition>>();
+		for(String query : queries) {
+			Set<Filter> filters = qs.parseQuery(query);
+			filterSets.add(filters);
+			expected.add(qs.performSearch(filters));
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		
+		for(int i = 0; i < 400; i++) {
+			final int q = i % queries.length;
+			results.add(executor.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					Set<Definition> defs = qs.performSearch(filterSets.get(q));
+					
+					// hydration borrows pooled connections too
+					return defs.equals(expected.get(q)) && 
+						qs.getCompleteDefinitions(defs).size() == defs.size();
+				}
+			}));
+		}
+		
+		for(Future<Boolean> result : results) {
+			assertTrue(result.get());
+		}
+		executor.shutdown();
+	}
+	
+	@Test
+	public void getCompleteDefinitions_ParallelHydration_SameTagsAndLocales() {
+		Set<Definition> defs = qs.getMaximumResultSet(qs.parseQuery("\"a\""));
+		
+		List<CompleteDefinition> sequential = qs.getCompleteDefinitions(defs);
+		qs.setParallelHydration(true);
+		List<CompleteDefinition> parallel = qs.getCompleteDefinitions(defs);
+		
+		assertEquals(sequential.size(), parallel.size());
+		for(int i = 0; i < sequential.size(); i++) {
+			assertEquals(sequential.get(i).getDefinition(), parallel.get(i).getDefinition());
+			assertEquals(sequential.get(i).getTags().size(), parallel.get(i).getTags().size());
+			assertEquals(sequential.get(i).getLocales().size(), parallel.get(i).getLocales().size());
+		}
+	}
+
+	@Test
+	public void getCompleteDefinitions_SameDefinition_EqualOnlyToItsCompleteDefinition() {
+		Set<Definition> defs = qs.getMaximumResultSet(qs.parseQuery("\"a\""));
+
+		List<CompleteDefinition> first = qs.getCompleteDefinitions(defs);
+		List<CompleteDefinition> second = qs.getCompleteDefinitions(defs);
+
+		Set<CompleteDefinition> seen = new HashSet<CompleteDefinition>(first);
+		assertEquals(defs.size(), seen.size());
+		for(CompleteDefinition def : second) {
+			assertTrue(seen.contains(def));
+			assertFalse(def.equals(def.getDefinition()));
+		}
+	}
+
+	@Test
+	public void performRankedSearch_Pages_CoverWholeResultSetOnce() {
+		Set<Filter> filters = qs.parseQuery("\"as\"");
+		int total = qs.performSearch(filters).size();
+		
+		int seen = 0;
+		for(int offset = 0; offset < total; offset += 20) {
+			List<SearchResult> page = qs.performRankedSearch(filters, offset, 20);
+			
+			assertEquals(Math.min(20, total - offset), page.size());
+			seen += page.size();
+		}
+		assertEquals(total, seen);
+		assertTrue(qs.performRankedSearch(filters, total, 20).isEmpty());
+	}
+	
+	@Test
+	public void searchIterator_SmallFetchSize_SameAsPerformSearch() {
+		for(String query : new String[] { "\"as\"", "(en-AU)", "dam", "\"the\" (en-US)" }) {
+			Set<Filter> filters = qs.parseQuery(query);
+			
+			Set<Definition> streamed = new HashSet<Definition>();
+			Iterator<CompleteDefinition> it = qs.searchIterator(filters, 7);
+			while(it.hasNext()) {
+				assertTrue(streamed.add(it.next().getDefinition()));
+			}
+			
+			assertEquals(qs.performSearch(filters), streamed);
+		}
+	}
+	
+	@Test
+	public void openSession_FiltersAddedAndRemoved_SameAsPerformSearch() {
+		SearchSession session = qs.openSession();
+		Set<Filter> filters = qs.parseQuery("(en-AU)");
+		assertEquals(qs.performSearch(filters), session.search(filters));
+		
+		for(Filter filter : qs.parseQuery("\"the\" \"as\" [tag1]")) {
+			Set<Filter> narrowed = new HashSet<Filter>(filters);
+			narrowed.add(filter);
+			assertEquals(qs.performSearch(narrowed), session.addFilter(filter));
+			
+			assertEquals(qs.performSearch(filters), session.removeFilter(filter));
+		}
+	}
+	
+	@Test
+	public void performSearches_SharedFilters_SameAsPerformSearch() {
+		List<Set<Filter>> batch = new ArrayList<Set<Filter>>();
+		for(String query : new String[] { "(en-AU)", "\"the\" (en-AU)", "\"as\" (en-AU) [tag1]", "(en-AU)", "dam" }) {
+			batch.add(qs.parseQuery(query));
+		}
+		
+		List<Set<Definition>> results = qs.performSearches(batch);
+		assertEquals(batch.size(), results.size());
+		for(int i = 0; i < batch.size(); i++) {
+			assertEquals(qs.performSearch(batch.get(i)), results.get(i));
+		}
+	}
+	
+	@Test
+	public void performSearchAsync_GenerousDeadline_CompleteAndSameAsPerformSearch() throws Exception {
+		for(String query : new String[] { "\"as\"", "(en-AU)", "dam", "\"the\" (en-US)" }) {
+			Set<Filter> filters = qs.parseQuery(query);
+			
+			SearchOutcome outcome = qs.performSearchAsync(filters, 10000).get();
+			
+			assertFalse(outcome.isPartial());
+			assertEquals(qs.performSearch(filters), outcome.getResults());
+		}
+	}
+	
+	@Test
+	public void everyEntryPoint_AdmissionControl_EachSearchAdmitted() throws Exception {
+		AdmissionControl control = new AdmissionControl(Long.MAX_VALUE, Long.MAX_VALUE, 0);
+		qs.setAdmissionControl(control);
+		
+		qs.performRankedSearch(qs.parseQuery("\"as\""), 0, 20);
+		qs.searchIterator(qs.parseQuery("\"the\""), 7).hasNext();
+		qs.performSearchAsync(qs.parseQuery("dam"), 10000).get();
+		qs.openSession().search(qs.parseQuery("(en-AU)"));
+		List<Set<Filter>> batch = new ArrayList<Set<Filter>>();
+		batch.add(qs.parseQuery("\"the\" (en-US)"));
+		batch.add(qs.parseQuery("\"as\" (en-AU)"));
+		qs.performSearches(batch);
+		
+		assertEquals(6, control.getAdmitted());
+		assertEquals(0, control.getInFlightCost());
+	}
+	
+	@Test
+	public void parseQuery_SameQueryTwice_IndependentFilterSets() {
+		Set<Filter> first = qs.parseQuery("[tag1] (locale1) dam");
+		first.clear();
+		
+		Set<Filter> second = qs.parseQuery(" [tag1] (locale1) dam ");
+		assertTrue(second.size() == 3);
+		assertTrue(second.contains(new Filter(FilterTypes.Tag, "tag1")));
+	}
 	
 }
- 
\ No newline at end of file
@@ -0,0 +1,114 @@
+package ubergloss.services;
+
+import java.util.Set;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+
+/**
+ * Scores how well a definition answers a search, for ranking the results.
+ * The score is the definition's rank, weighted, plus points for how closely
+ * it matches each filter:
+ * 
+ * a term filter scores most for the exact term, and less the further the
+ * term is from it; a definition filter scores more when the query is a whole
+ * word of the definition than when it's part of one; a tag filter scores
+ * more for the tag itself than for one of its descendants. Locale filters
+ * either match or don't, so add nothing.
+ * 
+ * The definition is assumed to pass every filter already.
+ * 
+ * @author George Kinsman
+ * 
+ */
+class RelevanceScorer {
+
+	private static final int RANK_WEIGHT = 10;
+
+	private static final int EXACT_TERM = 100;
+	private static final int PER_EDIT_SAVED = 20;
+	private static final int WHOLE_WORD = 30;
+	private static final int PART_WORD = 10;
+	private static final int OWN_TAG = 20;
+	private static final int DESCENDANT_TAG = 10;
+
+	private MembershipIndex membershipIndex;
+	private int termDistance;
+
+	public RelevanceScorer(MembershipIndex membershipIndex, int termDistance) {
+		this.membershipIndex = membershipIndex;
+		this.termDistance = termDistance;
+	}
+
+	/**
+	 * @param def
+	 *            a definition passing every filter
+	 * @param id
+	 *            the definition's ID
+	 * @param filters
+	 * @return the definition's relevance, higher being better
+	 */
+	public int score(Definition def, int id, Set<Filter> filters) {
+		int score = RANK_WEIGHT * rankOf(def);
+
+		for (Filter filter : filters) {
+			if (filter.getType() == FilterTypes.Term) {
+				score += termScore(def.getTerm(), filter.getQuery());
+
+			} else if (filter.getType() == FilterTypes.Definition) {
+				score += isWholeWord(def.getDefinition(), filter.getQuery()) ? WHOLE_WORD
+						: PART_WORD;
+
+			} else if (filter.getType() == FilterTypes.Tag) {
+				score += membershipIndex.hasOwnTag(id, filter.getQuery()) ? OWN_TAG
+						: DESCENDANT_TAG;
+			}
+		}
+		return score;
+	}
+
+	private int termScore(String term, String query) {
+		if (term.equalsIgnoreCase(query)) {
+			return EXACT_TERM;
+		}
+		int distance = EditDistance.distance(term.toLowerCase(), query
+				.toLowerCase());
+		return Math.max(0, termDistance + 1 - distance) * PER_EDIT_SAVED;
+	}
+
+	/**
+	 * Returns true if the query appears in the text with no letter or digit
+	 * either side of it
+	 */
+	private static boolean isWholeWord(String text, String query) {
+		if (query.length() == 0) {
+			return false;
+		}
+
+		for (int i = text.indexOf(query); i >= 0; i = text.indexOf(query,
+				i + 1)) {
+			int end = i + query.length();
+
+			if ((i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1)))
+					&& (end == text.length() || !Character
+							.isLetterOrDigit(text.charAt(end)))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Ranks are held as strings, so anything that isn't a number counts as
+	 * zero
+	 */
+	private static int rankOf(Definition def) {
+		try {
+			return def.getRank() == null ? 0 : Integer.parseInt(def.getRank()
+					.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package ubergloss.services;
+
+/**
+ * Receives a trace of every instrumented QueryService call, for recording
+ * wherever the application keeps its metrics. SearchStatistics is the
+ * built-in implementation.
+ * 
+ * Called on the searching thread, so implementations must be thread-safe
+ * and quick.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public interface SearchMetrics {
+
+	/**
+	 * Called after each instrumented call completes
+	 * 
+	 * @param trace
+	 *            the stages the call passed through and what they found
+	 */
+	public void record(SearchTrace trace);
+
+}
@@ -0,0 +1,38 @@
+package ubergloss.services;
+
+import java.util.Set;
+
+import ubergloss.objects.Definition;
+
+/**
+ * The results of a search that had a deadline. A partial outcome is one the
+ * deadline cut short: every definition in it passes every filter, but
+ * there may be others that would have too.
+ *
+ * @author George Kinsman
+ *
+ */
+public class SearchOutcome {
+
+	private final Set<Definition> results;
+	private final boolean partial;
+
+	public SearchOutcome(Set<Definition> results, boolean partial) {
+		if (results == null)
+			throw new IllegalArgumentException("the results must be non-null.");
+		this.results = results;
+		this.partial = partial;
+	}
+
+	public Set<Definition> getResults() {
+		return results;
+	}
+
+	/**
+	 * @return whether the search was stopped at its deadline before every
+	 *         result was found
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+}
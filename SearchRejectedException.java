@@ -0,0 +1,19 @@
+package ubergloss.services;
+
+/**
+ * Thrown when a search is turned away by admission control, either because
+ * it would cost too much even degraded, or because it waited too long for
+ * other searches to make room for it. The search may be worth retrying
+ * later; the request that made it is not at fault.
+ *
+ * @author George Kinsman
+ *
+ */
+public class SearchRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public SearchRejectedException(String message) {
+		super(message);
+	}
+}
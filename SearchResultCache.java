@@ -0,0 +1,514 @@
+package ubergloss.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+
+/**
+ * Caches the results of whole searches, keyed by their filters, so popular
+ * searches aren't worked out again on every request.
+ *
+ * Entries are sized by an estimate of the memory their results hold, and the
+ * cache is bounded by the total. It follows the W-TinyLFU design: new entries
+ * go into a small LRU window, and an entry leaving the window only displaces
+ * one from the main area if it has been asked for more often, going by a
+ * frequency sketch of recent keys. The main area is a segmented LRU, where
+ * entries hit a second time are protected from one-off searches.
+ *
+ * Nothing expires with time. An entry is dropped as soon as a change to the
+ * glossary could alter its results: a definition it contains, or one that
+ * would now pass its filters, is saved or deleted, or one of its tags or
+ * locales is added to or removed from a definition. As a tag filter matches
+ * the tag's descendants too, a change to a tag also drops entries filtering
+ * on its ancestors, and moving or deleting a tag drops every entry with a tag
+ * filter. The cache must be told of changes after the indexes that searches
+ * are answered from.
+ *
+ * @author George Kinsman
+ *
+ */
+public class SearchResultCache extends GlossaryChangeAdapter {
+
+	/**
+	 * Decides whether a definition passes a set of filters, which is needed
+	 * to know which entries a newly saved definition affects
+	 */
+	public interface Matcher {
+		public boolean passes(Definition def, Set<Filter> filters);
+	}
+
+	// rough costs, in bytes, of an entry and of each definition it refers to
+	private static final int ENTRY_OVERHEAD = 160;
+	private static final int RESULT_OVERHEAD = 40;
+	// used to size the frequency sketch from the byte bound
+	private static final int TYPICAL_ENTRY_WEIGHT = 2048;
+
+	private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+	private static class Entry {
+		final String key;
+		final Set<Definition> results;
+		final Set<Filter> filters;
+		final Set<String> ids;
+		final long weight;
+		int segment;
+
+		Entry(String key, Set<Definition> results, Set<Filter> filters,
+				Set<String> ids, long weight) {
+			this.key = key;
+			this.results = results;
+			this.filters = filters;
+			this.ids = ids;
+			this.weight = weight;
+		}
+	}
+
+	private final Matcher matcher;
+	private final TagHierarchy hierarchy;
+	private final long maximumWeight;
+	private final long windowMaximum;
+	private final long protectedMaximum;
+
+	private final FrequencySketch sketch;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	// each segment is kept in access order, least recent first
+	private final List<LinkedHashMap<String, Entry>> segments = new ArrayList<LinkedHashMap<String, Entry>>();
+	private final long[] segmentWeights = new long[3];
+
+	// the entries depending on each definition, tag and locale
+	private final Map<String, Set<String>> byDefinition = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> byTag = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> byLocale = new HashMap<String, Set<String>>();
+
+	// bumped on every change, so a search that overlapped one isn't cached
+	private long generation = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Creates a cache for searches over flat tags, where no tag is within
+	 * another
+	 *
+	 * @param maximumWeight
+	 *            the most memory, in bytes, the cached results may hold
+	 * @param matcher
+	 *            how searches decide whether a definition passes
+	 */
+	public SearchResultCache(long maximumWeight, Matcher matcher) {
+		this(maximumWeight, matcher, new TagHierarchy());
+	}
+
+	/**
+	 * @param maximumWeight
+	 *            the most memory, in bytes, the cached results may hold
+	 * @param matcher
+	 *            how searches decide whether a definition passes
+	 * @param hierarchy
+	 *            the tree the searches' tag filters are matched against
+	 */
+	public SearchResultCache(long maximumWeight, Matcher matcher,
+			TagHierarchy hierarchy) {
+		if (maximumWeight < 1)
+			throw new IllegalArgumentException(
+					"the cache must hold at least one byte.");
+		if (matcher == null || hierarchy == null)
+			throw new IllegalArgumentException(
+					"the matcher or tag hierarchy must be non-null.");
+		this.matcher = matcher;
+		this.hierarchy = hierarchy;
+		this.maximumWeight = maximumWeight;
+		windowMaximum = Math.max(1, maximumWeight / 100);
+		protectedMaximum = (maximumWeight - windowMaximum) * 4 / 5;
+
+		sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(16,
+				maximumWeight / TYPICAL_ENTRY_WEIGHT)));
+
+		for (int i = 0; i < 3; i++) {
+			segments.add(new LinkedHashMap<String, Entry>(16, 0.75f, true));
+		}
+	}
+
+	/**
+	 * Returns the key a set of filters is cached under. Filters that always
+	 * match the same definitions give the same key, whatever their order.
+	 */
+	public static String keyOf(Set<Filter> filters) {
+		List<String> parts = new ArrayList<String>(filters.size());
+
+		for (Filter filter : filters) {
+			String query = filter.getQuery();
+			// tag and locale names are matched without regard to case
+			if (filter.getType() == FilterTypes.Tag
+					|| filter.getType() == FilterTypes.Locale) {
+				query = query.toLowerCase();
+			}
+			parts.add(filter.getType().ordinal() + ":" + query);
+		}
+		Collections.sort(parts);
+
+		StringBuilder key = new StringBuilder();
+		for (String part : parts) {
+			key.append(part).append('\u0000');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns the cached results for the key, or null if there are none. The
+	 * set returned must not be changed.
+	 */
+	public synchronized Set<Definition> get(String key) {
+		sketch.increment(key);
+
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		return hit(entry);
+	}
+
+	/**
+	 * As get, for searches that never put their own results, such as ranked
+	 * or lazy ones. A hit counts as one, but a miss isn't counted, as it
+	 * would never be followed by a put to make it a hit next time.
+	 */
+	public synchronized Set<Definition> peek(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		sketch.increment(key);
+		return hit(entry);
+	}
+
+	private Set<Definition> hit(Entry entry) {
+		hits.incrementAndGet();
+
+		if (entry.segment == PROBATION) {
+			// asked for again while on probation, so it's earned protection
+			move(entry, PROTECTED);
+			while (segmentWeights[PROTECTED] > protectedMaximum) {
+				Entry demoted = eldest(PROTECTED);
+				move(demoted, PROBATION);
+			}
+		} else {
+			segments.get(entry.segment).get(entry.key);
+		}
+		return entry.results;
+	}
+
+	/**
+	 * Returns a token to hand back to put, marking when a search began
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Caches the results of a search, unless the glossary has changed since
+	 * the search began
+	 *
+	 * @param key
+	 *            from keyOf
+	 * @param filters
+	 *            the filters searched for
+	 * @param results
+	 *            the definitions found
+	 * @param generation
+	 *            from generation, taken before the search began
+	 */
+	public synchronized void put(String key, Set<Filter> filters,
+			Set<Definition> results, long generation) {
+		if (generation != this.generation || entries.containsKey(key)) {
+			return;
+		}
+
+		Set<String> ids = new HashSet<String>();
+		for (Definition def : results) {
+			ids.add(def.getID());
+		}
+
+		long weight = ENTRY_OVERHEAD + 2L * key.length() + RESULT_OVERHEAD
+				* (long) results.size();
+		if (weight > maximumWeight - windowMaximum) {
+			return;
+		}
+
+		// the caller's filters may change after this, so keep copies
+		Set<Filter> copies = new HashSet<Filter>();
+		for (Filter filter : filters) {
+			copies.add(new Filter(filter.getType(), filter.getQuery()));
+		}
+
+		Entry entry = new Entry(key, Collections
+				.unmodifiableSet(new HashSet<Definition>(results)), copies,
+				ids, weight);
+
+		entries.put(key, entry);
+		index(entry);
+		entry.segment = WINDOW;
+		segments.get(WINDOW).put(key, entry);
+		segmentWeights[WINDOW] += weight;
+
+		while (segmentWeights[WINDOW] > windowMaximum) {
+			admit(eldest(WINDOW));
+		}
+	}
+
+	/**
+	 * Drops every entry
+	 */
+	public synchronized void clear() {
+		generation++;
+		invalidations.addAndGet(entries.size());
+
+		entries.clear();
+		for (int i = 0; i < 3; i++) {
+			segments.get(i).clear();
+			segmentWeights[i] = 0;
+		}
+		byDefinition.clear();
+		byTag.clear();
+		byLocale.clear();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return how many entries have been dropped, or refused, to stay within
+	 *         the weight bound
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return how many entries have been dropped because of a change
+	 */
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the estimated memory, in bytes, held by the cached results
+	 */
+	public synchronized long weight() {
+		return segmentWeights[WINDOW] + segmentWeights[PROBATION]
+				+ segmentWeights[PROTECTED];
+	}
+
+	public synchronized void definitionSaved(Definition def) {
+		generation++;
+
+		Set<String> affected = keys(byDefinition, def.getID());
+		for (Entry entry : entries.values()) {
+			if (!affected.contains(entry.key)
+					&& matcher.passes(def, entry.filters)) {
+				affected.add(entry.key);
+			}
+		}
+		invalidate(affected);
+	}
+
+	public synchronized void definitionDeleted(String defID) {
+		generation++;
+		invalidate(keys(byDefinition, defID));
+	}
+
+	public synchronized void tagAdded(String defID, String tagName) {
+		generation++;
+		invalidateTag(tagName);
+	}
+
+	public synchronized void tagRemoved(String defID, String tagName) {
+		generation++;
+		invalidateTag(tagName);
+	}
+
+	public synchronized void localeAdded(String defID, String shortName) {
+		generation++;
+		invalidate(keys(byLocale, shortName.toLowerCase()));
+	}
+
+	public synchronized void localeRemoved(String defID, String shortName) {
+		generation++;
+		invalidate(keys(byLocale, shortName.toLowerCase()));
+	}
+
+	public synchronized void tagDeleted(String tagName) {
+		generation++;
+		invalidateAllTags();
+	}
+
+	public synchronized void tagMoved(String tagName, String parentName) {
+		generation++;
+		invalidateAllTags();
+	}
+
+	public synchronized void localeDeleted(String shortName) {
+		generation++;
+		invalidate(keys(byLocale, shortName.toLowerCase()));
+	}
+
+	/**
+	 * Moves an entry out of the window into the main area, if it's asked for
+	 * more often than whatever it would push out
+	 */
+	private void admit(Entry candidate) {
+		remove(candidate, WINDOW);
+
+		long mainMaximum = maximumWeight - windowMaximum;
+		while (segmentWeights[PROBATION] + segmentWeights[PROTECTED]
+				+ candidate.weight > mainMaximum) {
+			int from = segments.get(PROBATION).isEmpty() ? PROTECTED
+					: PROBATION;
+			Entry victim = eldest(from);
+
+			if (sketch.frequency(candidate.key) <= sketch
+					.frequency(victim.key)) {
+				unindex(candidate);
+				entries.remove(candidate.key);
+				evictions.incrementAndGet();
+				return;
+			}
+			remove(victim, from);
+			unindex(victim);
+			entries.remove(victim.key);
+			evictions.incrementAndGet();
+		}
+
+		candidate.segment = PROBATION;
+		segments.get(PROBATION).put(candidate.key, candidate);
+		segmentWeights[PROBATION] += candidate.weight;
+	}
+
+	private Entry eldest(int segment) {
+		Iterator<Entry> it = segments.get(segment).values().iterator();
+		return it.next();
+	}
+
+	private void move(Entry entry, int segment) {
+		remove(entry, entry.segment);
+		entry.segment = segment;
+		segments.get(segment).put(entry.key, entry);
+		segmentWeights[segment] += entry.weight;
+	}
+
+	private void remove(Entry entry, int segment) {
+		segments.get(segment).remove(entry.key);
+		segmentWeights[segment] -= entry.weight;
+	}
+
+	private void invalidate(Set<String> keys) {
+		for (String key : keys) {
+			Entry entry = entries.remove(key);
+			if (entry != null) {
+				remove(entry, entry.segment);
+				unindex(entry);
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops the entries filtering on the tag or any of its ancestors
+	 */
+	private void invalidateTag(String tagName) {
+		for (String name : hierarchy.getAncestors(tagName)) {
+			invalidate(keys(byTag, name));
+		}
+	}
+
+	/**
+	 * Drops every entry with a tag filter, for when the shape of the tree
+	 * has changed
+	 */
+	private void invalidateAllTags() {
+		Set<String> affected = new HashSet<String>();
+		for (Set<String> keys : byTag.values()) {
+			affected.addAll(keys);
+		}
+		invalidate(affected);
+	}
+
+	private void index(Entry entry) {
+		for (String id : entry.ids) {
+			dependents(byDefinition, id).add(entry.key);
+		}
+		for (Filter filter : entry.filters) {
+			if (filter.getType() == FilterTypes.Tag) {
+				dependents(byTag, filter.getQuery().toLowerCase()).add(
+						entry.key);
+			} else if (filter.getType() == FilterTypes.Locale) {
+				dependents(byLocale, filter.getQuery().toLowerCase()).add(
+						entry.key);
+			}
+		}
+	}
+
+	private void unindex(Entry entry) {
+		for (String id : entry.ids) {
+			undepend(byDefinition, id, entry.key);
+		}
+		for (Filter filter : entry.filters) {
+			if (filter.getType() == FilterTypes.Tag) {
+				undepend(byTag, filter.getQuery().toLowerCase(), entry.key);
+			} else if (filter.getType() == FilterTypes.Locale) {
+				undepend(byLocale, filter.getQuery().toLowerCase(), entry.key);
+			}
+		}
+	}
+
+	private static Set<String> dependents(Map<String, Set<String>> index,
+			String name) {
+		Set<String> keys = index.get(name);
+		if (keys == null) {
+			keys = new HashSet<String>();
+			index.put(name, keys);
+		}
+		return keys;
+	}
+
+	private static void undepend(Map<String, Set<String>> index, String name,
+			String key) {
+		Set<String> keys = index.get(name);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				index.remove(name);
+			}
+		}
+	}
+
+	private static Set<String> keys(Map<String, Set<String>> index,
+			String name) {
+		Set<String> keys = index.get(name);
+		return keys == null ? new HashSet<String>() : new HashSet<String>(keys);
+	}
+}
@@ -0,0 +1,214 @@
+package ubergloss.serviceTests;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+import ubergloss.services.SearchResultCache;
+import ubergloss.services.TagHierarchy;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SearchResultCacheTests {
+
+	private SearchResultCache cache;
+	
+	@Before
+	public void setUp() {
+		// definition filters pass whatever contains them; nothing else passes
+		cache = new SearchResultCache(1024 * 1024, new SearchResultCache.Matcher() {
+			public boolean passes(Definition def, Set<Filter> filters) {
+				for(Filter filter : filters) {
+					if(filter.getType() != FilterTypes.Definition ||
+							!def.getDefinition().contains(filter.getQuery())) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+	}
+	
+	@Test
+	public void keyOf_SameFiltersDifferentCase_SameKey() {
+		assertEquals(SearchResultCache.keyOf(filters(tag("Internet"), locale("en-US"))),
+				SearchResultCache.keyOf(filters(locale("EN-us"), tag("internet"))));
+		assertFalse(SearchResultCache.keyOf(filters(tag("internet"))).equals(
+				SearchResultCache.keyOf(filters(locale("internet")))));
+	}
+	
+	@Test
+	public void get_AfterPut_HitCounted() {
+		Set<Filter> filters = filters(tag("internet"));
+		String key = SearchResultCache.keyOf(filters);
+		
+		assertNull(cache.get(key));
+		cache.put(key, filters, results(definition("1", "a network")), cache.generation());
+		
+		assertEquals(results(definition("1", "a network")), cache.get(key));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+	
+	@Test
+	public void peek_Miss_NotCounted() {
+		Set<Filter> filters = filters(tag("internet"));
+		String key = SearchResultCache.keyOf(filters);
+		
+		assertNull(cache.peek(key));
+		cache.put(key, filters, results(definition("1", "a network")), cache.generation());
+		
+		assertEquals(results(definition("1", "a network")), cache.peek(key));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(0, cache.getMissCount());
+	}
+	
+	@Test
+	public void put_ChangeDuringSearch_NotCached() {
+		Set<Filter> filters = filters(tag("internet"));
+		String key = SearchResultCache.keyOf(filters);
+		long generation = cache.generation();
+		
+		cache.definitionDeleted("7");
+		cache.put(key, filters, results(definition("1", "a network")), generation);
+		
+		assertNull(cache.get(key));
+	}
+	
+	@Test
+	public void tagAdded_OnlyEntriesFilteringOnTag_Invalidated() {
+		Set<Filter> internet = filters(tag("internet"));
+		Set<Filter> science = filters(tag("science"));
+		put(internet, definition("1", "a network"));
+		put(science, definition("2", "a method"));
+		
+		cache.tagAdded("3", "Internet");
+		
+		assertNull(cache.get(SearchResultCache.keyOf(internet)));
+		assertNotNull(cache.get(SearchResultCache.keyOf(science)));
+		assertEquals(1, cache.getInvalidationCount());
+	}
+	
+	@Test
+	public void tagAdded_DescendantTag_AncestorEntriesInvalidated() {
+		TagHierarchy hierarchy = new TagHierarchy();
+		hierarchy.tagMoved("physics", "science");
+		cache = new SearchResultCache(1024 * 1024, new SearchResultCache.Matcher() {
+			public boolean passes(Definition def, Set<Filter> filters) {
+				return false;
+			}
+		}, hierarchy);
+		Set<Filter> science = filters(tag("science"));
+		Set<Filter> physics = filters(tag("physics"));
+		put(science, definition("1", "a method"));
+		put(physics, definition("2", "a force"));
+		
+		cache.tagAdded("3", "science");
+		
+		assertNull(cache.get(SearchResultCache.keyOf(science)));
+		assertNotNull(cache.get(SearchResultCache.keyOf(physics)));
+		
+		put(science, definition("1", "a method"));
+		cache.tagAdded("3", "physics");
+		
+		assertNull(cache.get(SearchResultCache.keyOf(science)));
+		assertNull(cache.get(SearchResultCache.keyOf(physics)));
+	}
+	
+	@Test
+	public void definitionDeleted_OnlyEntriesContainingIt_Invalidated() {
+		Set<Filter> internet = filters(tag("internet"));
+		Set<Filter> science = filters(tag("science"));
+		put(internet, definition("1", "a network"));
+		put(science, definition("2", "a method"));
+		
+		cache.definitionDeleted("2");
+		
+		assertNotNull(cache.get(SearchResultCache.keyOf(internet)));
+		assertNull(cache.get(SearchResultCache.keyOf(science)));
+	}
+	
+	@Test
+	public void definitionSaved_NowPassesFilters_Invalidated() {
+		Set<Filter> network = filters(text("network"));
+		Set<Filter> method = filters(text("method"));
+		put(network, definition("1", "a network"));
+		put(method, definition("2", "a method"));
+		
+		cache.definitionSaved(definition("9", "another network"));
+		
+		assertNull(cache.get(SearchResultCache.keyOf(network)));
+		assertNotNull(cache.get(SearchResultCache.keyOf(method)));
+	}
+	
+	@Test
+	public void put_ManyOneOffSearches_StaysWithinWeightAndKeepsPopular() {
+		cache = new SearchResultCache(64 * 1024, new SearchResultCache.Matcher() {
+			public boolean passes(Definition def, Set<Filter> filters) {
+				return false;
+			}
+		});
+		Set<Filter> popular = filters(tag("internet"));
+		String popularKey = SearchResultCache.keyOf(popular);
+		
+		for(int i = 0; i < 20; i++) {
+			if(cache.get(popularKey) == null) {
+				put(popular, definition("1", "a network"));
+			}
+		}
+		
+		for(int i = 0; i < 5000; i++) {
+			// still asked for now and then, amongst the one-offs
+			if(i % 10 == 0) {
+				assertNotNull(cache.get(popularKey));
+			}
+			Set<Filter> oneOff = filters(text("query " + i));
+			assertNull(cache.get(SearchResultCache.keyOf(oneOff)));
+			put(oneOff, definition(String.valueOf(i), "query " + i));
+			
+			assertTrue(cache.weight() <= 64 * 1024);
+		}
+		
+		assertNotNull(cache.get(popularKey));
+		assertTrue(cache.getEvictionCount() > 0);
+	}
+	
+	private void put(Set<Filter> filters, Definition... defs) {
+		cache.put(SearchResultCache.keyOf(filters), filters, results(defs), cache.generation());
+	}
+	
+	private static Set<Filter> filters(Filter... filters) {
+		Set<Filter> set = new HashSet<Filter>();
+		for(Filter filter : filters) {
+			set.add(filter);
+		}
+		return set;
+	}
+	
+	private static Set<Definition> results(Definition... defs) {
+		Set<Definition> set = new HashSet<Definition>();
+		for(Definition def : defs) {
+			set.add(def);
+		}
+		return set;
+	}
+	
+	private static Filter tag(String name) {
+		return new Filter(FilterTypes.Tag, name);
+	}
+	
+	private static Filter locale(String name) {
+		return new Filter(FilterTypes.Locale, name);
+	}
+	
+	private static Filter text(String query) {
+		return new Filter(FilterTypes.Definition, query);
+	}
+	
+	private static Definition definition(String id, String text) {
+		return new Definition("term" + id, text, "0", id);
+	}
+}
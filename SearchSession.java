@@ -0,0 +1,220 @@
+package ubergloss.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+
+/**
+ * One user's run of searches, where each usually differs from the last by a
+ * filter added or taken away. Rather than starting every search afresh, the
+ * session keeps what the last one learned and works out only what changed.
+ *
+ * The filters are applied in order. The first chooses the definitions to
+ * consider, and every definition it matched is either a result or is held
+ * against the first filter after it that it failed. Adding a filter checks
+ * only the current results against it. Removing a filter checks only the
+ * definitions it had removed against the filters after it, and those that
+ * pass them all are results again. Only removing the first filter, or a
+ * change to the glossary since the last search, means starting afresh.
+ *
+ * Starting afresh fetches the first filter's matches, so is admitted by the
+ * service's admission control like any other search. A session started
+ * degraded stays degraded, its filters matching short terms at the degraded
+ * distance, until it next starts afresh.
+ *
+ * A session belongs to one user and isn't thread-safe.
+ *
+ * @author George Kinsman
+ *
+ */
+public class SearchSession {
+
+	private final QueryService service;
+
+	// the filters in the order they were applied
+	private final List<Filter> applied = new ArrayList<Filter>();
+	// the definitions each filter removed, which passed every filter before
+	// it; the first filter removes none
+	private final Map<Filter, List<Definition>> removed = new HashMap<Filter, List<Definition>>();
+	private Set<Definition> results = new HashSet<Definition>();
+	// the glossary's generation when the session was last brought up to date
+	private long generation;
+	// whether the session was degraded when it last started afresh
+	private boolean degraded = false;
+
+	private int examined = 0;
+
+	SearchSession(QueryService service) {
+		this.service = service;
+	}
+
+	/**
+	 * Returns the definitions passing every filter, working from the
+	 * session's last search where the filters overlap
+	 *
+	 * @param filters
+	 * @return the definitions passing every filter
+	 */
+	public Set<Definition> search(Set<Filter> filters) {
+		examined = 0;
+
+		if (filters.isEmpty()) {
+			clear();
+			return new HashSet<Definition>();
+		}
+
+		if (applied.isEmpty() || generation != service.generation()
+				|| Collections.disjoint(applied, filters)) {
+			start(filters);
+			return getResults();
+		}
+
+		for (Filter filter : new ArrayList<Filter>(applied)) {
+			if (!filters.contains(filter)) {
+				if (applied.indexOf(filter) == 0) {
+					// everything left was chosen by this filter
+					start(filters);
+					return getResults();
+				}
+				remove(filter);
+			}
+		}
+		for (Filter filter : filters) {
+			if (!applied.contains(filter)) {
+				add(filter);
+			}
+		}
+		return getResults();
+	}
+
+	/**
+	 * Searches again with one more filter
+	 */
+	public Set<Definition> addFilter(Filter filter) {
+		Set<Filter> filters = getFilters();
+		filters.add(filter);
+		return search(filters);
+	}
+
+	/**
+	 * Searches again without a filter
+	 */
+	public Set<Definition> removeFilter(Filter filter) {
+		Set<Filter> filters = getFilters();
+		filters.remove(filter);
+		return search(filters);
+	}
+
+	/**
+	 * @return a copy of the filters last searched for
+	 */
+	public Set<Filter> getFilters() {
+		return new HashSet<Filter>(applied);
+	}
+
+	/**
+	 * @return a copy of the results of the last search
+	 */
+	public Set<Definition> getResults() {
+		return new HashSet<Definition>(results);
+	}
+
+	/**
+	 * @return how many definitions the last search had to check against a
+	 *         filter
+	 */
+	public int getExamined() {
+		return examined;
+	}
+
+	/**
+	 * Forgets the last search
+	 */
+	public void clear() {
+		applied.clear();
+		removed.clear();
+		results = new HashSet<Definition>();
+	}
+
+	private void start(Set<Filter> filters) {
+		clear();
+		generation = service.generation();
+
+		// the most selective filter chooses the fewest definitions to check
+		applied.addAll(service.plan(filters));
+		for (Filter filter : applied) {
+			removed.put(filter, new ArrayList<Definition>());
+		}
+
+		// only the first filter's matches are fetched, the rest are checked
+		// in memory
+		AdmissionControl.Ticket ticket;
+		try {
+			ticket = service.admit(Collections.singleton(applied.get(0)));
+		} catch (SearchRejectedException e) {
+			// nothing was searched, so there's nothing to work from next time
+			clear();
+			throw e;
+		}
+		degraded = ticket != null && ticket.isDegraded();
+		try {
+			for (Definition def : service.matchesOf(applied.get(0), degraded)) {
+				place(def, 1);
+			}
+		} finally {
+			if (ticket != null) {
+				ticket.release();
+			}
+		}
+	}
+
+	private void add(Filter filter) {
+		List<Definition> failed = new ArrayList<Definition>();
+
+		for (Iterator<Definition> it = results.iterator(); it.hasNext();) {
+			Definition def = it.next();
+			examined++;
+			if (!service.passes(def, filter, degraded)) {
+				it.remove();
+				failed.add(def);
+			}
+		}
+		applied.add(filter);
+		removed.put(filter, failed);
+	}
+
+	private void remove(Filter filter) {
+		int position = applied.indexOf(filter);
+		applied.remove(position);
+
+		// these passed every filter before this one, so need only be checked
+		// against those after it
+		for (Definition def : removed.remove(filter)) {
+			place(def, position);
+		}
+	}
+
+	/**
+	 * Holds a definition against the first filter from the position on
+	 * that it fails, or makes it a result if it fails none
+	 */
+	private void place(Definition def, int from) {
+		for (int i = from; i < applied.size(); i++) {
+			Filter filter = applied.get(i);
+			examined++;
+			if (!service.passes(def, filter, degraded)) {
+				removed.get(filter).add(def);
+				return;
+			}
+		}
+		results.add(def);
+	}
+}
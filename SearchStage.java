@@ -0,0 +1,22 @@
+package ubergloss.services;
+
+/**
+ * The stages a search passes through, as timed by SearchMetrics
+ * 
+ * @author George Kinsman
+ * 
+ */
+public enum SearchStage {
+	/** splitting the query string into filters */
+	PARSE,
+	/** checking which tag and locale filters exist */
+	VALIDATE,
+	/** finding the definitions that may pass the filters */
+	CANDIDATES,
+	/** checking each candidate against every filter */
+	FILTER,
+	/** loading the tags and locales of the results */
+	HYDRATE,
+	/** the whole call, from start to finish */
+	TOTAL
+}
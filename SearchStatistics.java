@@ -0,0 +1,197 @@
+package ubergloss.services;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Records search traces into latency histograms, one per stage, along with
+ * histograms of candidate and result counts and a total of database round
+ * trips. It can be registered with JMX to be watched from a console.
+ * 
+ * Calls slower than a threshold are written to a slow query log, with their
+ * filters and a breakdown of their stages, and the most recent are kept for
+ * JMX. Only a sample of slow calls is logged, at a rate that can be changed
+ * while running; with a rate of zero nothing is ever formatted.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public class SearchStatistics implements SearchMetrics, SearchStatisticsMBean {
+
+	private static final Logger SLOW_QUERY_LOG = Logger
+			.getLogger("ubergloss.services.slowquery");
+
+	private static final int SLOW_QUERIES_KEPT = 100;
+
+	private final LatencyHistogram[] stages = new LatencyHistogram[SearchStage
+			.values().length];
+	private final LatencyHistogram candidates = new LatencyHistogram();
+	private final LatencyHistogram results = new LatencyHistogram();
+	private final AtomicLong traces = new AtomicLong();
+	private final AtomicLong roundTrips = new AtomicLong();
+
+	private volatile long slowQueryNanos = 500L * 1000 * 1000;
+	private volatile double slowQuerySampleRate = 0;
+	private final Random sampler = new Random();
+	private final LinkedList<String> slowQueries = new LinkedList<String>();
+
+	public SearchStatistics() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Registers these statistics with the platform MBean server
+	 * 
+	 * @param objectName
+	 *            eg. ubergloss:type=SearchStatistics
+	 */
+	public void register(String objectName) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName(objectName));
+	}
+
+	public void record(SearchTrace trace) {
+		traces.incrementAndGet();
+
+		for (SearchStage stage : SearchStage.values()) {
+			long nanos = trace.getStageNanos(stage);
+			if (nanos >= 0) {
+				stages[stage.ordinal()].record(nanos);
+			}
+		}
+		if (trace.getCandidates() >= 0) {
+			candidates.record(trace.getCandidates());
+		}
+		if (trace.getResults() >= 0) {
+			results.record(trace.getResults());
+		}
+		roundTrips.addAndGet(trace.getRoundTrips());
+
+		double rate = slowQuerySampleRate;
+		if (rate > 0 && trace.getStageNanos(SearchStage.TOTAL) >= slowQueryNanos
+				&& (rate >= 1 || sample() < rate)) {
+			logSlowQuery(trace.toString());
+		}
+	}
+
+	/**
+	 * @return the latencies of the stage, in nanoseconds
+	 */
+	public LatencyHistogram getStage(SearchStage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	/**
+	 * @return the number of candidates found by each search
+	 */
+	public LatencyHistogram getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * @return the number of results of each call
+	 */
+	public LatencyHistogram getResults() {
+		return results;
+	}
+
+	public long getTraceCount() {
+		return traces.get();
+	}
+
+	public long getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	public String[] getStageSummary() {
+		List<String> lines = new ArrayList<String>();
+
+		for (SearchStage stage : SearchStage.values()) {
+			LatencyHistogram histogram = stages[stage.ordinal()];
+			lines.add(String.format(
+					"%s count=%d mean=%dus p50=%dus p99=%dus max=%dus", stage
+							.name().toLowerCase(), histogram.getCount(),
+					(long) histogram.getMean() / 1000, histogram
+							.getPercentile(50) / 1000, histogram
+							.getPercentile(99) / 1000,
+					histogram.getMax() / 1000));
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	public String[] getSlowQueries() {
+		synchronized (slowQueries) {
+			return slowQueries.toArray(new String[slowQueries.size()]);
+		}
+	}
+
+	public long getStagePercentileMicros(String stage, double percentile) {
+		return stages[SearchStage.valueOf(stage.toUpperCase()).ordinal()]
+				.getPercentile(percentile) / 1000;
+	}
+
+	public long getSlowQueryThresholdMillis() {
+		return slowQueryNanos / 1000000;
+	}
+
+	public void setSlowQueryThresholdMillis(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException(
+					"the threshold must not be negative.");
+		slowQueryNanos = millis * 1000000;
+	}
+
+	public double getSlowQuerySampleRate() {
+		return slowQuerySampleRate;
+	}
+
+	/**
+	 * Sets the share of slow calls to log, from 0 for none to 1 for all
+	 */
+	public void setSlowQuerySampleRate(double rate) {
+		if (rate < 0 || rate > 1)
+			throw new IllegalArgumentException(
+					"the sample rate must be between 0 and 1.");
+		slowQuerySampleRate = rate;
+	}
+
+	public void reset() {
+		for (LatencyHistogram histogram : stages) {
+			histogram.reset();
+		}
+		candidates.reset();
+		results.reset();
+		traces.set(0);
+		roundTrips.set(0);
+		synchronized (slowQueries) {
+			slowQueries.clear();
+		}
+	}
+
+	private double sample() {
+		synchronized (sampler) {
+			return sampler.nextDouble();
+		}
+	}
+
+	private void logSlowQuery(String line) {
+		SLOW_QUERY_LOG.warning(line);
+
+		synchronized (slowQueries) {
+			slowQueries.addFirst(line);
+			if (slowQueries.size() > SLOW_QUERIES_KEPT) {
+				slowQueries.removeLast();
+			}
+		}
+	}
+}
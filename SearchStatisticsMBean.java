@@ -0,0 +1,53 @@
+package ubergloss.services;
+
+/**
+ * The management interface of SearchStatistics, as seen through JMX
+ * 
+ * @author George Kinsman
+ * 
+ */
+public interface SearchStatisticsMBean {
+
+	/**
+	 * @return how many traces have been recorded
+	 */
+	public long getTraceCount();
+
+	/**
+	 * @return the database round trips made by every recorded call
+	 */
+	public long getRoundTrips();
+
+	/**
+	 * @return one line per stage, with its count, mean and percentiles
+	 */
+	public String[] getStageSummary();
+
+	/**
+	 * @return the most recently logged slow calls, newest first
+	 */
+	public String[] getSlowQueries();
+
+	/**
+	 * @param stage
+	 *            the name of a SearchStage
+	 * @param percentile
+	 *            from 0 to 100
+	 * @return the stage's latency at the percentile, in microseconds
+	 */
+	public long getStagePercentileMicros(String stage, double percentile);
+
+	public long getSlowQueryThresholdMillis();
+
+	public void setSlowQueryThresholdMillis(long millis);
+
+	public double getSlowQuerySampleRate();
+
+	public void setSlowQuerySampleRate(double rate);
+
+	/**
+	 * Forgets everything recorded so far
+	 */
+	public void reset();
+
+}
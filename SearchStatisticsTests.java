@@ -0,0 +1,73 @@
+package ubergloss.serviceTests;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+import ubergloss.services.SearchStage;
+import ubergloss.services.SearchStatistics;
+import ubergloss.services.SearchTrace;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SearchStatisticsTests {
+	
+	private SearchStatistics statistics;
+	
+	@Before
+	public void setUp() {
+		statistics = new SearchStatistics();
+		statistics.setSlowQueryThresholdMillis(10);
+	}
+	
+	@Test
+	public void record_Trace_OnlyStagesReachedRecorded() {
+		SearchTrace trace = trace(2);
+		trace.addRoundTrips(4);
+		
+		statistics.record(trace);
+		
+		assertEquals(1, statistics.getStage(SearchStage.CANDIDATES).getCount());
+		assertEquals(0, statistics.getStage(SearchStage.HYDRATE).getCount());
+		assertEquals(4, statistics.getRoundTrips());
+		assertEquals(120, statistics.getCandidates().getPercentile(100));
+	}
+	
+	@Test
+	public void record_SlowQuerySamplingOff_NothingLogged() {
+		statistics.setSlowQuerySampleRate(0);
+		
+		statistics.record(trace(50));
+		
+		assertEquals(0, statistics.getSlowQueries().length);
+	}
+	
+	@Test
+	public void record_SlowQuerySampled_LoggedWithBreakdown() {
+		statistics.setSlowQuerySampleRate(1);
+		
+		statistics.record(trace(2));
+		statistics.record(trace(50));
+		
+		String[] slow = statistics.getSlowQueries();
+		assertEquals(1, slow.length);
+		assertTrue(slow[0].contains("internet"));
+		assertTrue(slow[0].contains("candidateCount=120"));
+		assertTrue(slow[0].contains("filter="));
+	}
+	
+	private static SearchTrace trace(long totalMillis) {
+		Set<Filter> filters = new HashSet<Filter>();
+		filters.add(new Filter(FilterTypes.Tag, "internet"));
+		
+		SearchTrace trace = new SearchTrace("performSearch", null, filters);
+		trace.addStage(SearchStage.CANDIDATES, totalMillis * 500000);
+		trace.addStage(SearchStage.FILTER, totalMillis * 500000);
+		trace.addStage(SearchStage.TOTAL, totalMillis * 1000000);
+		trace.setCandidates(120);
+		trace.setResults(30);
+		return trace;
+	}
+}
@@ -0,0 +1,143 @@
+package ubergloss.services;
+
+import java.util.Set;
+
+import ubergloss.objects.Filter;
+
+/**
+ * What happened during one QueryService call: how long each stage took, how
+ * many definitions it dealt with, and how many database round trips it made.
+ * Stages the call didn't pass through are left at -1, as are counts it
+ * didn't produce.
+ * 
+ * A trace is filled in by a single call and only read once it's handed to
+ * SearchMetrics.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public class SearchTrace {
+
+	private final String operation;
+	private final String query;
+	private final Set<Filter> filters;
+
+	private final long[] stageNanos = new long[SearchStage.values().length];
+	private int candidates = -1;
+	private int results = -1;
+	private int roundTrips = 0;
+	private boolean cached = false;
+
+	/**
+	 * @param operation
+	 *            the name of the call being traced
+	 * @param query
+	 *            the query string, if the call had one
+	 * @param filters
+	 *            the filters, if the call had them
+	 */
+	public SearchTrace(String operation, String query, Set<Filter> filters) {
+		this.operation = operation;
+		this.query = query;
+		this.filters = filters;
+
+		for (int i = 0; i < stageNanos.length; i++) {
+			stageNanos[i] = -1;
+		}
+	}
+
+	/**
+	 * Adds time to a stage
+	 */
+	public void addStage(SearchStage stage, long nanos) {
+		int i = stage.ordinal();
+		stageNanos[i] = Math.max(0, stageNanos[i]) + nanos;
+	}
+
+	/**
+	 * @return the nanoseconds spent in the stage, or -1 if it wasn't reached
+	 */
+	public long getStageNanos(SearchStage stage) {
+		return stageNanos[stage.ordinal()];
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public Set<Filter> getFilters() {
+		return filters;
+	}
+
+	public int getCandidates() {
+		return candidates;
+	}
+
+	public void setCandidates(int candidates) {
+		this.candidates = candidates;
+	}
+
+	public int getResults() {
+		return results;
+	}
+
+	public void setResults(int results) {
+		this.results = results;
+	}
+
+	public int getRoundTrips() {
+		return roundTrips;
+	}
+
+	public void addRoundTrips(int roundTrips) {
+		this.roundTrips += roundTrips;
+	}
+
+	/**
+	 * @return true if the call was answered from the result cache
+	 */
+	public boolean isCached() {
+		return cached;
+	}
+
+	public void setCached(boolean cached) {
+		this.cached = cached;
+	}
+
+	/**
+	 * Returns a single line describing the trace, as written to the slow
+	 * query log
+	 */
+	public String toString() {
+		StringBuilder line = new StringBuilder(operation);
+
+		if (query != null) {
+			line.append(" query=").append(query);
+		}
+		if (filters != null) {
+			line.append(" filters=").append(filters);
+		}
+		for (SearchStage stage : SearchStage.values()) {
+			long nanos = stageNanos[stage.ordinal()];
+			if (nanos >= 0) {
+				line.append(' ').append(stage.name().toLowerCase()).append('=')
+						.append(nanos / 1000).append("us");
+			}
+		}
+		if (candidates >= 0) {
+			line.append(" candidateCount=").append(candidates);
+		}
+		if (results >= 0) {
+			line.append(" resultCount=").append(results);
+		}
+		line.append(" roundTrips=").append(roundTrips);
+		if (cached) {
+			line.append(" cached");
+		}
+		return line.toString();
+	}
+}
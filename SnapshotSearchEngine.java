@@ -0,0 +1,199 @@
+package ubergloss.services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+/**
+ * Answers searches entirely from a GlossarySnapshot held in memory, so a
+ * search never needs a connection or a lock.
+ *
+ * The snapshot is read from the database once, by load, and is then kept
+ * current by applying each change to the glossary as it's reported through
+ * the GlossaryChangeListener callbacks. Each change swaps in a new snapshot;
+ * a search already under way carries on with the one it started with.
+ *
+ * Changes are applied one at a time. Applying a change twice has no further
+ * effect, so a change reported while the snapshot is being loaded is safe to
+ * apply once the load has finished, whether or not the load saw it.
+ *
+ * @author George Kinsman
+ *
+ */
+public class SnapshotSearchEngine extends GlossaryChangeAdapter {
+
+	private static final String ALL_DEFINITIONS = "SELECT definitions.defID, rank, definition, termdef.term FROM definitions, termdef WHERE termdef.defID = definitions.defID;";
+	private static final String ALL_TAGS = "SELECT tags.name, parent.name AS parentName FROM tags LEFT JOIN tags parent ON tags.parentID = parent.tagID;";
+	private static final String ALL_TAGGINGS = "SELECT tagdef.defID, tags.name FROM tags, tagdef WHERE tagdef.tagID = tags.tagID;";
+	private static final String ALL_LOCALISATIONS = "SELECT localedef.defID, locales.shortName FROM locales, localedef WHERE localedef.localeID = locales.localeID;";
+
+	private ConnectionPool pool;
+	private final int distance;
+
+	private volatile GlossarySnapshot snapshot = GlossarySnapshot.empty();
+
+	/**
+	 * Creates an engine over an empty glossary, to be filled by load or by
+	 * the change callbacks
+	 *
+	 * @param pool
+	 *            where the glossary is loaded from
+	 * @param distance
+	 *            the largest edit distance a term filter allows
+	 */
+	public SnapshotSearchEngine(ConnectionPool pool, int distance) {
+		if (pool == null)
+			throw new IllegalArgumentException(
+					"the connection pool must be non-null.");
+		this.pool = pool;
+		this.distance = distance;
+	}
+
+	/**
+	 * Returns every definition passing all of the filters, from the current
+	 * snapshot
+	 */
+	public Set<Definition> search(Set<Filter> filters) {
+		return snapshot.search(filters, distance);
+	}
+
+	/**
+	 * Returns the estimated cost of searching the current snapshot
+	 */
+	public long estimate(Set<Filter> filters) {
+		return snapshot.estimate(filters);
+	}
+
+	/**
+	 * Returns the glossary as it is now, for reading more than once without
+	 * seeing changes in between
+	 */
+	public GlossarySnapshot current() {
+		return snapshot;
+	}
+
+	/**
+	 * Reads the whole glossary from the database and makes it the current
+	 * snapshot
+	 */
+	public synchronized void load() {
+		List<Definition> defs = new ArrayList<Definition>();
+		Map<String, String> parents = new HashMap<String, String>();
+		Map<String, IntBitmap> tags = new HashMap<String, IntBitmap>();
+		Map<String, IntBitmap> locales = new HashMap<String, IntBitmap>();
+
+		try {
+			PooledConnection conn = pool.borrow();
+			try {
+				Statement statement = conn.createStatement();
+
+				ResultSet rs = statement.executeQuery(ALL_DEFINITIONS);
+				while (rs.next()) {
+					defs.add(new Definition(
+							rs.getString("term"),
+							rs.getString("definition"),
+							rs.getString("rank"),
+							rs.getString("defID")));
+				}
+
+				rs = statement.executeQuery(ALL_TAGS);
+				while (rs.next()) {
+					String parent = rs.getString("parentName");
+					parents.put(rs.getString("name").toLowerCase(),
+							parent == null ? null : parent.toLowerCase());
+				}
+
+				rs = statement.executeQuery(ALL_TAGGINGS);
+				while (rs.next()) {
+					add(tags, rs.getString("name"), rs.getString("defID"));
+				}
+
+				rs = statement.executeQuery(ALL_LOCALISATIONS);
+				while (rs.next()) {
+					add(locales, rs.getString("shortName"), rs
+							.getString("defID"));
+				}
+				statement.close();
+			} finally {
+				pool.release(conn);
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+
+		snapshot = GlossarySnapshot.build(defs, parents, tags, locales);
+	}
+
+	@Override
+	public synchronized void definitionSaved(Definition def) {
+		snapshot = snapshot.withDefinition(def);
+	}
+
+	@Override
+	public synchronized void definitionDeleted(String defID) {
+		snapshot = snapshot.withoutDefinition(Integer.parseInt(defID));
+	}
+
+	@Override
+	public synchronized void tagAdded(String defID, String tagName) {
+		snapshot = snapshot.withTag(Integer.parseInt(defID), tagName, true);
+	}
+
+	@Override
+	public synchronized void tagRemoved(String defID, String tagName) {
+		snapshot = snapshot.withTag(Integer.parseInt(defID), tagName, false);
+	}
+
+	@Override
+	public synchronized void localeAdded(String defID, String shortName) {
+		snapshot = snapshot.withLocale(Integer.parseInt(defID), shortName,
+				true);
+	}
+
+	@Override
+	public synchronized void localeRemoved(String defID, String shortName) {
+		snapshot = snapshot.withLocale(Integer.parseInt(defID), shortName,
+				false);
+	}
+
+	@Override
+	public synchronized void tagCreated(String tagName) {
+		snapshot = snapshot.withNewTag(tagName);
+	}
+
+	@Override
+	public synchronized void tagDeleted(String tagName) {
+		snapshot = snapshot.withoutTag(tagName);
+	}
+
+	@Override
+	public synchronized void tagMoved(String tagName, String parentName) {
+		snapshot = snapshot.withParent(tagName, parentName);
+	}
+
+	@Override
+	public synchronized void localeDeleted(String shortName) {
+		snapshot = snapshot.withoutLocale(shortName);
+	}
+
+	private static void add(Map<String, IntBitmap> index, String name,
+			String defID) {
+		String key = name.toLowerCase();
+		IntBitmap bitmap = index.get(key);
+
+		if (bitmap == null) {
+			bitmap = new IntBitmap();
+			index.put(key, bitmap);
+		}
+		bitmap.add(Integer.parseInt(defID));
+	}
+}
@@ -0,0 +1,131 @@
+package ubergloss.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A FuzzyTermIndex using symmetric delete spelling correction (SymSpell).
+ * Every string reachable from a term by deleting up to maxDistance characters
+ * is precomputed and mapped back to the term. Two strings within distance k
+ * of each other always share such a delete, so a search only generates the
+ * deletes of the query, looks them up and confirms the few candidates with
+ * an exact edit distance.
+ * 
+ * Lookups are much faster than a BK-tree at the price of memory, which grows
+ * with the number of deletes per term. Searches can't use a distance greater
+ * than the maxDistance the index was built with.
+ *
+ * The deletes of a term grow combinatorially with the distance; at three,
+ * a glossary of 77,000 terms needs some 850MB of them and half a minute to
+ * build, so QueryService uses a BKTreeTermIndex instead. This index suits
+ * smaller glossaries, or searches kept to a distance of one or two.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public class SymSpellTermIndex extends AbstractFuzzyTermIndex {
+
+	private final int maxDistance;
+
+	// each delete, mapped to the terms it was generated from
+	private Map<String, List<String>> deletes = new HashMap<String, List<String>>();
+
+	public SymSpellTermIndex(ConnectionPool pool, int maxDistance) {
+		super(pool);
+		this.maxDistance = checkDistance(maxDistance);
+	}
+
+	public SymSpellTermIndex(int maxDistance) {
+		super();
+		this.maxDistance = checkDistance(maxDistance);
+	}
+
+	@Override
+	protected void addTerm(String term) {
+		for (String delete : deletesOf(term, maxDistance)) {
+			List<String> owners = deletes.get(delete);
+			if (owners == null) {
+				owners = new ArrayList<String>(1);
+				deletes.put(delete, owners);
+			}
+			owners.add(term);
+		}
+	}
+
+	@Override
+	protected void removeTerm(String term) {
+		for (String delete : deletesOf(term, maxDistance)) {
+			List<String> owners = deletes.get(delete);
+			if (owners != null) {
+				owners.remove(term);
+				if (owners.isEmpty()) {
+					deletes.remove(delete);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected List<String> findTerms(String term, int distance) {
+		if (distance > maxDistance)
+			throw new IllegalArgumentException("the distance " + distance
+					+ " is greater than the index's maximum of " + maxDistance);
+
+		Set<String> seen = new HashSet<String>();
+		List<String> matches = new ArrayList<String>();
+
+		for (String delete : deletesOf(term, distance)) {
+			List<String> owners = deletes.get(delete);
+			if (owners == null) {
+				continue;
+			}
+
+			for (String candidate : owners) {
+				if (seen.add(candidate)
+						&& Math.abs(candidate.length() - term.length()) <= distance
+						&& EditDistance.distance(candidate, term) <= distance) {
+					matches.add(candidate);
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Returns the term itself and every string made by deleting up to
+	 * distance of its characters
+	 */
+	private static Set<String> deletesOf(String term, int distance) {
+		Set<String> results = new HashSet<String>();
+		results.add(term);
+
+		List<String> level = new ArrayList<String>();
+		level.add(term);
+
+		for (int d = 0; d < distance; d++) {
+			List<String> next = new ArrayList<String>();
+
+			for (String word : level) {
+				for (int i = 0; i < word.length(); i++) {
+					String delete = word.substring(0, i) + word.substring(i + 1);
+					if (results.add(delete)) {
+						next.add(delete);
+					}
+				}
+			}
+			level = next;
+		}
+		return results;
+	}
+
+	private static int checkDistance(int maxDistance) {
+		if (maxDistance < 0)
+			throw new IllegalArgumentException(
+					"the maximum distance must not be negative.");
+		return maxDistance;
+	}
+}
@@ -0,0 +1,172 @@
+package ubergloss.serviceTests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ubergloss.objects.Definition;
+
+/**
+ * A made-up glossary of any size: terms, definitions, a tree of tags and a
+ * set of locales, with definitions tagged and localised. The same size and
+ * seed always give the same glossary, so benchmark runs can be compared.
+ *
+ * Words are built from common syllables and drawn with a skew towards the
+ * first few, so some tags, locales and words are far more popular than the
+ * rest, as they are in a real glossary.
+ *
+ * @author George Kinsman
+ *
+ */
+public class SyntheticGlossary {
+
+	private static final String[] SYLLABLES = { "in", "ter", "net", "sci", "en",
+		"ce", "phy", "sic", "lo", "ca", "le", "web", "da", "ta", "ma", "gen", "o",
+		"ra", "tion", "al", "ic", "pro", "to", "col", "ser", "ver", "a", "re" };
+
+	private static final String[] COMMON_WORDS = { "the", "a", "of", "as", "to",
+		"and", "in", "is", "used", "for", "with", "that", "on", "by" };
+
+	private static final String[] LOCALES = { "en-US", "en-AU", "en-GB", "fr-FR",
+		"de-DE", "es-ES", "ja-JP", "zh-CN" };
+
+	private static final int TAGS = 64;
+	private static final int VOCABULARY = 2000;
+
+	private List<Definition> definitions = new ArrayList<Definition>();
+	private Map<String, String> parents = new LinkedHashMap<String, String>();
+	private List<String> locales = new ArrayList<String>();
+	private Map<String, List<String>> tagsOf = new HashMap<String, List<String>>();
+	private Map<String, List<String>> localesOf = new HashMap<String, List<String>>();
+	private Map<String, String> tagIDs = new HashMap<String, String>();
+	private Map<String, String> localeIDs = new HashMap<String, String>();
+
+	public SyntheticGlossary(int size, long seed) {
+		Random random = new Random(seed);
+
+		List<String> tags = new ArrayList<String>();
+		while(tags.size() < TAGS) {
+			String tag = word(random);
+			if(!parents.containsKey(tag)) {
+				// a quarter are top level; the rest hang off an earlier tag
+				String parent = tags.isEmpty() || random.nextInt(4) == 0 ? null
+						: tags.get(random.nextInt(tags.size()));
+				parents.put(tag, parent);
+				tagIDs.put(tag, String.valueOf(tags.size() + 1));
+				tags.add(tag);
+			}
+		}
+
+		for(String locale : LOCALES) {
+			localeIDs.put(locale, String.valueOf(locales.size() + 1));
+			locales.add(locale);
+		}
+
+		List<String> vocabulary = new ArrayList<String>();
+		for(String word : COMMON_WORDS) {
+			vocabulary.add(word);
+		}
+		while(vocabulary.size() < VOCABULARY) {
+			vocabulary.add(word(random));
+		}
+
+		for(int i = 1; i <= size; i++) {
+			String id = String.valueOf(i);
+
+			StringBuilder text = new StringBuilder();
+			int words = 8 + random.nextInt(13);
+			for(int w = 0; w < words; w++) {
+				text.append(w == 0 ? "" : " ").append(skewed(random, vocabulary));
+			}
+			definitions.add(new Definition(word(random), text.toString(),
+					String.valueOf(random.nextInt(50)), id));
+
+			List<String> defTags = new ArrayList<String>();
+			int tagCount = random.nextInt(4);
+			for(int t = 0; t < tagCount; t++) {
+				String tag = skewed(random, tags);
+				if(!defTags.contains(tag)) {
+					defTags.add(tag);
+				}
+			}
+			if(!defTags.isEmpty()) {
+				tagsOf.put(id, defTags);
+			}
+
+			List<String> defLocales = new ArrayList<String>();
+			defLocales.add(skewed(random, locales));
+			if(random.nextInt(4) == 0) {
+				String second = skewed(random, locales);
+				if(!defLocales.contains(second)) {
+					defLocales.add(second);
+				}
+			}
+			localesOf.put(id, defLocales);
+		}
+	}
+
+	public List<Definition> getDefinitions() {
+		return definitions;
+	}
+
+	public List<String> getTags() {
+		return new ArrayList<String>(parents.keySet());
+	}
+
+	/**
+	 * @return the tag's parent, or null if it's at the top of the tree
+	 */
+	public String getParent(String tag) {
+		return parents.get(tag);
+	}
+
+	public List<String> getLocales() {
+		return locales;
+	}
+
+	/**
+	 * @return the tag names of each tagged definition, keyed by definition ID
+	 */
+	public Map<String, List<String>> getTagsOf() {
+		return tagsOf;
+	}
+
+	/**
+	 * @return the locale short names of each definition, keyed by definition ID
+	 */
+	public Map<String, List<String>> getLocalesOf() {
+		return localesOf;
+	}
+
+	public String idOfTag(String tag) {
+		return tagIDs.get(tag);
+	}
+
+	public String idOfLocale(String locale) {
+		return localeIDs.get(locale);
+	}
+
+	/**
+	 * Picks from the list, heavily favouring the front of it
+	 */
+	private static String skewed(Random random, List<String> items) {
+		double r = random.nextDouble();
+		return items.get((int) (items.size() * r * r * r));
+	}
+
+	private static String word(Random random) {
+		StringBuilder word = new StringBuilder();
+		int syllables = 2 + random.nextInt(3);
+
+		for(int i = 0; i < syllables; i++) {
+			word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		}
+		if(random.nextInt(3) == 0) {
+			word.append((char) ('a' + random.nextInt(26)));
+		}
+		return word.toString();
+	}
+}
@@ -0,0 +1,402 @@
+package ubergloss.services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+/**
+ * The tree of tags, where each tag has at most one parent, held so that a
+ * tag filter can match definitions tagged with any of its descendants.
+ *
+ * Each tag is labelled with the points at which a depth-first walk of the
+ * tree enters and leaves it. A tag is within another's subtree exactly when
+ * its interval lies within the other's, so that check is two comparisons,
+ * and a subtree is the range of tags entered between its root's two labels.
+ *
+ * Labels are spread out with gaps between them. A re-parented tag and its
+ * subtree are relabelled into the gap after the new parent's last child, so
+ * only the moved tags change; the whole tree is only relabelled when the gap
+ * has run out. Tag names are compared case-insensitively.
+ *
+ * @author George Kinsman
+ *
+ */
+public class TagHierarchy extends GlossaryChangeAdapter {
+
+	private static final String ALL_TAGS = "SELECT tags.name, parent.name AS parentName FROM tags LEFT JOIN tags parent ON tags.parentID = parent.tagID;";
+
+	// the range every label falls within, leaving room to subtract safely
+	private static final long LABEL_RANGE = 1L << 62;
+
+	private static class Node {
+		final String name;
+		Node parent;
+		final List<Node> children = new ArrayList<Node>();
+		long enter, exit;
+
+		Node(String name) {
+			this.name = name;
+		}
+	}
+
+	private ConnectionPool pool;
+
+	// the parent of every top level tag; never a tag itself
+	private final Node root = new Node(null);
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	private final TreeMap<Long, Node> byEnter = new TreeMap<Long, Node>();
+	private boolean loaded;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Creates a hierarchy which is loaded from the database on first use
+	 */
+	public TagHierarchy(ConnectionPool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException(
+					"the connection pool must be non-null.");
+		this.pool = pool;
+		root.enter = 0;
+		root.exit = LABEL_RANGE;
+	}
+
+	/**
+	 * Creates an empty hierarchy, to be filled through tagCreated and
+	 * tagMoved
+	 */
+	public TagHierarchy() {
+		root.enter = 0;
+		root.exit = LABEL_RANGE;
+		loaded = true;
+	}
+
+	/**
+	 * Returns true if the tag is the ancestor, or a descendant of it. A tag
+	 * outside the hierarchy is only within itself.
+	 *
+	 * @param tagName
+	 * @param ancestorName
+	 */
+	public boolean isWithin(String tagName, String ancestorName) {
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			Node tag = nodes.get(tagName.toLowerCase());
+			Node ancestor = nodes.get(ancestorName.toLowerCase());
+
+			if (tag == null || ancestor == null) {
+				return tagName.equalsIgnoreCase(ancestorName);
+			}
+			return ancestor.enter <= tag.enter && tag.exit <= ancestor.exit;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the lower-cased names of the tag and all of its descendants
+	 *
+	 * @param tagName
+	 * @return the tag's subtree, the tag itself first
+	 */
+	public List<String> getSubtree(String tagName) {
+		ensureLoaded();
+
+		List<String> names = new ArrayList<String>();
+
+		lock.readLock().lock();
+		try {
+			Node tag = nodes.get(tagName.toLowerCase());
+			if (tag == null) {
+				names.add(tagName.toLowerCase());
+				return names;
+			}
+
+			for (Node node : byEnter.subMap(tag.enter, true, tag.exit, false)
+					.values()) {
+				names.add(node.name);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return names;
+	}
+
+	/**
+	 * Returns the lower-cased names of the tag and all of its ancestors
+	 *
+	 * @param tagName
+	 * @return the tag, then its parent, and so on up to the top
+	 */
+	public List<String> getAncestors(String tagName) {
+		ensureLoaded();
+
+		List<String> names = new ArrayList<String>();
+
+		lock.readLock().lock();
+		try {
+			Node tag = nodes.get(tagName.toLowerCase());
+			if (tag == null) {
+				names.add(tagName.toLowerCase());
+				return names;
+			}
+
+			for (Node node = tag; node != root; node = node.parent) {
+				names.add(node.name);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return names;
+	}
+
+	/**
+	 * Adds a new tag at the top of the tree
+	 */
+	@Override
+	public void tagCreated(String tagName) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			node(tagName);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a tag, giving its children to its parent
+	 */
+	@Override
+	public void tagDeleted(String tagName) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			Node tag = nodes.remove(tagName.toLowerCase());
+			if (tag == null) {
+				return;
+			}
+			byEnter.remove(tag.enter);
+
+			// the children's intervals already lie within the parent's, in
+			// the place the deleted tag held, so none need relabelling
+			List<Node> siblings = tag.parent.children;
+			int position = siblings.indexOf(tag);
+			siblings.remove(position);
+			siblings.addAll(position, tag.children);
+			for (Node child : tag.children) {
+				child.parent = tag.parent;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gives a tag a new parent, taking its subtree with it
+	 *
+	 * @param tagName
+	 * @param parentName
+	 *            the new parent, or null to move the tag to the top
+	 * @throws IllegalArgumentException
+	 *             if the parent is within the tag's own subtree
+	 */
+	@Override
+	public void tagMoved(String tagName, String parentName) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			Node tag = node(tagName);
+			Node parent = parentName == null ? root : node(parentName);
+
+			if (tag.enter <= parent.enter && parent.exit <= tag.exit)
+				throw new IllegalArgumentException("the tag " + parentName
+						+ " is within the subtree of " + tagName + ".");
+
+			move(tag, parent);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// a tag put on a definition before anyone said it was created
+	@Override
+	public void tagAdded(String defID, String tagName) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			node(tagName);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the tag's node, adding it to the top of the tree if it's new.
+	 * Must be called while holding the write lock.
+	 */
+	private Node node(String tagName) {
+		String name = tagName.toLowerCase();
+		Node node = nodes.get(name);
+
+		if (node == null) {
+			node = new Node(name);
+			nodes.put(name, node);
+			attach(node, root);
+		}
+		return node;
+	}
+
+	private void move(Node tag, Node parent) {
+		if (tag.parent == parent) {
+			return;
+		}
+		tag.parent.children.remove(tag);
+		unlabel(tag);
+		attach(tag, parent);
+	}
+
+	/**
+	 * Makes the tag the last child of the parent, labelling its subtree in
+	 * the first half of the gap after the parent's other children, so the
+	 * other half is left for the next
+	 */
+	private void attach(Node tag, Node parent) {
+		long lo = parent.children.isEmpty() ? parent.enter : parent.children
+				.get(parent.children.size() - 1).exit;
+		long hi = lo + (parent.exit - lo) / 2;
+
+		parent.children.add(tag);
+		tag.parent = parent;
+
+		List<Node> moved = new ArrayList<Node>();
+		moved.add(tag);
+		if (!label(moved, lo, hi)) {
+			relabelAll();
+		}
+	}
+
+	private void relabelAll() {
+		byEnter.clear();
+		label(root.children, root.enter, root.exit);
+	}
+
+	/**
+	 * Spreads labels for the trees evenly over the range lo to hi, both
+	 * exclusive
+	 *
+	 * @return false if the range is too small to hold them
+	 */
+	private boolean label(List<Node> trees, long lo, long hi) {
+		int labels = 0;
+		for (Node tree : trees) {
+			labels += 2 * size(tree);
+		}
+
+		long step = (hi - lo) / (labels + 1);
+		if (step < 1) {
+			return false;
+		}
+
+		long next = lo;
+		for (Node tree : trees) {
+			next = label(tree, next, step);
+		}
+		return true;
+	}
+
+	private long label(Node node, long last, long step) {
+		node.enter = last + step;
+		byEnter.put(node.enter, node);
+
+		long next = node.enter;
+		for (Node child : node.children) {
+			next = label(child, next, step);
+		}
+
+		node.exit = next + step;
+		return node.exit;
+	}
+
+	private void unlabel(Node node) {
+		byEnter.remove(node.enter);
+		for (Node child : node.children) {
+			unlabel(child);
+		}
+	}
+
+	private static int size(Node node) {
+		int size = 1;
+		for (Node child : node.children) {
+			size += size(child);
+		}
+		return size;
+	}
+
+	private void ensureLoaded() {
+		lock.readLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+			Map<String, String> parents = new HashMap<String, String>();
+
+			PooledConnection conn = pool.borrow();
+			try {
+				Statement statement = conn.createStatement();
+				ResultSet rs = statement.executeQuery(ALL_TAGS);
+
+				while (rs.next()) {
+					parents.put(rs.getString("name").toLowerCase(), rs
+							.getString("parentName"));
+				}
+				statement.close();
+			} finally {
+				pool.release(conn);
+			}
+
+			// build the tree first and label it once, rather than tag by tag
+			for (String name : parents.keySet()) {
+				nodes.put(name, new Node(name));
+			}
+			for (Map.Entry<String, String> entry : parents.entrySet()) {
+				Node node = nodes.get(entry.getKey());
+				Node parent = entry.getValue() == null ? null : nodes
+						.get(entry.getValue().toLowerCase());
+
+				node.parent = parent == null ? root : parent;
+				node.parent.children.add(node);
+			}
+			relabelAll();
+			loaded = true;
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package ubergloss.serviceTests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ubergloss.services.TagHierarchy;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TagHierarchyTests {
+
+	private TagHierarchy hierarchy;
+	
+	@Before
+	public void setUp() {
+		hierarchy = new TagHierarchy();
+		hierarchy.tagCreated("science");
+		hierarchy.tagMoved("physics", "science");
+		hierarchy.tagMoved("quantum", "physics");
+		hierarchy.tagMoved("chemistry", "Science");
+		hierarchy.tagCreated("internet");
+	}
+	
+	@Test
+	public void isWithin_Descendant_True() {
+		assertTrue(hierarchy.isWithin("quantum", "science"));
+		assertTrue(hierarchy.isWithin("Physics", "SCIENCE"));
+		assertTrue(hierarchy.isWithin("science", "science"));
+	}
+	
+	@Test
+	public void isWithin_SiblingOrAncestor_False() {
+		assertFalse(hierarchy.isWithin("chemistry", "physics"));
+		assertFalse(hierarchy.isWithin("science", "physics"));
+		assertFalse(hierarchy.isWithin("internet", "science"));
+	}
+	
+	@Test
+	public void isWithin_UnknownTag_OnlyItself() {
+		assertTrue(hierarchy.isWithin("unknown", "Unknown"));
+		assertFalse(hierarchy.isWithin("unknown", "science"));
+	}
+	
+	@Test
+	public void getSubtree_Tag_TagAndDescendants() {
+		assertEquals(new HashSet<String>(hierarchy.getSubtree("science")),
+				new HashSet<String>(list("science", "physics", "quantum", "chemistry")));
+		assertEquals("science", hierarchy.getSubtree("science").get(0));
+		assertEquals(list("internet"), hierarchy.getSubtree("internet"));
+	}
+	
+	@Test
+	public void getAncestors_Tag_UpToTop() {
+		assertEquals(list("quantum", "physics", "science"), hierarchy.getAncestors("Quantum"));
+	}
+	
+	@Test
+	public void tagMoved_Subtree_MovesWithIt() {
+		hierarchy.tagMoved("physics", "internet");
+		
+		assertTrue(hierarchy.isWithin("quantum", "internet"));
+		assertFalse(hierarchy.isWithin("quantum", "science"));
+		assertTrue(hierarchy.isWithin("chemistry", "science"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void tagMoved_UnderOwnDescendant_Throws() {
+		hierarchy.tagMoved("science", "quantum");
+	}
+	
+	@Test
+	public void tagDeleted_Children_GoToParent() {
+		hierarchy.tagDeleted("physics");
+		
+		assertTrue(hierarchy.isWithin("quantum", "science"));
+		assertEquals(list("quantum", "science"), hierarchy.getAncestors("quantum"));
+		assertFalse(hierarchy.getSubtree("science").contains("physics"));
+	}
+	
+	@Test
+	public void tagMoved_RandomMoves_MatchParentWalk() {
+		Random random = new Random(12);
+		Map<String, String> parents = new HashMap<String, String>();
+		List<String> names = new ArrayList<String>();
+		hierarchy = new TagHierarchy();
+		
+		for(int i = 0; i < 200; i++) {
+			names.add("tag" + i);
+			hierarchy.tagCreated("tag" + i);
+		}
+		
+		// long chains of moves use up the gaps, forcing relabelling
+		for(int i = 0; i < 5000; i++) {
+			String tag = names.get(random.nextInt(names.size()));
+			String parent = random.nextInt(10) == 0 ? null : names.get(random.nextInt(names.size()));
+			
+			if(parent != null && within(parents, parent, tag)) {
+				continue;
+			}
+			hierarchy.tagMoved(tag, parent);
+			parents.put(tag, parent);
+			
+			if(i % 250 == 0) {
+				for(String a : names) {
+					for(String b : names) {
+						assertEquals(a + " in " + b, within(parents, a, b), hierarchy.isWithin(a, b));
+					}
+				}
+			}
+		}
+		
+		for(String name : names) {
+			List<String> subtree = new ArrayList<String>();
+			for(String other : names) {
+				if(within(parents, other, name)) {
+					subtree.add(other);
+				}
+			}
+			assertEquals(new HashSet<String>(subtree), new HashSet<String>(hierarchy.getSubtree(name)));
+		}
+	}
+	
+	private static boolean within(Map<String, String> parents, String tag, String ancestor) {
+		for(String node = tag; node != null; node = parents.get(node)) {
+			if(node.equals(ancestor)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static List<String> list(String... names) {
+		List<String> list = new ArrayList<String>();
+		for(String name : names) {
+			list.add(name);
+		}
+		return list;
+	}
+}
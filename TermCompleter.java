@@ -0,0 +1,505 @@
+package ubergloss.services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ubergloss.objects.Definition;
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+/**
+ * Completes the start of a term to the best ranked terms beginning with it,
+ * for typeahead, without going to the database once it's loaded.
+ *
+ * The terms are held in a trie of their characters. Every node keeps the best
+ * few terms beneath it, so completing a prefix is a walk down the prefix and
+ * a copy, however many terms it starts. A term's rank is the best rank of its
+ * definitions. Terms are compared case-insensitively.
+ *
+ * @author George Kinsman
+ *
+ */
+public class TermCompleter extends GlossaryChangeAdapter {
+
+	private static final String ALL_TERMS = "SELECT definitions.defID, rank, termdef.term FROM definitions, termdef WHERE termdef.defID = definitions.defID;";
+
+	private static final char[] NO_LABELS = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+	private static final String[] NO_TERMS = new String[0];
+
+	private static class Node {
+		// children's characters, sorted, alongside the children themselves
+		char[] labels = NO_LABELS;
+		Node[] children = NO_CHILDREN;
+		// the term ending here, or null
+		String term;
+		// the best terms in this subtree, best first
+		String[] top = NO_TERMS;
+
+		Node child(char c) {
+			int i = Arrays.binarySearch(labels, c);
+			return i < 0 ? null : children[i];
+		}
+
+		Node addChild(char c) {
+			int i = Arrays.binarySearch(labels, c);
+			if (i >= 0) {
+				return children[i];
+			}
+			i = -i - 1;
+
+			char[] newLabels = new char[labels.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(labels, 0, newLabels, 0, i);
+			System.arraycopy(children, 0, newChildren, 0, i);
+			System.arraycopy(labels, i, newLabels, i + 1, labels.length - i);
+			System.arraycopy(children, i, newChildren, i + 1, children.length
+					- i);
+			newLabels[i] = c;
+			newChildren[i] = new Node();
+
+			labels = newLabels;
+			children = newChildren;
+			return newChildren[i];
+		}
+
+		void removeChild(char c) {
+			int i = Arrays.binarySearch(labels, c);
+			if (i < 0) {
+				return;
+			}
+			char[] newLabels = new char[labels.length - 1];
+			Node[] newChildren = new Node[children.length - 1];
+			System.arraycopy(labels, 0, newLabels, 0, i);
+			System.arraycopy(children, 0, newChildren, 0, i);
+			System.arraycopy(labels, i + 1, newLabels, i, newLabels.length - i);
+			System.arraycopy(children, i + 1, newChildren, i,
+					newChildren.length - i);
+			labels = newLabels;
+			children = newChildren;
+		}
+	}
+
+	private ConnectionPool pool;
+	private final int topK;
+
+	private final Node root = new Node();
+	// the rank of each definition of each term
+	private final Map<String, Map<String, Integer>> ranks = new HashMap<String, Map<String, Integer>>();
+	// the best rank of each term's definitions
+	private final Map<String, Integer> scores = new HashMap<String, Integer>();
+	// the term each definition belongs to
+	private final Map<String, String> terms = new HashMap<String, String>();
+	// each term as it was last saved, before lower-casing
+	private final Map<String, String> spellings = new HashMap<String, String>();
+	private boolean loaded;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Comparator<String> byScore = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int byRank = scores.get(b).compareTo(scores.get(a));
+			return byRank != 0 ? byRank : a.compareTo(b);
+		}
+	};
+
+	/**
+	 * Creates a completer which loads every term from the database on first
+	 * use
+	 *
+	 * @param pool
+	 * @param topK
+	 *            the most completions a prefix can have
+	 */
+	public TermCompleter(ConnectionPool pool, int topK) {
+		if (pool == null)
+			throw new IllegalArgumentException(
+					"the connection pool must be non-null.");
+		if (topK <= 0)
+			throw new IllegalArgumentException(
+					"the number of completions must be positive.");
+		this.pool = pool;
+		this.topK = topK;
+	}
+
+	/**
+	 * Creates an empty completer, filled only through definitionSaved
+	 */
+	public TermCompleter(int topK) {
+		if (topK <= 0)
+			throw new IllegalArgumentException(
+					"the number of completions must be positive.");
+		this.topK = topK;
+		loaded = true;
+	}
+
+	/**
+	 * Returns the best ranked terms starting with the prefix. If fuzzy, and
+	 * there are fewer than the limit, they are followed by the best terms
+	 * starting with something one edit away from the prefix, so a typo in
+	 * the prefix still completes.
+	 *
+	 * @param prefix
+	 *            the start of a term, in any case
+	 * @param limit
+	 *            the most terms to return; no more than the completer's topK
+	 *            are ever returned
+	 * @param fuzzy
+	 *            whether to complete prefixes one edit away
+	 * @return the completions, best ranked first, as they were spelt when
+	 *         saved
+	 */
+	public List<String> complete(String prefix, int limit, boolean fuzzy) {
+		if (prefix == null)
+			throw new IllegalArgumentException("The prefix must be non-null.");
+		ensureLoaded();
+
+		String p = normalise(prefix);
+		Set<String> completions = new LinkedHashSet<String>();
+		limit = Math.min(limit, topK);
+
+		lock.readLock().lock();
+		try {
+			Node node = root;
+			for (int i = 0; i < p.length() && node != null; i++) {
+				node = node.child(p.charAt(i));
+			}
+			if (node != null) {
+				for (int i = 0; i < node.top.length && i < limit; i++) {
+					completions.add(node.top[i]);
+				}
+			}
+
+			if (fuzzy && completions.size() < limit) {
+				List<Node> near = new ArrayList<Node>();
+				int[] row = new int[p.length() + 1];
+				for (int j = 0; j < row.length; j++) {
+					row[j] = j;
+				}
+				collectNear(root, p, row, near);
+
+				List<String> candidates = new ArrayList<String>();
+				for (Node match : near) {
+					candidates.addAll(Arrays.asList(match.top));
+				}
+				Collections.sort(candidates, byScore);
+
+				for (int i = 0; i < candidates.size()
+						&& completions.size() < limit; i++) {
+					completions.add(candidates.get(i));
+				}
+			}
+
+			List<String> toReturn = new ArrayList<String>(completions.size());
+			for (String term : completions) {
+				toReturn.add(spellings.get(term));
+			}
+			return toReturn;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of distinct terms held
+	 */
+	public int size() {
+		ensureLoaded();
+
+		lock.readLock().lock();
+		try {
+			return ranks.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void definitionSaved(Definition def) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			add(def.getID(), def.getTerm(), def.getRank());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void definitionDeleted(String defID) {
+		ensureLoaded();
+
+		lock.writeLock().lock();
+		try {
+			remove(defID);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gathers the shallowest nodes whose path is within one edit of the
+	 * prefix, given the edit distances from the node's path to each start of
+	 * the prefix. A node's subtree covers any deeper match below it.
+	 */
+	private static void collectNear(Node node, String prefix, int[] row,
+			List<Node> near) {
+		if (row[prefix.length()] <= 1) {
+			near.add(node);
+			return;
+		}
+
+		for (int c = 0; c < node.labels.length; c++) {
+			char label = node.labels[c];
+			int[] next = new int[row.length];
+			next[0] = row[0] + 1;
+			int best = next[0];
+
+			for (int j = 1; j < row.length; j++) {
+				int substitute = row[j - 1]
+						+ (prefix.charAt(j - 1) == label ? 0 : 1);
+				next[j] = Math.min(substitute, Math.min(row[j], next[j - 1]) + 1);
+				best = Math.min(best, next[j]);
+			}
+			if (best <= 1) {
+				collectNear(node.children[c], prefix, next, near);
+			}
+		}
+	}
+
+	private void add(String defID, String spelling, String rank) {
+		String term = normalise(spelling);
+
+		// the definition may have moved to another term
+		if (!term.equals(terms.get(defID))) {
+			remove(defID);
+		}
+
+		Map<String, Integer> defs = ranks.get(term);
+		if (defs == null) {
+			defs = new HashMap<String, Integer>();
+			ranks.put(term, defs);
+		}
+		defs.put(defID, rankOf(rank));
+		terms.put(defID, term);
+		spellings.put(term, spelling);
+
+		if (!loaded) {
+			// the tops are worked out once everything has been read
+			insert(term).term = term;
+			scores.put(term, best(defs));
+			return;
+		}
+
+		Integer previous = scores.get(term);
+		int score = best(defs);
+		scores.put(term, score);
+		List<Node> path = path(term, true);
+		path.get(path.size() - 1).term = term;
+
+		if (previous == null || score >= previous) {
+			for (Node node : path) {
+				promote(node, term);
+			}
+		} else {
+			demote(path, term);
+		}
+	}
+
+	private void remove(String defID) {
+		String term = terms.remove(defID);
+		if (term == null) {
+			return;
+		}
+
+		Map<String, Integer> defs = ranks.get(term);
+		defs.remove(defID);
+		List<Node> path = path(term, false);
+
+		if (!defs.isEmpty()) {
+			scores.put(term, best(defs));
+			demote(path, term);
+			return;
+		}
+
+		ranks.remove(term);
+		spellings.remove(term);
+		path.get(path.size() - 1).term = null;
+		demote(path, term);
+		scores.remove(term);
+
+		// prune the branch the term no longer needs
+		for (int i = path.size() - 1; i > 0; i--) {
+			Node node = path.get(i);
+			if (node.term != null || node.children.length > 0) {
+				break;
+			}
+			path.get(i - 1).removeChild(term.charAt(i - 1));
+		}
+	}
+
+	/**
+	 * Returns the nodes from the root to the term's node, inclusive,
+	 * creating any missing ones if asked to
+	 */
+	private List<Node> path(String term, boolean create) {
+		List<Node> path = new ArrayList<Node>(term.length() + 1);
+		Node node = root;
+		path.add(node);
+
+		for (int i = 0; i < term.length(); i++) {
+			node = create ? node.addChild(term.charAt(i)) : node.child(term
+					.charAt(i));
+			path.add(node);
+		}
+		return path;
+	}
+
+	private Node insert(String term) {
+		Node node = root;
+		for (int i = 0; i < term.length(); i++) {
+			node = node.addChild(term.charAt(i));
+		}
+		return node;
+	}
+
+	/**
+	 * Puts a term whose rank has risen, or which is new, into the node's
+	 * best terms if it now belongs there
+	 */
+	private void promote(Node node, String term) {
+		List<String> top = new ArrayList<String>(Arrays.asList(node.top));
+		top.remove(term);
+
+		int position = Collections.binarySearch(top, term, byScore);
+		position = position < 0 ? -position - 1 : position;
+		if (position >= topK) {
+			return;
+		}
+		top.add(position, term);
+		if (top.size() > topK) {
+			top.remove(top.size() - 1);
+		}
+		node.top = top.toArray(NO_TERMS);
+	}
+
+	/**
+	 * Works out the best terms again, deepest first, on the nodes of the path
+	 * which held a term whose rank has fallen or which has gone. A node which
+	 * didn't hold it has no ancestor which does either.
+	 */
+	private void demote(List<Node> path, String term) {
+		for (int i = path.size() - 1; i >= 0; i--) {
+			Node node = path.get(i);
+			if (!Arrays.asList(node.top).contains(term)) {
+				return;
+			}
+			node.top = best(node);
+		}
+	}
+
+	/**
+	 * Works out the best terms of every node, deepest first
+	 */
+	private void computeTops(Node node) {
+		for (Node child : node.children) {
+			computeTops(child);
+		}
+		node.top = best(node);
+	}
+
+	/**
+	 * Returns the best terms of a node from the best terms of its children,
+	 * which must already be right, and its own term
+	 */
+	private String[] best(Node node) {
+		List<String> candidates = new ArrayList<String>();
+		if (node.term != null) {
+			candidates.add(node.term);
+		}
+		for (Node child : node.children) {
+			candidates.addAll(Arrays.asList(child.top));
+		}
+		Collections.sort(candidates, byScore);
+
+		if (candidates.size() > topK) {
+			candidates = candidates.subList(0, topK);
+		}
+		return candidates.toArray(NO_TERMS);
+	}
+
+	private static int best(Map<String, Integer> defs) {
+		int best = Integer.MIN_VALUE;
+		for (int rank : defs.values()) {
+			best = Math.max(best, rank);
+		}
+		return best;
+	}
+
+	/**
+	 * Ranks are held as strings, so anything that isn't a number counts as
+	 * nothing
+	 */
+	private static int rankOf(String rank) {
+		try {
+			return rank == null ? 0 : Integer.parseInt(rank.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private void ensureLoaded() {
+		lock.readLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+			PooledConnection conn = pool.borrow();
+			try {
+				Statement statement = conn.createStatement();
+				ResultSet rs = statement.executeQuery(ALL_TERMS);
+
+				while (rs.next()) {
+					add(rs.getString("defID"), rs.getString("term"), rs
+							.getString("rank"));
+				}
+				statement.close();
+			} finally {
+				pool.release(conn);
+			}
+
+			// work out every node's best terms once, rather than term by term
+			computeTops(root);
+			loaded = true;
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static String normalise(String term) {
+		return term.toLowerCase();
+	}
+}
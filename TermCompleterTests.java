@@ -0,0 +1,140 @@
+package ubergloss.serviceTests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ubergloss.objects.Definition;
+import ubergloss.services.TermCompleter;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TermCompleterTests {
+
+	private TermCompleter completer;
+
+	@Before
+	public void setup() {
+		completer = new TermCompleter(3);
+		completer.definitionSaved(new Definition("Internet", "def", "5", "1"));
+		completer.definitionSaved(new Definition("intranet", "def", "9", "2"));
+		completer.definitionSaved(new Definition("interest", "def", "1", "3"));
+		completer.definitionSaved(new Definition("interface", "def", "7", "4"));
+		completer.definitionSaved(new Definition("science", "def", "2", "5"));
+	}
+
+	@Test
+	public void complete_Prefix_BestRankedFirst() {
+		assertEquals(list("intranet", "interface", "Internet"), completer.complete("int", 10, false));
+		assertEquals(list("interface", "Internet", "interest"), completer.complete("inter", 10, false));
+	}
+
+	@Test
+	public void complete_Limit_Truncated() {
+		assertEquals(list("intranet"), completer.complete("IN", 1, false));
+	}
+
+	@Test
+	public void complete_UnknownPrefix_Empty() {
+		assertEquals(list(), completer.complete("web", 3, false));
+	}
+
+	@Test
+	public void complete_Typo_FuzzyCompletes() {
+		assertEquals(list(), completer.complete("scei", 3, false));
+		assertEquals(list("science"), completer.complete("scei", 3, true));
+	}
+
+	@Test
+	public void complete_Fuzzy_ExactCompletionsFirst() {
+		completer.definitionSaved(new Definition("inverse", "def", "50", "6"));
+
+		assertEquals(list("interface", "Internet", "interest"), completer.complete("inte", 3, true));
+		assertEquals(list("inverse", "intranet"), completer.complete("invr", 3, true));
+	}
+
+	@Test
+	public void complete_RankChanges_Reordered() {
+		completer.definitionSaved(new Definition("interest", "def", "20", "7"));
+		assertEquals(list("interest", "interface", "Internet"), completer.complete("inter", 3, false));
+
+		completer.definitionDeleted("7");
+		completer.definitionDeleted("4");
+		assertEquals(list("Internet", "interest"), completer.complete("inter", 3, false));
+	}
+
+	@Test
+	public void complete_RandomChanges_MatchesBruteForce() {
+		TermCompleter randomCompleter = new TermCompleter(5);
+		Random random = new Random(17);
+		Map<String, String> termOf = new HashMap<String, String>();
+		Map<String, Integer> rankOf = new HashMap<String, Integer>();
+
+		for(int i = 0; i < 5000; i++) {
+			String id = String.valueOf(random.nextInt(400));
+
+			if(random.nextInt(4) == 0) {
+				randomCompleter.definitionDeleted(id);
+				termOf.remove(id);
+				rankOf.remove(id);
+			} else {
+				String term = randomWord(random);
+				int rank = random.nextInt(30);
+				randomCompleter.definitionSaved(new Definition(term, "def", String.valueOf(rank), id));
+				termOf.put(id, term);
+				rankOf.put(id, rank);
+			}
+
+			if(i % 10 == 0) {
+				String prefix = randomWord(random).substring(0, 1 + random.nextInt(2));
+				assertEquals(bruteForce(termOf, rankOf, prefix, 5), randomCompleter.complete(prefix, 5, false));
+			}
+		}
+	}
+
+	private static List<String> bruteForce(Map<String, String> termOf, Map<String, Integer> rankOf,
+			String prefix, int limit) {
+		final Map<String, Integer> best = new HashMap<String, Integer>();
+		for(Map.Entry<String, String> entry : termOf.entrySet()) {
+			String term = entry.getValue();
+			if(term.startsWith(prefix)) {
+				Integer rank = rankOf.get(entry.getKey());
+				if(!best.containsKey(term) || best.get(term) < rank) {
+					best.put(term, rank);
+				}
+			}
+		}
+
+		List<String> terms = new ArrayList<String>(best.keySet());
+		Collections.sort(terms, new Comparator<String>() {
+			public int compare(String a, String b) {
+				int byRank = best.get(b).compareTo(best.get(a));
+				return byRank != 0 ? byRank : a.compareTo(b);
+			}
+		});
+		return terms.size() > limit ? terms.subList(0, limit) : terms;
+	}
+
+	private static String randomWord(Random random) {
+		StringBuilder word = new StringBuilder();
+		int length = 2 + random.nextInt(5);
+
+		for(int i = 0; i < length; i++) {
+			word.append((char) ('a' + random.nextInt(4)));
+		}
+		return word.toString();
+	}
+
+	private static List<String> list(String... terms) {
+		List<String> list = new ArrayList<String>();
+		for(String term : terms) {
+			list.add(term);
+		}
+		return list;
+	}
+}
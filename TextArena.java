@@ -0,0 +1,269 @@
+package ubergloss.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ubergloss.objects.Definition;
+
+/**
+ * The text of every definition, case-folded and packed end to end into one
+ * byte array so it can be searched for a substring in a single pass. It
+ * answers the "definition" filters too short for the trigram index, which
+ * would otherwise mean a contains() call, and a pointer chase, per
+ * definition.
+ *
+ * Each character is folded to lower case on its own and written as one to
+ * three bytes, as UTF-8 would write it, so a folded query is found in the
+ * arena wherever the query is found in a definition. The scan finds the
+ * folded query, and only the definitions it finds are checked with
+ * String.contains, so matching is still case-sensitive. The scan uses the
+ * JDK's Vector API when the jdk.incubator.vector module is present, and a
+ * plain loop otherwise.
+ *
+ * A definition's text runs from its start to the next one's, so a match is
+ * only counted when it ends before the next definition begins. Once a
+ * definition has matched, the rest of its text is skipped.
+ *
+ * Saved definitions are appended and deleted ones are blanked out, and the
+ * arena is packed afresh once most of its text is blank. It must not be
+ * changed while it's being searched, but can be searched by any number of
+ * threads at once.
+ *
+ * @author George Kinsman
+ *
+ */
+public class TextArena {
+
+	/**
+	 * Finds a query in a range of the arena
+	 */
+	interface Scan {
+		/**
+		 * @return where the query first starts at or after from and ends no
+		 *         later than to, or -1 if nowhere
+		 */
+		int indexOf(byte[] text, int from, int to, byte[] query);
+	}
+
+	private static final Scan SCAN = bestScan();
+
+	private byte[] text = new byte[0];
+	private int length = 0;
+	// where each definition's text starts, and where the last one ends
+	private int[] starts = new int[1];
+	// null where a definition has been deleted
+	private Definition[] definitions = new Definition[0];
+	private int count = 0;
+	private Map<String, Integer> slots = new HashMap<String, Integer>();
+	private int blank = 0;
+
+	public TextArena(Collection<Definition> definitions) {
+		pack(definitions);
+	}
+
+	/**
+	 * Returns every definition whose text contains the query, as
+	 * String.contains would find it
+	 *
+	 * @param query
+	 * @return the definitions containing the query, in the order they were
+	 *         packed
+	 */
+	public List<Definition> search(String query) {
+		List<Definition> matches = new ArrayList<Definition>();
+
+		if (query.length() == 0) {
+			for (int i = 0; i < count; i++) {
+				if (definitions[i] != null) {
+					matches.add(definitions[i]);
+				}
+			}
+			return matches;
+		}
+
+		byte[] q = fold(query);
+		int def = 0;
+		int p = SCAN.indexOf(text, 0, length, q);
+
+		while (p >= 0) {
+			// find the definition the match starts in, skipping any empty
+			// ones before it
+			while (starts[def + 1] <= p) {
+				def++;
+			}
+			int end = starts[def + 1];
+			int next = p + 1;
+			if (p + q.length <= end) {
+				// the folded query is in this definition; whether or not the
+				// query itself is, there's nothing more to find in it
+				Definition match = definitions[def];
+				if (match != null && match.getDefinition().contains(query)) {
+					matches.add(match);
+				}
+				next = end;
+			}
+			p = SCAN.indexOf(text, next, length, q);
+		}
+		return matches;
+	}
+
+	/**
+	 * Appends a definition's text, replacing any the definition already had
+	 */
+	public void add(Definition def) {
+		remove(def.getID());
+
+		byte[] folded = fold(def.getDefinition());
+		if (length + folded.length > text.length) {
+			text = Arrays.copyOf(text, Math.max(text.length * 2, length
+					+ folded.length));
+		}
+		if (count + 2 > starts.length) {
+			starts = Arrays.copyOf(starts, Math.max(2, starts.length * 2));
+			definitions = Arrays.copyOf(definitions, starts.length);
+		}
+
+		System.arraycopy(folded, 0, text, length, folded.length);
+		slots.put(def.getID(), count);
+		definitions[count] = def;
+		starts[count] = length;
+		length += folded.length;
+		count++;
+		starts[count] = length;
+	}
+
+	/**
+	 * Blanks out a definition's text, packing the arena afresh once most of
+	 * it is blank
+	 */
+	public void remove(String defID) {
+		Integer slot = slots.remove(defID);
+		if (slot == null) {
+			return;
+		}
+		definitions[slot] = null;
+		blank += starts[slot + 1] - starts[slot];
+
+		if (blank > length / 2) {
+			List<Definition> live = new ArrayList<Definition>(slots.size());
+			for (int i = 0; i < count; i++) {
+				if (definitions[i] != null) {
+					live.add(definitions[i]);
+				}
+			}
+			pack(live);
+		}
+	}
+
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	 * @return whether the scan uses the Vector API
+	 */
+	public static boolean isVectorised() {
+		return !(SCAN instanceof ScalarScan);
+	}
+
+	private void pack(Collection<Definition> live) {
+		byte[][] folded = new byte[live.size()][];
+		int total = 0;
+		int i = 0;
+		for (Definition def : live) {
+			folded[i] = fold(def.getDefinition());
+			total += folded[i].length;
+			i++;
+		}
+
+		text = new byte[total];
+		length = 0;
+		starts = new int[live.size() + 1];
+		definitions = new Definition[live.size() + 1];
+		count = 0;
+		slots = new HashMap<String, Integer>();
+		blank = 0;
+
+		for (Definition def : live) {
+			byte[] bytes = folded[count];
+			System.arraycopy(bytes, 0, text, length, bytes.length);
+			slots.put(def.getID(), count);
+			definitions[count] = def;
+			starts[count] = length;
+			length += bytes.length;
+			count++;
+		}
+		starts[count] = length;
+	}
+
+	/**
+	 * Folds each character to lower case and writes it as UTF-8 would, a
+	 * surrogate taking three bytes of its own. No character's bytes begin
+	 * another's, so a match found in the bytes always lines up with
+	 * characters.
+	 */
+	static byte[] fold(String s) {
+		byte[] bytes = new byte[s.length() * 3];
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = Character.toLowerCase(s.charAt(i));
+			if (c < 0x80) {
+				bytes[n++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[n++] = (byte) (0xC0 | (c >> 6));
+				bytes[n++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				bytes[n++] = (byte) (0xE0 | (c >> 12));
+				bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return Arrays.copyOf(bytes, n);
+	}
+
+	/**
+	 * Uses VectorScan if the Vector API can be loaded, or the plain loop
+	 * if not
+	 */
+	private static Scan bestScan() {
+		try {
+			return (Scan) Class.forName("ubergloss.services.VectorScan")
+					.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			return new ScalarScan();
+		} catch (LinkageError e) {
+			// the jdk.incubator.vector module isn't there
+			return new ScalarScan();
+		}
+	}
+
+	/**
+	 * Finds the query a byte at a time
+	 */
+	static class ScalarScan implements Scan {
+		public int indexOf(byte[] text, int from, int to, byte[] query) {
+			byte first = query[0];
+			int last = to - query.length;
+
+			for (int p = from; p <= last; p++) {
+				if (text[p] == first && matchesAt(text, p, query)) {
+					return p;
+				}
+			}
+			return -1;
+		}
+	}
+
+	static boolean matchesAt(byte[] text, int p, byte[] query) {
+		for (int i = 1; i < query.length; i++) {
+			if (text[p + i] != query[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,88 @@
+package ubergloss.serviceTests;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import ubergloss.objects.Definition;
+import ubergloss.services.TextArena;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks TextArena against String.contains over random definitions mixing
+ * case and characters outside ASCII, as definitions are saved and deleted.
+ */
+public class TextArenaTests {
+
+	private static final String ALPHABET = "aAbB\u00e9\u00c9\u00df\u03a3\u03c3\u03c2\u4e2d\ud83d\ude00";
+
+	@Test
+	public void search_RandomDefinitions_MatchesContains() {
+		Random random = new Random(23);
+		Map<String, Definition> definitions = new LinkedHashMap<String, Definition>();
+		for(int i = 0; i < 2000; i++) {
+			Definition def = randomDefinition(random, i);
+			definitions.put(def.getID(), def);
+		}
+		TextArena arena = new TextArena(definitions.values());
+
+		for(int i = 0; i < 500; i++) {
+			String query = randomString(random, 4);
+			assertEquals(query, contains(definitions, query),
+					new HashSet<Definition>(arena.search(query)));
+		}
+	}
+
+	@Test
+	public void search_DefinitionsSavedAndDeleted_MatchesContains() {
+		Random random = new Random(29);
+		Map<String, Definition> definitions = new LinkedHashMap<String, Definition>();
+		TextArena arena = new TextArena(new ArrayList<Definition>());
+
+		for(int i = 0; i < 5000; i++) {
+			Definition def = randomDefinition(random, random.nextInt(300));
+			if(random.nextInt(3) == 0) {
+				definitions.remove(def.getID());
+				arena.remove(def.getID());
+			} else {
+				definitions.put(def.getID(), def);
+				arena.add(def);
+			}
+			assertEquals(definitions.size(), arena.size());
+
+			if(i % 25 == 0) {
+				String query = randomString(random, 3);
+				assertEquals(query, contains(definitions, query),
+						new HashSet<Definition>(arena.search(query)));
+			}
+		}
+	}
+
+	private static HashSet<Definition> contains(Map<String, Definition> definitions, String query) {
+		HashSet<Definition> matches = new HashSet<Definition>();
+		for(Definition def : definitions.values()) {
+			if(def.getDefinition().contains(query)) {
+				matches.add(def);
+			}
+		}
+		return matches;
+	}
+
+	private static Definition randomDefinition(Random random, int id) {
+		return new Definition("term" + id, randomString(random, 40), "0", String.valueOf(id));
+	}
+
+	private static String randomString(Random random, int maxLength) {
+		int length = random.nextInt(maxLength + 1);
+		StringBuilder s = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			// surrogates are picked on their own, so some are left unpaired
+			s.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,147 @@
+package ubergloss.services;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+
+/**
+ * Splits a UAL query into its filters in a single pass over the string.
+ * 
+ * "definition" - a quoted string on one line
+ * [tag]        - one or more characters up to the next ], on one line
+ * (locale)     - up to the last ) before any whitespace or ]
+ * term         - a word of letters alone between whitespace
+ * 
+ * Filters don't overlap: a term inside a quoted definition or a tag is part
+ * of that filter, not a filter of its own. Anything else is skipped.
+ * 
+ * @author George Kinsman
+ * 
+ */
+public final class UalLexer {
+
+	private UalLexer() {
+	}
+
+	/**
+	 * Returns the filters in the query, without duplicates, in the order they
+	 * first appear
+	 * 
+	 * @param query
+	 *            a UAL query string
+	 * @return the filters found in the query
+	 */
+	public static Set<Filter> lex(String query) {
+		Set<Filter> filters = new LinkedHashSet<Filter>();
+		int length = query.length();
+		int i = 0;
+
+		while (i < length) {
+			char c = query.charAt(i);
+			int end;
+
+			if (c == '"' && (end = definitionEnd(query, i)) > 0) {
+				filters.add(new Filter(FilterTypes.Definition, query.substring(
+						i + 1, end)));
+				i = end + 1;
+
+			} else if (c == '[' && (end = tagEnd(query, i)) > 0) {
+				filters.add(new Filter(FilterTypes.Tag, query.substring(i + 1,
+						end)));
+				i = end + 1;
+
+			} else if (c == '(' && (end = localeEnd(query, i)) > 0) {
+				filters.add(new Filter(FilterTypes.Locale, query.substring(
+						i + 1, end)));
+				i = end + 1;
+
+			} else if (isLetter(c)) {
+				end = i;
+				while (end < length && isLetter(query.charAt(end))) {
+					end++;
+				}
+				if ((i == 0 || isWhitespace(query.charAt(i - 1)))
+						&& (end == length || isWhitespace(query.charAt(end)))) {
+					filters.add(new Filter(FilterTypes.Term, query.substring(i,
+							end)));
+				}
+				i = end;
+
+			} else {
+				i++;
+			}
+		}
+		return filters;
+	}
+
+	/**
+	 * @return the index of the closing quote, or -1 if there isn't one on the
+	 *         same line
+	 */
+	private static int definitionEnd(String query, int start) {
+		for (int i = start + 1; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == '"') {
+				return i;
+			}
+			if (isLineBreak(c)) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the index of the closing bracket, or -1 if the tag is empty or
+	 *         isn't closed on the same line
+	 */
+	private static int tagEnd(String query, int start) {
+		for (int i = start + 1; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == ']') {
+				return i > start + 1 ? i : -1;
+			}
+			if (c == '\r' || c == '\n') {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the index of the last closing parenthesis before whitespace or
+	 *         a ], or -1 if there isn't one
+	 */
+	private static int localeEnd(String query, int start) {
+		int end = -1;
+
+		for (int i = start + 1; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == ']' || isWhitespace(c)) {
+				break;
+			}
+			if (c == ')') {
+				end = i;
+			}
+		}
+		return end;
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	// the characters matched by \s
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+				|| c == '\f' || c == '\r';
+	}
+
+	// the characters . doesn't match
+	private static boolean isLineBreak(char c) {
+		return c == '\n' || c == '\r' || c == 0x0085 || c == 0x2028
+				|| c == 0x2029;
+	}
+}
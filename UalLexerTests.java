@@ -0,0 +1,76 @@
+package ubergloss.serviceTests;
+
+import java.util.Set;
+
+import ubergloss.objects.Filter;
+import ubergloss.objects.Filter.FilterTypes;
+import ubergloss.services.UalLexer;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class UalLexerTests {
+	
+	@Test
+	public void lex_EveryFilterType_OneFilterEach() {
+		Set<Filter> filters = UalLexer.lex("[internet] (en-US) web \"a network\"");
+		
+		assertEquals(4, filters.size());
+		assertTrue(filters.contains(new Filter(FilterTypes.Tag, "internet")));
+		assertTrue(filters.contains(new Filter(FilterTypes.Locale, "en-US")));
+		assertTrue(filters.contains(new Filter(FilterTypes.Term, "web")));
+		assertTrue(filters.contains(new Filter(FilterTypes.Definition, "a network")));
+	}
+	
+	@Test
+	public void lex_TagWithSpaces_SingleTag() {
+		Set<Filter> filters = UalLexer.lex("[big data]");
+		
+		assertEquals(1, filters.size());
+		assertTrue(filters.contains(new Filter(FilterTypes.Tag, "big data")));
+	}
+	
+	@Test
+	public void lex_WordsInsideQuotes_NotTerms() {
+		Set<Filter> filters = UalLexer.lex("\"a b c\"");
+		
+		assertEquals(1, filters.size());
+		assertTrue(filters.contains(new Filter(FilterTypes.Definition, "a b c")));
+	}
+	
+	@Test
+	public void lex_WordNextToPunctuation_NotATerm() {
+		assertTrue(UalLexer.lex("web, net").contains(new Filter(FilterTypes.Term, "net")));
+		assertEquals(1, UalLexer.lex("web, net").size());
+	}
+	
+	@Test
+	public void lex_UnclosedFilters_Skipped() {
+		assertTrue(UalLexer.lex("\"open [tag (loc").isEmpty());
+	}
+	
+	@Test
+	public void lex_EmptyTag_Skipped() {
+		assertTrue(UalLexer.lex("[]").isEmpty());
+	}
+	
+	@Test
+	public void lex_EmptyLocaleAndDefinition_Kept() {
+		Set<Filter> filters = UalLexer.lex("() \"\"");
+		
+		assertTrue(filters.contains(new Filter(FilterTypes.Locale, "")));
+		assertTrue(filters.contains(new Filter(FilterTypes.Definition, "")));
+	}
+	
+	@Test
+	public void lex_QuoteAcrossLines_NotADefinition() {
+		Set<Filter> filters = UalLexer.lex("\"one\ntwo\"");
+		
+		assertEquals(0, filters.size());
+	}
+	
+	@Test
+	public void lex_DuplicateFilters_NoDuplicates() {
+		assertEquals(2, UalLexer.lex("(en-AU) (en-AU) dam dam").size());
+	}
+}
@@ -0,0 +1,52 @@
+package ubergloss.services;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Finds a query in a TextArena a vector of positions at a time, with the
+ * JDK's Vector API. Each position is a candidate only if both the query's
+ * first byte and its last byte line up there, so few are checked byte by
+ * byte.
+ *
+ * Needs the jdk.incubator.vector module, both to compile and to run (eg.
+ * --add-modules jdk.incubator.vector). TextArena loads this class only if
+ * it can, and falls back to a plain loop if not.
+ *
+ * @author George Kinsman
+ *
+ */
+class VectorScan implements TextArena.Scan {
+
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+	private final TextArena.Scan scalar = new TextArena.ScalarScan();
+
+	public int indexOf(byte[] text, int from, int to, byte[] query) {
+		int lanes = SPECIES.length();
+		int shift = query.length - 1;
+		// the last start whose whole vector, and last byte's vector, fit
+		int bound = to - shift - lanes;
+
+		ByteVector first = ByteVector.broadcast(SPECIES, query[0]);
+		ByteVector last = ByteVector.broadcast(SPECIES, query[shift]);
+
+		int p = from;
+		for (; p <= bound; p += lanes) {
+			VectorMask<Byte> candidates = ByteVector.fromArray(SPECIES, text, p)
+					.eq(first).and(
+							ByteVector.fromArray(SPECIES, text, p + shift).eq(
+									last));
+			// the few vectors with candidates are checked a byte at a time,
+			// which is far cheaper than turning the mask into a bit set
+			if (candidates.anyTrue()) {
+				int found = scalar.indexOf(text, p, p + lanes + shift, query);
+				if (found >= 0) {
+					return found;
+				}
+			}
+		}
+		return scalar.indexOf(text, p, to, query);
+	}
+}
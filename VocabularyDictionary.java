@@ -0,0 +1,194 @@
+package ubergloss.services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import ubergloss.services.ConnectionPool.PooledConnection;
+
+/**
+ * Every tag name and locale short name in the glossary, held in memory so
+ * checking whether a filter names a real tag or locale never touches the
+ * database. Names are compared case-insensitively.
+ *
+ * Readers see an immutable snapshot. A change copies the snapshot, alters
+ * the copy and swaps it in whole, so a reader never sees a half-made change
+ * and never waits on a writer. The vocabularies are small and rarely change,
+ * which is what makes the copying affordable.
+ *
+ * The dictionary is loaded from the database on first use, kept up to date
+ * through the GlossaryChangeListener callbacks, and can be reloaded with
+ * refresh.
+ *
+ * @author George Kinsman
+ *
+ */
+public class VocabularyDictionary extends GlossaryChangeAdapter {
+
+	private static final String ALL_TAG_NAMES = "SELECT name FROM tags;";
+	private static final String ALL_LOCALE_NAMES = "SELECT shortName FROM locales;";
+
+	/**
+	 * The vocabularies at one moment. Never changed once published.
+	 */
+	private static class Snapshot {
+		final Set<String> tags;
+		final Set<String> locales;
+
+		Snapshot(Set<String> tags, Set<String> locales) {
+			this.tags = Collections.unmodifiableSet(tags);
+			this.locales = Collections.unmodifiableSet(locales);
+		}
+	}
+
+	private ConnectionPool pool;
+
+	private volatile Snapshot snapshot = null;
+	// bumped whenever a name comes or goes
+	private volatile long version = 0;
+
+	public VocabularyDictionary(ConnectionPool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException(
+					"the connection pool must be non-null.");
+		this.pool = pool;
+	}
+
+	/**
+	 * @return true if a tag with the name exists, in any case
+	 */
+	public boolean tagExists(String tagName) {
+		return current().tags.contains(tagName.toLowerCase());
+	}
+
+	/**
+	 * @return true if a locale with the short name exists, in any case
+	 */
+	public boolean localeExists(String shortName) {
+		return current().locales.contains(shortName.toLowerCase());
+	}
+
+	/**
+	 * Returns a number that changes whenever a tag or locale name is added
+	 * or removed, so anything worked out from the names can tell when it's
+	 * stale. Giving a definition a tag or locale that already exists
+	 * doesn't change it.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Reloads both vocabularies from the database, replacing the current
+	 * snapshot in one step
+	 */
+	public synchronized void refresh() {
+		snapshot = load();
+		version++;
+	}
+
+	@Override
+	public void tagCreated(String tagName) {
+		changeTags(tagName, true);
+	}
+
+	@Override
+	public void tagDeleted(String tagName) {
+		changeTags(tagName, false);
+	}
+
+	@Override
+	public void localeCreated(String shortName) {
+		changeLocales(shortName, true);
+	}
+
+	@Override
+	public void localeDeleted(String shortName) {
+		changeLocales(shortName, false);
+	}
+
+	// a tag or locale can only be given to a definition once it exists
+	@Override
+	public void tagAdded(String defID, String tagName) {
+		if (!tagExists(tagName)) {
+			changeTags(tagName, true);
+		}
+	}
+
+	@Override
+	public void localeAdded(String defID, String shortName) {
+		if (!localeExists(shortName)) {
+			changeLocales(shortName, true);
+		}
+	}
+
+	private synchronized void changeTags(String tagName, boolean add) {
+		Snapshot old = current();
+		Set<String> tags = new HashSet<String>(old.tags);
+
+		if (add ? tags.add(tagName.toLowerCase()) : tags.remove(tagName
+				.toLowerCase())) {
+			snapshot = new Snapshot(tags, old.locales);
+			version++;
+		}
+	}
+
+	private synchronized void changeLocales(String shortName, boolean add) {
+		Snapshot old = current();
+		Set<String> locales = new HashSet<String>(old.locales);
+
+		if (add ? locales.add(shortName.toLowerCase()) : locales
+				.remove(shortName.toLowerCase())) {
+			snapshot = new Snapshot(old.tags, locales);
+			version++;
+		}
+	}
+
+	private Snapshot current() {
+		Snapshot current = snapshot;
+		if (current != null) {
+			return current;
+		}
+
+		synchronized (this) {
+			if (snapshot == null) {
+				snapshot = load();
+			}
+			return snapshot;
+		}
+	}
+
+	private Snapshot load() {
+		Set<String> tags = new HashSet<String>();
+		Set<String> locales = new HashSet<String>();
+
+		try {
+			PooledConnection conn = pool.borrow();
+			try {
+				Statement statement = conn.createStatement();
+
+				ResultSet rs = statement.executeQuery(ALL_TAG_NAMES);
+				while (rs.next()) {
+					tags.add(rs.getString("name").toLowerCase());
+				}
+				rs.close();
+
+				rs = statement.executeQuery(ALL_LOCALE_NAMES);
+				while (rs.next()) {
+					locales.add(rs.getString("shortName").toLowerCase());
+				}
+				rs.close();
+
+				statement.close();
+			} finally {
+				pool.release(conn);
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+		return new Snapshot(tags, locales);
+	}
+}
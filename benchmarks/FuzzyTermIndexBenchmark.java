@@ -0,0 +1,102 @@
+package ubergloss.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ubergloss.objects.Definition;
+import ubergloss.serviceTests.SyntheticGlossary;
+import ubergloss.services.BKTreeTermIndex;
+import ubergloss.services.FuzzyTermIndex;
+import ubergloss.services.SymSpellTermIndex;
+
+/**
+ * Times the BK-tree and SymSpell term indexes over the terms of the same
+ * synthetic glossary, searching for misspellings of its terms. Doesn't need
+ * a database. The distance defaults to the one QueryService searches at.
+ *
+ * The build benchmark times filling an index from empty, once per
+ * iteration. Run with -prof gc to see what each index allocates.
+ *
+ * @author George Kinsman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FuzzyTermIndexBenchmark {
+
+	private static final int QUERIES = 1000;
+
+	@Param({ "bk-tree", "symspell" })
+	public String index;
+
+	@Param({ "10000", "100000" })
+	public int size;
+
+	@Param({ "3" })
+	public int distance;
+
+	private List<Definition> definitions;
+	private FuzzyTermIndex terms;
+	private String[] queries;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		definitions = new SyntheticGlossary(size, 42).getDefinitions();
+		terms = build();
+
+		Random random = new Random(7);
+		queries = new String[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			String term = definitions.get(random.nextInt(definitions.size()))
+					.getTerm();
+			queries[i] = SearchPipelineBenchmark.misspell(term, random);
+		}
+	}
+
+	@Benchmark
+	public List<Definition> search() {
+		return terms.search(next(), distance);
+	}
+
+	@Benchmark
+	public List<Definition> searchContaining() {
+		return terms.searchContaining(next(), distance);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Measurement(iterations = 3)
+	@Warmup(iterations = 1)
+	public FuzzyTermIndex build() {
+		FuzzyTermIndex built = "symspell".equals(index) ? new SymSpellTermIndex(
+				distance) : new BKTreeTermIndex();
+		for (Definition def : definitions) {
+			built.definitionSaved(def);
+		}
+		return built;
+	}
+
+	private String next() {
+		next = (next + 1) % QUERIES;
+		return queries[next];
+	}
+}
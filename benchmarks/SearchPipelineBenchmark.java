@@ -0,0 +1,212 @@
+package ubergloss.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ubergloss.objects.Definition;
+import ubergloss.objects.Filter;
+import ubergloss.objects.SearchResult;
+import ubergloss.serviceTests.InMemoryConnector;
+import ubergloss.serviceTests.SyntheticGlossary;
+import ubergloss.services.DefinitionService;
+import ubergloss.services.EditDistance;
+import ubergloss.services.QueryService;
+import ubergloss.services.QueryService.CompleteDefinition;
+import ubergloss.services.UalLexer;
+
+/**
+ * Times each stage of the search pipeline over synthetic glossaries of
+ * several sizes, served from memory by InMemoryConnector. Doesn't need a
+ * database, and the same size always gives the same glossary and queries,
+ * so runs can be compared to catch regressions.
+ *
+ * Each call takes the next of a fixed mix of queries, so a score is the
+ * average over the mix.
+ *
+ * @author George Kinsman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g",
+		"--add-modules=jdk.incubator.vector" })
+public class SearchPipelineBenchmark {
+
+	private static final int QUERIES = 50;
+
+	@Param({ "1000", "10000", "100000" })
+	public int size;
+
+	private QueryService qs;
+	private List<String> queries;
+	private List<Set<Filter>> filters;
+	private List<List<CompleteDefinition>> candidates;
+	private List<Set<Definition>> results;
+	private String[] terms;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		SyntheticGlossary glossary = new SyntheticGlossary(size, 42);
+		InMemoryConnector connector = new InMemoryConnector(glossary);
+		qs = new QueryService(connector, new DefinitionService(connector));
+
+		queries = queries(glossary, new Random(7));
+		filters = new ArrayList<Set<Filter>>();
+		for (String query : queries) {
+			filters.add(qs.parseQuery(query));
+		}
+
+		// loads every index, so no benchmark pays for it
+		candidates = new ArrayList<List<CompleteDefinition>>();
+		results = new ArrayList<Set<Definition>>();
+		for (Set<Filter> filter : filters) {
+			candidates.add(qs.getCompleteDefinitions(qs.getCandidateSet(filter)));
+			results.add(qs.performSearch(filter));
+		}
+
+		terms = new String[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			terms[i] = glossary.getDefinitions().get(i * size / QUERIES)
+					.getTerm();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		qs.shutdown();
+	}
+
+	@Benchmark
+	public Set<Filter> parseQueryCached() {
+		return qs.parseQuery(queries.get(next()));
+	}
+
+	@Benchmark
+	public Set<Filter> lex() {
+		return UalLexer.lex(queries.get(next()));
+	}
+
+	@Benchmark
+	public int editDistance() {
+		int i = next();
+		return EditDistance.distance(terms[i], terms[(i * 7 + 1) % QUERIES]);
+	}
+
+	@Benchmark
+	public boolean editDistanceWithin() {
+		int i = next();
+		return EditDistance.withinDistance(terms[i],
+				terms[(i * 7 + 1) % QUERIES], 3);
+	}
+
+	@Benchmark
+	public Set<Definition> filterResults() {
+		int i = next();
+		return qs.filterResults(candidates.get(i), filters.get(i));
+	}
+
+	@Benchmark
+	public List<CompleteDefinition> getCompleteDefinitions() {
+		return qs.getCompleteDefinitions(results.get(next()));
+	}
+
+	@Benchmark
+	public Set<Definition> performSearchCold() {
+		qs.getResultCache().clear();
+		return qs.performSearch(filters.get(next()));
+	}
+
+	@Benchmark
+	public Set<Definition> performSearchCached() {
+		return qs.performSearch(filters.get(next()));
+	}
+
+	@Benchmark
+	public List<SearchResult> performRankedSearch() {
+		qs.getResultCache().clear();
+		return qs.performRankedSearch(filters.get(next()), 0, 20);
+	}
+
+	@Benchmark
+	public int searchIteratorFirstPage() {
+		qs.getResultCache().clear();
+		Iterator<CompleteDefinition> it = qs.searchIterator(filters.get(next()),
+				20);
+		int read = 0;
+		while (read < 20 && it.hasNext()) {
+			it.next();
+			read++;
+		}
+		return read;
+	}
+
+	private int next() {
+		next = (next + 1) % QUERIES;
+		return next;
+	}
+
+	/**
+	 * Builds a mix of the searches people make: popular tags and locales,
+	 * common words, and misspelt terms
+	 */
+	private static List<String> queries(SyntheticGlossary glossary,
+			Random random) {
+		List<String> tags = glossary.getTags();
+		List<String> locales = glossary.getLocales();
+		List<Definition> defs = glossary.getDefinitions();
+		List<String> queries = new ArrayList<String>();
+
+		while (queries.size() < QUERIES) {
+			Definition def = defs.get(random.nextInt(defs.size()));
+			String[] words = def.getDefinition().split(" ");
+			String word = words[random.nextInt(words.length)];
+			String tag = tags.get(random.nextInt(8));
+			String locale = locales.get(random.nextInt(3));
+
+			switch (queries.size() % 5) {
+			case 0:
+				queries.add("[" + tag + "] (" + locale + ")");
+				break;
+			case 1:
+				queries.add("\"" + word + "\"");
+				break;
+			case 2:
+				queries.add(misspell(def.getTerm(), random));
+				break;
+			case 3:
+				queries.add("\"" + word + "\" (" + locale + ")");
+				break;
+			default:
+				queries.add("[" + tag + "]");
+			}
+		}
+		return queries;
+	}
+
+	static String misspell(String term, Random random) {
+		char[] chars = term.toCharArray();
+		chars[random.nextInt(chars.length)] = (char) ('a' + random.nextInt(26));
+		return new String(chars);
+	}
+}